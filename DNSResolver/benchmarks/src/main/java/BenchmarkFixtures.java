@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.IntFunction;
+
+import dnsresolver.benchmarks.Fixtures;
+
+/**
+ * The resolver side of the JMH benchmarks, see Fixtures for why it is split off from them.
+ * The benchmarks get back plain JDK functional interfaces to call in the measured loop.
+ * Also builds the synthetic names and packets that DNSCacheBenchmark uses.
+ */
+public class BenchmarkFixtures implements Fixtures {
+
+    /**
+     * Wire captures of typical traffic, EDNS0 OPT record included, as a resolver sees them.
+     */
+    static final Map<String, byte[]> CAPTURES = Map.of(
+            // www.github.com A from a stub resolver, RD and AD set
+            "query", hex("3e1a01200001000000000001037777770667697468756203636f6d000001000100002904d0000000000000"),
+            // www.github.com A: CNAME github.com, then one A record
+            "cname-a", hex("3e1a81800001000200000001037777770667697468756203636f6d0000010001c00c0005000100000e10"
+                    + "0002c010c010000100010000003c00048c5271030000290200000000000000"),
+            // www.wikipedia.org AAAA: CNAME dyna.wikimedia.org, then one AAAA record
+            "cname-aaaa", hex("944781800001000200000001037777770977696b697065646961036f726700001c0001c00c0005000100"
+                    + "01518000110464796e610977696b696d65646961c01ac02f001c00010000025800102a0280c001540000000000"
+                    + "00000000010000290200000000000000"),
+            // gmail.com MX: five exchangers, every name compressed against the first
+            "mx", hex("20e28180000100050000000105676d61696c03636f6d00000f0001c00c000f000100000e10001b00050d676d6169"
+                    + "6c2d736d74702d696e016c06676f6f676c65c012c00c000f000100000e100009000a04616c7431c029c00c000f00"
+                    + "0100000e100009001404616c7432c029c00c000f000100000e100009001e04616c7433c029c00c000f000100000e"
+                    + "100009002804616c7434c0290000290200000000000000"),
+            // nx.example.com A: NXDOMAIN with the zone's SOA for negative caching
+            "nxdomain", hex("51c381830001000000010001026e78076578616d706c6503636f6d0000010001c00f0006000100000e1000"
+                    + "2c026e73056963616e6e036f726700036e6f6303646e73c02478b33abc00001c2000000e100012750000000e10"
+                    + "0000290200000000000000"));
+
+    private static byte[] hex(String hex) {
+        return HexFormat.of().parseHex(hex);
+    }
+
+    @Override
+    public Callable<Object> decodeMessage(String capture) {
+        byte[] packet = capture(capture);
+        DNSPacketReader reader = new DNSPacketReader();
+        return () -> {
+            reader.wrap(ByteBuffer.wrap(packet));
+            return DNSMessage.decodeMessage(reader);
+        };
+    }
+
+    @Override
+    public Callable<Object> encodeMessage(String capture) throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(capture(capture));
+        return message::toBytes;
+    }
+
+    private static byte[] capture(String capture) {
+        byte[] packet = CAPTURES.get(capture);
+        if (packet == null) {
+            throw new IllegalArgumentException("Unknown capture " + capture + ", expected one of " + CAPTURES.keySet());
+        }
+        return packet;
+    }
+
+    @Override
+    public Object newCache(int names, long offHeapBytes) throws IOException {
+        DNSServerConfig config = new DNSServerConfig(); // The server's defaults for everything but the size
+        DNSCache cache = new DNSCache(names, config.serveStaleMillis, config.refreshThreshold, config.refreshMinHits,
+                config.roundRobin, offHeapBytes);
+        fill(cache, names);
+        return cache;
+    }
+
+    @Override
+    public IntFunction<Object> cacheQuery(Object cache, int names) throws IOException {
+        DNSCache dnsCache = (DNSCache) cache;
+        DNSQuestion[] questions = new DNSQuestion[names];
+        for (int i = 0; i < names; i++) {
+            questions[i] = new DNSQuestion(nameFor(i, false), 1, 1);
+        }
+        return i -> dnsCache.query(questions[i % names]);
+    }
+
+    @Override
+    public IntFunction<Object> cacheInsert(Object cache, int names) throws IOException {
+        DNSCache dnsCache = (DNSCache) cache;
+        DNSQuestion[] questions = new DNSQuestion[names];
+        DNSRecord[][] records = new DNSRecord[names][];
+        DNSPacketReader reader = new DNSPacketReader();
+        for (int i = 0; i < names; i++) {
+            reader.wrap(ByteBuffer.wrap(buildResponse(nameFor(i, false), i)));
+            questions[i] = DNSQuestion.decodeQuestion(reader, 0);
+            records[i] = new DNSRecord[]{DNSRecord.decodeRecord(reader, 0)};
+        }
+        return i -> {
+            dnsCache.insert(questions[i % names], records[i % names]);
+            return null;
+        };
+    }
+
+    @Override
+    public IntFunction<Object> serverHitPath(int names, long offHeapBytes) throws IOException {
+        DNSServerConfig config = new DNSServerConfig();
+        config.port = 0;
+        config.cacheCapacity = names;
+        config.cacheOffHeapBytes = offHeapBytes;
+        config.upstreams = List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9)); // Discard, never used
+        DNSServer server = new DNSServer(config);
+        server.open();
+        fill(server.getCache(), names);
+
+        DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress clientAddress = (InetSocketAddress) client.getLocalAddress();
+        byte[][] queries = new byte[names][];
+        for (int i = 0; i < names; i++) {
+            queries[i] = buildQuery(nameFor(i, false), i);
+        }
+        return i -> {
+            server.handlePacket(queries[i % names], clientAddress);
+            return null;
+        };
+    }
+
+    /**
+     * @param rank Which name.
+     * @param mixedCase Upper-case the first label, as resolvers doing 0x20 randomization do.
+     * @return The labels of host<rank>.example.com.
+     */
+    static String[] nameFor(int rank, boolean mixedCase) {
+        String host = "host" + rank;
+        return new String[]{mixedCase ? host.toUpperCase() : host, "example", "com"};
+    }
+
+    /**
+     * @param name The labels of the name to ask for.
+     * @param id The transaction ID.
+     * @return An A query for the name.
+     */
+    static byte[] buildQuery(String[] name, int id) throws IOException {
+        DNSMessage query = DNSMessage.buildQuery(new DNSQuestion(name, 1, 1));
+        byte[] bytes = query.toBytes();
+        bytes[0] = (byte) (id >> 8);
+        bytes[1] = (byte) id;
+        return bytes;
+    }
+
+    // A response with one A record whose owner name points back at the question
+    static byte[] buildResponse(String[] name, int address) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        DNSPacketWriter writer = new DNSPacketWriter();
+        writer.reset(buffer);
+        writer.writeShort(0);
+        writer.writeShort(DNSHeader.RESPONSE_FLAGS);
+        writer.writeShort(1);
+        writer.writeShort(1);
+        writer.writeShort(0);
+        writer.writeShort(0);
+        writer.writeName(name);
+        writer.writeShort(1);
+        writer.writeShort(1);
+        writer.writeName(name); // Compressed to a pointer
+        writer.writeShort(1);
+        writer.writeShort(1);
+        writer.writeInt(3600);
+        writer.writeShort(4);
+        writer.writeInt(address);
+        return Arrays.copyOf(buffer.array(), writer.position());
+    }
+
+    // Caches the records and the encoded response for every name, as an upstream reply does
+    private static void fill(DNSCache cache, int names) throws IOException {
+        DNSPacketReader reader = new DNSPacketReader();
+        for (int i = 0; i < names; i++) {
+            reader.wrap(ByteBuffer.wrap(buildResponse(nameFor(i, false), i)));
+            DNSQuestion question = DNSQuestion.decodeQuestion(reader, 0);
+            cache.insert(question, new DNSRecord[]{DNSRecord.decodeRecord(reader, 0)}, CachedResponse.fromPacket(reader, cache.isRoundRobin()));
+        }
+    }
+}
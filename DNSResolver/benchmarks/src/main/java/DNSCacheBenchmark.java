@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares cache hit rate and lookup cost for freshly decoded questions using
+ * the old question key (String[] compared by identity) and the canonical DNSName key.
+ * Every lookup decodes a real query packet, the same way the server's receive loop does,
+ * and some queries use mixed case like resolvers doing 0x20 randomization.
+ *
+ * Run with: java -cp target/benchmarks.jar DNSCacheBenchmark [names] [lookups]
+ */
+public class DNSCacheBenchmark {
+    private static final int ROUNDS = 5; // The first rounds warm up the JIT
+
+    // The question key as it used to be: Objects.equals/Objects.hash on the String[] array
+    private record LegacyQuestionKey(String[] domainName, int qtype, int qclass) { }
+
+    public static void main(String[] args) throws IOException {
+        int nameCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+        int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000;
+        Random random = new Random(42);
+
+        // One cached A record per name, inserted the way the server does after an upstream reply
+        HashMap<LegacyQuestionKey, DNSRecord> legacyCache = new HashMap<>();
+        DNSCache cache = new DNSCache(nameCount);
+        DNSPacketReader reader = new DNSPacketReader();
+        for (int i = 0; i < nameCount; i++) {
+            reader.wrap(ByteBuffer.wrap(BenchmarkFixtures.buildResponse(BenchmarkFixtures.nameFor(i, false), i)));
+            DNSRecord record = DNSRecord.decodeRecord(reader, 0);
+            legacyCache.put(new LegacyQuestionKey(reader.readLabels(reader.getQuestionNameOffset(0)), 1, 1), record);
+            cache.insert(DNSQuestion.decodeQuestion(reader, 0), new DNSRecord[]{record});
+        }
+
+        // The query stream: Zipf-distributed popularity, a quarter of the queries in mixed case
+        Zipf popularity = new Zipf(nameCount, 1.0);
+        ByteBuffer[] queries = new ByteBuffer[lookups];
+        for (int i = 0; i < lookups; i++) {
+            int rank = popularity.sample(random.nextDouble());
+            queries[i] = ByteBuffer.wrap(BenchmarkFixtures.buildQuery(BenchmarkFixtures.nameFor(rank, random.nextInt(4) == 0), i));
+        }
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            long legacyHits = 0;
+            long start = System.nanoTime();
+            for (ByteBuffer query : queries) {
+                reader.wrap(query);
+                String[] labels = reader.readLabels(reader.getQuestionNameOffset(0));
+                if (legacyCache.get(new LegacyQuestionKey(labels, reader.getQuestionType(0), reader.getQuestionClass(0))) != null) {
+                    legacyHits++;
+                }
+            }
+            long legacyNanos = System.nanoTime() - start;
+
+            long hits = 0;
+            start = System.nanoTime();
+            for (ByteBuffer query : queries) {
+                reader.wrap(query);
+                if (cache.query(DNSQuestion.decodeKey(reader, 0)) != null) {
+                    hits++;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: before hit rate %5.1f%% %6.1f ns/lookup | after hit rate %5.1f%% %6.1f ns/lookup%n",
+                    round,
+                    100.0 * legacyHits / lookups, (double) legacyNanos / lookups,
+                    100.0 * hits / lookups, (double) nanos / lookups);
+        }
+        cache.close();
+    }
+}
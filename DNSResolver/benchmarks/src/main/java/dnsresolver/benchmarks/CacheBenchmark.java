@@ -0,0 +1,101 @@
+package dnsresolver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * DNSCache.query and insert on a full cache, from one thread and from every core at once,
+ * on the heap and off it. Each thread looks names up in its own random order.
+ * Run with -t to try other thread counts for the single-method benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheBenchmark {
+    @Param("100000")
+    public int names;
+
+    @Param({"0", "64"})
+    public int offHeapMb; // 0 = entries on the heap
+
+    private IntFunction<Object> query;
+    private IntFunction<Object> insert;
+
+    @Setup
+    public void setUp() throws Exception {
+        Object cache = Fixtures.INSTANCE.newCache(names, (long) offHeapMb << 20);
+        query = Fixtures.INSTANCE.cacheQuery(cache, names);
+        insert = Fixtures.INSTANCE.cacheInsert(cache, names);
+    }
+
+    /**
+     * Each thread's own walk through the names.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicLong SEEDS = new AtomicLong();
+        private int[] order;
+        private int next;
+
+        @Setup
+        public void setUp(CacheBenchmark benchmark) {
+            order = Fixtures.randomOrder(benchmark.names, SEEDS.incrementAndGet());
+        }
+
+        int next() {
+            return order[next++ & (order.length - 1)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object queryOneThread(Cursor cursor) {
+        return query.apply(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object queryAllThreads(Cursor cursor) {
+        return query.apply(cursor.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object insertAllThreads(Cursor cursor) {
+        return insert.apply(cursor.next());
+    }
+
+    // Mostly reads with refreshes mixed in, like a busy server
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Object readWriteQuery(Cursor cursor) {
+        return query.apply(cursor.next());
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public Object readWriteInsert(Cursor cursor) {
+        return insert.apply(cursor.next());
+    }
+}
@@ -0,0 +1,50 @@
+package dnsresolver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DNSMessage.decodeMessage and toBytes (with name compression) on wire captures of typical
+ * queries and responses, see BenchmarkFixtures.CAPTURES.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark {
+    @Param({"query", "cname-a", "cname-aaaa", "mx", "nxdomain"})
+    public String capture;
+
+    private Callable<Object> decode;
+    private Callable<Object> encode;
+
+    @Setup
+    public void setUp() throws Exception {
+        decode = Fixtures.INSTANCE.decodeMessage(capture);
+        encode = Fixtures.INSTANCE.encodeMessage(capture);
+    }
+
+    @Benchmark
+    public Object decodeMessage() throws Exception {
+        return decode.call();
+    }
+
+    @Benchmark
+    public Object toBytes() throws Exception {
+        return encode.call();
+    }
+}
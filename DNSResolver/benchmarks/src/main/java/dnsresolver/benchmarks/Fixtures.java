@@ -0,0 +1,87 @@
+package dnsresolver.benchmarks;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.function.IntFunction;
+
+/**
+ * What the benchmarks need from the resolver, implemented by BenchmarkFixtures next to the resolver's classes.
+ * Those live in the default package, which no class in a named package can refer to, and JMH will not run
+ * benchmarks from the default package. So the implementation is loaded by name once, into INSTANCE,
+ * and every call after that is an ordinary, type-checked interface call.
+ * Only used while setting up, never inside a measured method.
+ */
+public interface Fixtures {
+    Fixtures INSTANCE = load();
+
+    int ORDER_LENGTH = 1 << 16; // Long enough that the access pattern does not repeat in the caches
+
+    /**
+     * Decodes a capture into a DNSMessage, the way the workers decode every upstream reply.
+     * @param capture The name of a capture in BenchmarkFixtures.CAPTURES.
+     * @return Decodes the capture once per call and returns the message.
+     */
+    Callable<Object> decodeMessage(String capture);
+
+    /**
+     * Encodes a decoded capture with name compression, the way every miss is answered.
+     * @param capture The name of a capture in BenchmarkFixtures.CAPTURES.
+     * @return Encodes the message once per call and returns the bytes.
+     */
+    Callable<Object> encodeMessage(String capture) throws IOException;
+
+    /**
+     * Creates a cache holding one A record for each of the names host0.example.com to host(n-1).example.com.
+     * @param names How many names to cache.
+     * @param offHeapBytes Slab memory for an off-heap cache, 0 for an on-heap one.
+     * @return The cache, to pass to cacheQuery and cacheInsert.
+     */
+    Object newCache(int names, long offHeapBytes) throws IOException;
+
+    /**
+     * @param cache A cache from newCache.
+     * @param names How many names it was filled with.
+     * @return Looks up name i (modulo names) and returns its records.
+     */
+    IntFunction<Object> cacheQuery(Object cache, int names) throws IOException;
+
+    /**
+     * @param cache A cache from newCache.
+     * @param names How many names it was filled with.
+     * @return Replaces the records of name i (modulo names), as a refresh does, and returns null.
+     */
+    IntFunction<Object> cacheInsert(Object cache, int names) throws IOException;
+
+    /**
+     * Starts a server on ephemeral ports with a warm cache, for driving the receive thread's hit path.
+     * Nothing ever goes upstream, and answers go to a socket nobody reads.
+     * @param names How many names to cache.
+     * @param offHeapBytes Slab memory for an off-heap cache, 0 for an on-heap one.
+     * @return Answers a query for name i (modulo names) and returns null. Only one thread may call it,
+     *         like the receive loop.
+     */
+    IntFunction<Object> serverHitPath(int names, long offHeapBytes) throws IOException;
+
+    /**
+     * @param names How many names there are.
+     * @param seed Seed for this thread's order.
+     * @return Name indexes in random order, ORDER_LENGTH of them (a power of two, to wrap with a mask).
+     */
+    static int[] randomOrder(int names, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] order = new int[ORDER_LENGTH];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(names);
+        }
+        return order;
+    }
+
+    private static Fixtures load() {
+        try {
+            return (Fixtures) Class.forName("BenchmarkFixtures").getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkFixtures is missing from the benchmark jar", e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package dnsresolver.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * The receive thread's whole path for a cache hit in DNSServer: parse the request, look it up,
+ * patch the cached answer and send it over a real UDP socket. There is one receive thread, so one benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(1)
+public class HitPathBenchmark {
+    @Param("100000")
+    public int names;
+
+    @Param({"0", "64"})
+    public int offHeapMb; // 0 = entries on the heap
+
+    private IntFunction<Object> answer;
+    private int[] order;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        answer = Fixtures.INSTANCE.serverHitPath(names, (long) offHeapMb << 20);
+        order = Fixtures.randomOrder(names, 1);
+    }
+
+    @Benchmark
+    public Object cacheHit() {
+        return answer.apply(order[next++ & (order.length - 1)]);
+    }
+}
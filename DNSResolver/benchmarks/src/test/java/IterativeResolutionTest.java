@@ -0,0 +1,372 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs IterativeResolver against fake name servers on loopback addresses: the FakeAuthorities hierarchy
+ * for plain referrals with glue, and scripted servers for CNAMEs, delegations without glue,
+ * and the referral, CNAME and glue-lookup chains that must be cut off.
+ */
+class IterativeResolutionTest {
+    private static final int TYPE_A = 1;
+    private static final int FLAG_AA = 0x0400;
+    private static final long TIMEOUT_MILLIS = 500;
+
+    @Test
+    void followsReferralsWithGlueAndCachesTheDelegation() throws Exception {
+        int port = freePort();
+        try (FakeAuthorities authorities = new FakeAuthorities(port, 0, 3600, 0);
+             IterativeResolver resolver = resolver("127.0.0.1", port)) {
+            DNSMessage first = resolve(resolver, "host1.example.com");
+            assertEquals(DNSHeader.RCODE_NOERROR, first.getHeader().getRcode());
+            assertEquals(1, first.getAnswers().length);
+            assertEquals(TYPE_A, first.getAnswers()[0].getType());
+            assertEquals(2, metric(resolver, "dns_iterative_referrals_total"), "root to com, com to example.com");
+
+            DNSMessage second = resolve(resolver, "host2.example.com");
+            assertEquals(1, second.getAnswers().length);
+            assertEquals(2, metric(resolver, "dns_iterative_referrals_total"), "no referral needed the second time");
+            assertTrue(metric(resolver, "dns_delegation_cache_hits_total") >= 1, "started at example.com's servers");
+            long[] counts = authorities.getAuthoritativeCounts();
+            assertEquals(2, counts[0] + counts[1], "both questions reached the authoritative servers through the glue");
+        }
+    }
+
+    @Test
+    void chasesCnamesIntoOtherZones() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             ScriptedServer authority = new ScriptedServer(11, port, IterativeResolutionTest::authority);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            DNSMessage reply = resolve(resolver, "www.alias.test");
+
+            DNSRecord[] answers = reply.getAnswers();
+            assertEquals(2, answers.length);
+            assertEquals(DNSRecord.TYPE_CNAME, answers[0].getType());
+            assertEquals("host.real.test", answers[0].getTargetName().toString());
+            assertEquals(TYPE_A, answers[1].getType());
+            assertArrayEquals(new byte[]{(byte) 192, 0, 2, 1}, answers[1].getData());
+        }
+    }
+
+    @Test
+    void looksUpNameServersThatCameWithoutGlue() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             ScriptedServer authority = new ScriptedServer(11, port, IterativeResolutionTest::authority);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            DNSMessage reply = resolve(resolver, "www.glueless.test");
+
+            assertEquals(1, reply.getAnswers().length);
+            assertEquals("www.glueless.test", reply.getAnswers()[0].getName().toString());
+            assertTrue(authority.questions().contains("ns.provider.test"), "the name server's address was looked up");
+            assertTrue(authority.questions().contains("www.glueless.test"), "then the name server was asked");
+        }
+    }
+
+    @Test
+    void ignoresGlueFromOutsideTheZone() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             ScriptedServer authority = new ScriptedServer(11, port, IterativeResolutionTest::authority);
+             ScriptedServer poisoner = new ScriptedServer(12, port, IterativeResolutionTest::poisoner);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            DNSMessage poisoned = resolve(resolver, "www.sub.poisoned.test"); // Claims ns.provider.test is at 127.0.0.99
+            assertEquals(1, poisoned.getAnswers().length);
+            assertTrue(authority.questions().contains("www.sub.poisoned.test"), "found ns.provider.test through the root instead");
+
+            DNSMessage reply = resolve(resolver, "www.glueless.test"); // Also served by ns.provider.test
+            assertEquals(1, reply.getAnswers().length);
+            assertTrue(authority.questions().contains("www.glueless.test"), "the bad glue was not cached either");
+        }
+    }
+
+    @Test
+    void stopsFollowingEndlessReferrals() throws Exception {
+        int port = freePort();
+        AtomicInteger steps = new AtomicInteger();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             ScriptedServer deeper = new ScriptedServer(12, port, name -> deeper(name, steps.getAndIncrement()));
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            String name = "x.".repeat(30) + "deep.test";
+            IOException failure = failure(resolver, name);
+            assertTrue(failure.getMessage().startsWith("Too many referrals"), failure.getMessage());
+        }
+    }
+
+    @Test
+    void treatsAReferralBackToTheSameZoneAsNoData() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             ScriptedServer lame = new ScriptedServer(13, port, IterativeResolutionTest::lame);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            DNSMessage reply = resolve(resolver, "www.lame.test");
+
+            assertEquals(DNSHeader.RCODE_NOERROR, reply.getHeader().getRcode());
+            assertEquals(0, reply.getAnswers().length);
+            assertEquals(1, lame.questions().size(), "asked once, not over and over");
+        }
+    }
+
+    @Test
+    void stopsFollowingACnameLoop() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            IOException failure = failure(resolver, "a.cname.test");
+            assertTrue(failure.getMessage().startsWith("CNAME chain too long"), failure.getMessage());
+        }
+    }
+
+    @Test
+    void stopsNestingLookupsForGluelessNameServers() throws Exception {
+        int port = freePort();
+        try (ScriptedServer root = new ScriptedServer(10, port, IterativeResolutionTest::root);
+             IterativeResolver resolver = resolver("127.0.0.10", port)) {
+            IOException failure = failure(resolver, "www.d0.test"); // Served by ns.d1.test, served by ns.d2.test, ...
+            assertTrue(failure.getMessage().startsWith("No name server addresses"), failure.getMessage());
+            assertTrue(root.questions().stream().noneMatch(question -> question.endsWith(".d4.test")),
+                    "gave up after a few nested lookups: " + root.questions());
+        }
+    }
+
+    // ---- The scripted name servers ----
+
+    // 127.0.0.10: the root, and authoritative for the CNAMEs
+    private static Reply root(String name) {
+        if (name.equals("www.alias.test")) {
+            return Reply.authoritative().answer(cname(name, "host.real.test"));
+        }
+        if (name.endsWith(".cname.test")) { // a and b point at each other
+            return Reply.authoritative().answer(cname(name, name.startsWith("a.") ? "b.cname.test" : "a.cname.test"));
+        }
+        for (String zone : new String[]{"real.test", "provider.test"}) {
+            if (name.endsWith("." + zone)) {
+                return Reply.referral().authority(ns(zone, "ns." + zone)).additional(a("ns." + zone, 11));
+            }
+        }
+        if (name.endsWith(".glueless.test")) {
+            return Reply.referral().authority(ns("glueless.test", "ns.provider.test"));
+        }
+        if (name.endsWith(".poisoned.test")) {
+            return Reply.referral().authority(ns("poisoned.test", "ns.poisoned.test")).additional(a("ns.poisoned.test", 12));
+        }
+        if (name.endsWith(".deep.test")) {
+            return Reply.referral().authority(ns("deep.test", "ns.deep.test")).additional(a("ns.deep.test", 12));
+        }
+        if (name.endsWith(".lame.test")) {
+            return Reply.referral().authority(ns("lame.test", "ns.lame.test")).additional(a("ns.lame.test", 13));
+        }
+        String[] labels = name.split("\\.");
+        if (labels.length >= 2 && labels[labels.length - 2].matches("d\\d+")) { // dN.test is served by ns.dN+1.test, no glue
+            int level = Integer.parseInt(labels[labels.length - 2].substring(1));
+            String zone = "d" + level + ".test";
+            return Reply.referral().authority(ns(zone, "ns.d" + (level + 1) + ".test"));
+        }
+        return Reply.authoritative().nxdomain();
+    }
+
+    // 127.0.0.11: authoritative for real.test, provider.test and glueless.test, every name exists
+    private static Reply authority(String name) {
+        return Reply.authoritative().answer(name.equals("ns.provider.test") ? a(name, 11) : a(name, new byte[]{(byte) 192, 0, 2, 1}));
+    }
+
+    // 127.0.0.12 for poisoned.test: delegates sub.poisoned.test to ns.provider.test, with glue it cannot speak for
+    private static Reply poisoner(String name) {
+        return Reply.referral().authority(ns("sub.poisoned.test", "ns.provider.test")).additional(a("ns.provider.test", 99));
+    }
+
+    // 127.0.0.12 for deep.test: refers to itself again one label further down each time it is asked
+    private static Reply deeper(String name, int step) {
+        String[] labels = name.split("\\.");
+        String zone = String.join(".", Arrays.copyOfRange(labels, labels.length - 3 - step, labels.length));
+        return Reply.referral().authority(ns(zone, "ns." + zone)).additional(a("ns." + zone, 12));
+    }
+
+    // 127.0.0.13 for lame.test: refers lame.test to itself again
+    private static Reply lame(String name) {
+        return Reply.referral().authority(ns("lame.test", "ns.lame.test")).additional(a("ns.lame.test", 13));
+    }
+
+    // ---- Helpers ----
+
+    private static IterativeResolver resolver(String root, int port) throws IOException {
+        return new IterativeResolver(List.of(new InetSocketAddress(root, port)), port, TIMEOUT_MILLIS, 1232);
+    }
+
+    private static DNSMessage resolve(IterativeResolver resolver, String name) throws Exception {
+        byte[] query = DNSMessage.buildQuery(new DNSQuestion(name.split("\\."), TYPE_A, 1)).toBytes();
+        return DNSMessage.decodeMessage(resolver.query(query).get(10, TimeUnit.SECONDS));
+    }
+
+    private static IOException failure(IterativeResolver resolver, String name) throws Exception {
+        try {
+            DNSMessage reply = resolve(resolver, name);
+            throw new AssertionError("Expected " + name + " to fail, got " + Arrays.toString(reply.getAnswers()));
+        } catch (ExecutionException e) {
+            return assertInstanceOf(IOException.class, e.getCause());
+        }
+    }
+
+    private static long metric(IterativeResolver resolver, String name) {
+        StringBuilder out = new StringBuilder();
+        resolver.appendMetrics(out);
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        throw new AssertionError("No metric " + name + " in " + out);
+    }
+
+    // A free UDP port; every server binds it on its own loopback address
+    private static int freePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+    // A record as owner name, type and data, all uncompressed
+    private record Record(String name, int type, byte[] data) {
+    }
+
+    private static Record a(String name, int loopback) {
+        return a(name, new byte[]{127, 0, 0, (byte) loopback});
+    }
+
+    private static Record a(String name, byte[] address) {
+        return new Record(name, TYPE_A, address);
+    }
+
+    private static Record ns(String zone, String nameServer) {
+        return new Record(zone, DNSRecord.TYPE_NS, wire(nameServer));
+    }
+
+    private static Record cname(String name, String target) {
+        return new Record(name, DNSRecord.TYPE_CNAME, wire(target));
+    }
+
+    private static byte[] wire(String name) {
+        return DNSName.fromLabels(name.split("\\.")).toWire();
+    }
+
+    // What a scripted server sends back: the flags and the three record sections
+    private static final class Reply {
+        private int flags = 0x8000; // A response
+        private final List<List<Record>> sections = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>()); // Answer, authority, additional
+
+        static Reply authoritative() {
+            Reply reply = new Reply();
+            reply.flags |= FLAG_AA;
+            return reply;
+        }
+
+        static Reply referral() {
+            return new Reply();
+        }
+
+        Reply nxdomain() {
+            flags |= DNSHeader.RCODE_NXDOMAIN;
+            return this;
+        }
+
+        Reply answer(Record record) {
+            sections.get(0).add(record);
+            return this;
+        }
+
+        Reply authority(Record record) {
+            sections.get(1).add(record);
+            return this;
+        }
+
+        Reply additional(Record record) {
+            sections.get(2).add(record);
+            return this;
+        }
+
+        byte[] encode(DNSPacketReader query) {
+            int questionEnd = query.questionSectionEnd();
+            ByteBuffer out = ByteBuffer.allocate(4096);
+            out.put(query.getBuffer().array(), query.getBase(), questionEnd);
+            out.putShort(2, (short) flags);
+            for (int section = 0; section < 3; section++) {
+                out.putShort(6 + 2 * section, (short) sections.get(section).size());
+                for (Record record : sections.get(section)) {
+                    out.put(wire(record.name)).putShort((short) record.type).putShort((short) 1).putInt(3600);
+                    out.putShort((short) record.data.length).put(record.data);
+                }
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+    }
+
+    // A name server on 127.0.0.<n> that answers each question as its script says, and remembers the questions
+    private static final class ScriptedServer implements Closeable {
+        private final DatagramChannel channel;
+        private final Function<String, Reply> script;
+        private final List<String> questions = new ArrayList<>();
+
+        ScriptedServer(int loopback, int port, Function<String, Reply> script) throws IOException {
+            this.script = script;
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) loopback}), port));
+            Thread receiver = new Thread(this::receive, "scripted-server-" + loopback);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        private void receive() {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            DNSPacketReader reader = new DNSPacketReader();
+            while (channel.isOpen()) {
+                try {
+                    buffer.clear();
+                    SocketAddress client = channel.receive(buffer);
+                    buffer.flip();
+                    reader.wrap(buffer);
+                    String name = String.join(".", reader.readLabels(reader.getQuestionNameOffset(0))).toLowerCase();
+                    synchronized (questions) {
+                        questions.add(name);
+                    }
+                    channel.send(ByteBuffer.wrap(script.apply(name).encode(reader)), client);
+                } catch (AsynchronousCloseException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Scripted server could not answer: " + e.getMessage());
+                }
+            }
+        }
+
+        List<String> questions() {
+            synchronized (questions) {
+                return new ArrayList<>(questions);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
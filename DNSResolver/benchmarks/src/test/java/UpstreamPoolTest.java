@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs UpstreamPool against two FakeUpstreams on the loopback interface, one fast and one slow or dropping:
+ * ranking by smoothed RTT, hedged copies after the latency percentile, and failing over from a resolver
+ * that stopped answering and trying it again later.
+ */
+class UpstreamPoolTest {
+    private static final int TYPE_A = 1;
+
+    @Test
+    void trafficMovesToTheFastResolver() throws Exception {
+        try (FakeUpstream slow = new FakeUpstream(0, 30, 0, 0, 300, 0);
+             FakeUpstream fast = new FakeUpstream(0, 0, 0, 0, 300, 0);
+             UpstreamPool pool = new UpstreamPool(List.of(slow.getAddress(), fast.getAddress()), 1, 1000, 0, 0)) {
+            for (int i = 0; i < 20; i++) {
+                assertAnswers(pool.query(query("host" + i)).get(5, TimeUnit.SECONDS));
+            }
+
+            assertEquals(1, slow.getReceivedCount(), "only the first query, before anything was measured");
+            assertEquals(19, fast.getReceivedCount());
+            assertEquals(0, pool.getHedgedCount(), "hedging is off");
+        }
+    }
+
+    @Test
+    void hedgedCopyGoesOutAfterThePercentileAndTheFirstReplyWins() throws Exception {
+        long timeoutMillis = 1000;
+        try (FakeUpstream slow = new FakeUpstream(0, 50, 0, 0, 300, 0);
+             FakeUpstream fast = new FakeUpstream(0, 0, 0, 0, 300, 0);
+             UpstreamPool pool = new UpstreamPool(List.of(slow.getAddress(), fast.getAddress()), 1, timeoutMillis, 0, 0.9)) {
+            // The first query measures the slow one, the rest give the fast one enough samples for a percentile
+            for (int i = 0; i < 12; i++) {
+                assertAnswers(pool.query(query("warm" + i)).get(5, TimeUnit.SECONDS));
+            }
+
+            fast.setLoss(1.0); // Still ranked first, but never answers again
+            long hedgedBefore = pool.getHedgedCount();
+            long slowBefore = slow.getReceivedCount();
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                assertAnswers(pool.query(query("hedged" + i)).get(5, TimeUnit.SECONDS));
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue(elapsedMillis < timeoutMillis / 2,
+                        "answered by the hedged copy after " + elapsedMillis + " ms, not after the fast one timed out");
+            }
+            assertEquals(5, pool.getHedgedCount() - hedgedBefore, "one hedged copy per query");
+            assertEquals(5, slow.getReceivedCount() - slowBefore);
+        }
+    }
+
+    @Test
+    void failingResolverIsFailedOverAndProbedAgainLater() throws Exception {
+        long probeIntervalMillis = 1000;
+        try (FakeUpstream failing = new FakeUpstream(0, 0, 0, 1.0, 300, 0); // Drops everything
+             FakeUpstream healthy = new FakeUpstream(0, 5, 0, 0, 300, 0);
+             UpstreamPool pool = new UpstreamPool(List.of(failing.getAddress(), healthy.getAddress()), 1, 50, 0, 0,
+                     probeIntervalMillis)) {
+            // Every query times out on the failing resolver and fails over, until it counts as unhealthy
+            for (int i = 0; i < 10; i++) {
+                assertAnswers(pool.query(query("failover" + i)).get(5, TimeUnit.SECONDS));
+            }
+            long failingBefore = failing.getReceivedCount();
+            assertTrue(failingBefore < 10, "skipped once unhealthy, got " + failingBefore + " of 10");
+            for (int i = 0; i < 5; i++) {
+                assertAnswers(pool.query(query("skipped" + i)).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(failingBefore, failing.getReceivedCount(), "no traffic while unhealthy");
+
+            failing.setLoss(0);
+            Thread.sleep(probeIntervalMillis + 100);
+            assertAnswers(pool.query(query("probe")).get(5, TimeUnit.SECONDS));
+            assertEquals(failingBefore + 1, failing.getReceivedCount(), "tried again after the probe interval");
+        }
+    }
+
+    // An A query for <host>.example.com
+    private static byte[] query(String host) throws IOException {
+        return DNSMessage.buildQuery(new DNSQuestion(new String[]{host, "example", "com"}, TYPE_A, 1)).toBytes();
+    }
+
+    // Checks a reply is an answer from a fake upstream
+    private static void assertAnswers(byte[] reply) throws IOException {
+        assertEquals(1, DNSMessage.decodeMessage(reply).getAnswers().length);
+    }
+}
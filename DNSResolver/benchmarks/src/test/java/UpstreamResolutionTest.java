@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the forwarding resolver against FakeUpstream on the loopback interface:
+ * retries and timeouts of the upstream client, the rewriting of query IDs, and the coalescing
+ * of concurrent misses for the same question in DNSServer.
+ */
+class UpstreamResolutionTest {
+    private static final int TYPE_A = 1;
+
+    @Test
+    void silentUpstreamIsRetriedThenTimesOut() throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(0, 0, 0, 1.0, 300, 0); // Drops everything
+             UpstreamClient client = new UpstreamClient(upstream.getAddress(), 1, 20, 2)) {
+            CompletableFuture<byte[]> reply = client.query(query("silent", 0x0101));
+
+            ExecutionException failure = null;
+            try {
+                reply.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failure = e;
+            }
+            assertInstanceOf(SocketTimeoutException.class, failure.getCause());
+            assertEquals(3, upstream.getReceivedCount(), "the first attempt and two retries");
+            assertEquals(0, client.inFlight());
+        }
+    }
+
+    @Test
+    void slowUpstreamIsRetriedAndTheFirstReplyWins() throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(0, 150, 0, 0, 300, 0);
+             UpstreamClient client = new UpstreamClient(upstream.getAddress(), 1, 50, 3)) {
+            byte[] reply = client.query(query("slow", 0x0202)).get(5, TimeUnit.SECONDS);
+
+            assertAnswers(reply, "slow", 0x0202);
+            assertTrue(upstream.getReceivedCount() >= 2, "resent before the first reply came back");
+            assertEquals(0, client.inFlight());
+        }
+    }
+
+    @Test
+    void queriesWithTheSameIdAreKeptApart() throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(0, 5, 5, 0, 300, 0);
+             UpstreamClient client = new UpstreamClient(upstream.getAddress(), 4, 1000, 2)) {
+            List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                replies.add(client.query(query("host" + i, 0x4242))); // Every caller picked the same ID
+            }
+            for (int i = 0; i < replies.size(); i++) {
+                assertAnswers(replies.get(i).get(5, TimeUnit.SECONDS), "host" + i, 0x4242);
+            }
+            assertEquals(100, upstream.getReceivedCount(), "one upstream query each, no collisions");
+        }
+    }
+
+    @Test
+    void concurrentMissesShareOneUpstreamFetch() throws Exception {
+        try (FakeUpstream upstream = new FakeUpstream(0, 200, 0, 0, 300, 0);
+             DatagramSocket client = new DatagramSocket()) {
+            DNSServerConfig config = new DNSServerConfig();
+            config.port = 0; // Any free port, UDP and TCP alike
+            config.upstreams = List.of(upstream.getAddress());
+            DNSServer server = new DNSServer(config);
+            server.open();
+            Thread receiver = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    System.err.println("Server stopped: " + e.getMessage());
+                }
+            }, "dns-server");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            int clients = 20;
+            for (int id = 1; id <= clients; id++) {
+                byte[] request = query("popular", id);
+                client.send(new DatagramPacket(request, request.length, address)); // All before the upstream answers
+            }
+
+            boolean[] answered = new boolean[clients + 1];
+            client.setSoTimeout(5000);
+            for (int i = 0; i < clients; i++) {
+                DatagramPacket packet = new DatagramPacket(new byte[DNSMessage.MAX_PLAIN_UDP_SIZE], DNSMessage.MAX_PLAIN_UDP_SIZE);
+                client.receive(packet);
+                byte[] reply = Arrays.copyOf(packet.getData(), packet.getLength());
+                int id = ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF);
+                assertAnswers(reply, "popular", id);
+                answered[id] = true;
+            }
+            for (int id = 1; id <= clients; id++) {
+                assertTrue(answered[id], "client " + id + " was answered");
+            }
+            assertEquals(1, upstream.getReceivedCount(), "a single upstream fetch");
+            assertEquals(clients - 1, server.getCoalescedQueries());
+        }
+    }
+
+    // An A query for <host>.example.com with the given ID
+    private static byte[] query(String host, int id) throws IOException {
+        byte[] bytes = DNSMessage.buildQuery(new DNSQuestion(new String[]{host, "example", "com"}, TYPE_A, 1)).toBytes();
+        bytes[0] = (byte) (id >> 8);
+        bytes[1] = (byte) id;
+        return bytes;
+    }
+
+    // Checks a reply carries the caller's ID and answers the question that was asked
+    private static void assertAnswers(byte[] reply, String host, int id) throws IOException {
+        DNSMessage message = DNSMessage.decodeMessage(reply);
+        assertEquals(id, ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF), "the caller's ID is restored");
+        assertEquals(host, message.getQuestions()[0].getDomainName()[0]);
+        assertEquals(1, message.getAnswers().length);
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves the cache to a compact binary file and loads it back, so a restarted server
+ * starts warm instead of sending every popular name upstream again.
+ *
+ * File layout (big-endian):
+ *   header: magic "DNSC", version, time the snapshot was taken (epoch millis)
+ *   entries until the end of the file:
+ *     kind (1 byte), absolute expiry (8 bytes), message length (2 bytes), message
+ * Each message is a DNS response in wire format holding the question and its answer,
+ * with TTLs counted down to the snapshot time. Loading maps the file into memory and
+ * reads every entry in place, skipping expired ones without decoding them.
+ * Cached packets are restored as packets only; the cache decodes their records if they are asked for.
+ */
+public class CacheSnapshot {
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int ENTRY_HEADER_SIZE = 1 + 8 + 2;
+
+    private static final int KIND_RECORDS = 1;  // Answer records only, restored as records
+    private static final int KIND_RESPONSE = 2; // Encoded response packet, restored as it is
+
+    /**
+     * Writes every live cache entry to a file. The file is replaced atomically,
+     * so a crash halfway leaves the previous snapshot in place, and a failed write leaves no temp file behind.
+     * Two writes to the same file must not run at once, as they share the temp file.
+     * @param cache The cache to save.
+     * @param file Where to write the snapshot.
+     * @return The number of entries written.
+     * @throws IOException If the file cannot be written.
+     */
+    public static int write(DNSCache cache, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long now = System.currentTimeMillis();
+        int written;
+        try {
+            written = writeEntries(cache, temp, now);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteFailure) {
+                e.addSuppressed(deleteFailure);
+            }
+            throw e;
+        }
+        return written;
+    }
+
+    // Writes the header and every live entry to a new file, returning how many entries it holds
+    private static int writeEntries(DNSCache cache, Path temp, long now) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+        DNSPacketWriter writer = new DNSPacketWriter();
+        int[] written = new int[1];
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+
+            cache.forEach((question, records, response, expiresAt) -> {
+                message.clear();
+                int kind;
+                int length;
+                if (response != null) { // The packet already holds the answers in wire format
+                    length = response.writeSnapshot(message, now);
+                    kind = KIND_RESPONSE;
+                } else {
+                    writer.reset(message);
+                    CachedResponse.writeRecords(writer, question, records, now);
+                    length = writer.position();
+                    kind = KIND_RECORDS;
+                }
+
+                out.writeByte(kind);
+                out.writeLong(expiresAt);
+                out.writeShort(length);
+                out.write(message.array(), 0, length);
+                written[0]++;
+            });
+        }
+        return written[0];
+    }
+
+    /**
+     * Loads a snapshot into the cache. Entries that expired since it was written are skipped.
+     * @param file The snapshot to read.
+     * @param cache The cache to fill.
+     * @return The number of entries loaded.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    public static int load(Path file, DNSCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.remaining() < 16 || map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            long snapshotAt = map.getLong();
+            long now = System.currentTimeMillis();
+
+            DNSPacketReader reader = new DNSPacketReader();
+            int loaded = 0;
+            while (map.hasRemaining()) {
+                if (map.remaining() < ENTRY_HEADER_SIZE) {
+                    throw new IOException("Truncated snapshot entry at offset " + map.position());
+                }
+                int kind = map.get();
+                long expiresAt = map.getLong();
+                int length = map.getShort() & 0xFFFF;
+                if (map.remaining() < length) {
+                    throw new IOException("Truncated snapshot entry at offset " + map.position());
+                }
+                int start = map.position();
+                map.position(start + length);
+                if (expiresAt <= now) {
+                    continue; // Expired while the server was down
+                }
+
+                // The records' TTLs were current at snapshot time, so they count down from there
+                reader.wrap(map.slice(start, length));
+                DNSQuestion question = DNSQuestion.decodeKey(reader, 0);
+                if (kind == KIND_RESPONSE) {
+                    cache.insertResponse(question, CachedResponse.fromPacket(reader, cache.isRoundRobin(), snapshotAt));
+                } else if (kind == KIND_RECORDS) {
+                    DNSRecord[] records = new DNSRecord[reader.getAnswerCount()];
+                    for (int i = 0; i < records.length; i++) {
+                        records[i] = DNSRecord.decodeRecord(reader, i, snapshotAt);
+                    }
+                    cache.insert(question, records);
+                } else {
+                    throw new IOException("Unknown snapshot entry kind " + kind);
+                }
+                loaded++;
+            }
+            return loaded;
+        }
+    }
+}
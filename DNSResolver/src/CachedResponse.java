@@ -0,0 +1,481 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A complete, already-encoded answer for one question.
+ * Serving it only takes a copy of the packet plus a few patches: the client's transaction ID,
+ * the client's spelling of the question name, and every TTL counted down to what is left.
+ * No decoding or encoding of records happens on a hit.
+ * The upstream's EDNS0 OPT record is dropped, since each client gets its own OPT, or none.
+ *
+ * Negative answers (NXDOMAIN, or NOERROR with no answers) are cached the same way.
+ * Their lifetime comes from the SOA in the authority section: the SOA's TTL capped
+ * at its MINIMUM field, as RFC 2308 section 5 says.
+ *
+ * With round-robin on, the answer RRset is rotated on every hit by moving record data
+ * between slots. This only happens when every record in the RRset has the same data length
+ * (A and AAAA always do), so the packet layout never changes.
+ *
+ * A response can also be flattened into a byte entry and served straight from there,
+ * which is how the off-heap cache keeps it (see SlabStore).
+ */
+public class CachedResponse {
+    private static final int SOA_TYPE = 6;  // Start of authority, carries the negative caching TTL
+
+    // Flattened entry layout: fixed fields, then the TTL offsets, TTLs, rotating data offsets and the packet
+    private static final int ENTRY_CREATED_AT = 0;        // long
+    private static final int ENTRY_PACKET_LENGTH = 8;     // unsigned short
+    private static final int ENTRY_QUESTION_END = 10;     // unsigned short
+    private static final int ENTRY_RECORD_COUNT = 12;     // unsigned short
+    private static final int ENTRY_RRSET_COUNT = 14;      // unsigned short
+    private static final int ENTRY_RRSET_DATA_LENGTH = 16; // unsigned short
+    private static final int ENTRY_HEADER_SIZE = 18;
+
+    private final byte[] packet;     // The response as received from the upstream
+    private final int questionEnd;   // Offset just past the question section
+    private final int[] ttlOffsets;  // Where each record's TTL field sits in the packet
+    private final int[] ttls;        // TTL of each record when the response was received
+    private final long createdAt;    // When the response was received
+    private final long expiresAt;    // When the shortest TTL runs out
+    private final int[] rrsetDataOffsets; // Data of each answer record that rotates, empty if none do
+    private final int rrsetDataLength;    // Data length shared by the rotating records
+    private final AtomicInteger rotation = new AtomicInteger(); // Round-robin position
+
+    private CachedResponse(byte[] packet, int questionEnd, int[] ttlOffsets, int[] ttls, long createdAt,
+                           int[] rrsetDataOffsets, int rrsetDataLength) {
+        this.packet = packet;
+        this.rrsetDataOffsets = rrsetDataOffsets;
+        this.rrsetDataLength = rrsetDataLength;
+        this.questionEnd = questionEnd;
+        this.ttlOffsets = ttlOffsets;
+        this.ttls = ttls;
+        this.createdAt = createdAt;
+
+        int minTtl = Integer.MAX_VALUE;
+        for (int ttl : ttls) {
+            minTtl = Math.min(minTtl, ttl);
+        }
+        this.expiresAt = createdAt + (ttls.length == 0 ? 0 : minTtl * 1000L);
+    }
+
+    /**
+     * Captures a single-question response a reader has validated, without rotation.
+     * @param reader A reader wrapped around the upstream response.
+     * @return The cacheable response.
+     * @throws IOException If the response does not have exactly one question.
+     */
+    public static CachedResponse fromPacket(DNSPacketReader reader) throws IOException {
+        return fromPacket(reader, false);
+    }
+
+    /**
+     * Captures a single-question response a reader has validated.
+     * @param reader A reader wrapped around the upstream response.
+     * @param roundRobin Whether to rotate the answer RRset every time the response is written.
+     * @return The cacheable response.
+     * @throws IOException If the response does not have exactly one question, or its OPT record is not last.
+     */
+    public static CachedResponse fromPacket(DNSPacketReader reader, boolean roundRobin) throws IOException {
+        return fromPacket(reader, roundRobin, System.currentTimeMillis());
+    }
+
+    /**
+     * Captures a single-question response whose TTLs started counting at a given time,
+     * e.g. one read back from a snapshot.
+     * @param reader A reader wrapped around the response.
+     * @param roundRobin Whether to rotate the answer RRset every time the response is written.
+     * @param createdAt When the TTLs in the packet were current, in milliseconds since the epoch.
+     * @return The cacheable response.
+     * @throws IOException If the response does not have exactly one question, or its OPT record is not last.
+     */
+    public static CachedResponse fromPacket(DNSPacketReader reader, boolean roundRobin, long createdAt) throws IOException {
+        if (reader.getQuestionCount() != 1) {
+            throw new IOException("Only single-question responses can be cached as packets");
+        }
+
+        // Cut off the OPT record, it is always the last one in practice
+        int recordCount = reader.recordCount();
+        int length = reader.getLength();
+        int opt = reader.findOptRecord();
+        if (opt >= 0) {
+            if (opt != recordCount - 1) {
+                throw new IOException("OPT record is not the last record");
+            }
+            recordCount--;
+            length = reader.getRecordNameOffset(opt);
+        }
+
+        byte[] packet = new byte[length];
+        reader.getBuffer().get(reader.getBase(), packet);
+        if (opt >= 0) {
+            int additionalCount = reader.getAdditionalCount() - 1;
+            packet[10] = (byte) (additionalCount >> 8);
+            packet[11] = (byte) additionalCount;
+        }
+
+        int[] ttlOffsets = new int[recordCount];
+        int[] ttls = new int[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            ttlOffsets[i] = reader.getRecordTtlOffset(i);
+            ttls[i] = Math.max(0, reader.getRecordTtl(i)); // Negative TTLs are treated as 0 (RFC 2181)
+            if (reader.getRecordType(i) == SOA_TYPE && isNegative(reader) && isAuthority(reader, i)) {
+                ttls[i] = Math.min(ttls[i], soaMinimum(reader, i));
+            }
+        }
+
+        // The RRset is the run of answers at the end sharing the question's type, owner name and data length
+        int rrsetStart = reader.getAnswerCount();
+        if (roundRobin) {
+            int last = reader.getAnswerCount() - 1;
+            while (rrsetStart > 0 && reader.getRecordType(rrsetStart - 1) == reader.getQuestionType(0)
+                    && reader.getRecordDataLength(rrsetStart - 1) == reader.getRecordDataLength(last)
+                    && DNSName.fromPacket(reader, reader.getRecordNameOffset(rrsetStart - 1))
+                            .equals(DNSName.fromPacket(reader, reader.getRecordNameOffset(last)))) {
+                rrsetStart--;
+            }
+        }
+        int[] rrsetDataOffsets = new int[reader.getAnswerCount() - rrsetStart > 1 ? reader.getAnswerCount() - rrsetStart : 0];
+        for (int i = 0; i < rrsetDataOffsets.length; i++) {
+            rrsetDataOffsets[i] = reader.getRecordDataOffset(rrsetStart + i);
+        }
+
+        return new CachedResponse(packet, reader.questionSectionEnd(),
+                ttlOffsets, ttls, createdAt,
+                rrsetDataOffsets, (rrsetDataOffsets.length > 0) ? reader.getRecordDataLength(rrsetStart) : 0);
+    }
+
+    /**
+     * Builds a response packet holding answer records, with their TTLs counted down to now,
+     * for caches that keep everything as packets.
+     * @param question The question the records answer.
+     * @param records The answer records. Must not be empty.
+     * @param roundRobin Whether to rotate the answer RRset every time the response is written.
+     * @return The cacheable response.
+     * @throws IOException If the records do not fit in a DNS message.
+     */
+    public static CachedResponse fromRecords(DNSQuestion question, DNSRecord[] records, boolean roundRobin) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+        DNSPacketWriter writer = new DNSPacketWriter();
+        writer.reset(buffer);
+        writeRecords(writer, question, records, now);
+
+        DNSPacketReader reader = new DNSPacketReader();
+        reader.wrap(buffer.flip());
+        return fromPacket(reader, roundRobin, now);
+    }
+
+    /**
+     * Encodes answer records as a response to their question, with TTLs counted down to now.
+     * @param writer The writer to encode through.
+     * @param question The question the records answer.
+     * @param records The answer records.
+     * @param now The current time in milliseconds.
+     */
+    public static void writeRecords(DNSPacketWriter writer, DNSQuestion question, DNSRecord[] records, long now) throws IOException {
+        writer.writeShort(0); // ID, patched per request
+        writer.writeShort(DNSHeader.RESPONSE_FLAGS);
+        writer.writeShort(1);
+        writer.writeShort(records.length);
+        writer.writeShort(0);
+        writer.writeShort(0);
+        question.writeBytes(writer);
+        for (DNSRecord record : records) {
+            int remaining = (int) Math.max(0, (record.getExpirationTime() - now) / 1000);
+            record.withTtl(remaining).writeBytes(writer);
+        }
+    }
+
+    /**
+     * Checks if a response says the name does not exist (NXDOMAIN) or has no data of the asked type (NODATA).
+     * @param reader A reader wrapped around the response.
+     * @return true for a negative answer.
+     */
+    public static boolean isNegative(DNSPacketReader reader) {
+        int rcode = reader.getFlags() & 0xF;
+        return rcode == DNSHeader.RCODE_NXDOMAIN || (rcode == DNSHeader.RCODE_NOERROR && reader.getAnswerCount() == 0);
+    }
+
+    /**
+     * Checks if a negative response can be cached, which needs an SOA in its authority section (RFC 2308 section 5).
+     * @param reader A reader wrapped around the response.
+     * @return true if the authority section has an SOA record.
+     */
+    public static boolean hasNegativeTtl(DNSPacketReader reader) {
+        for (int i = reader.getAnswerCount(); i < reader.getAnswerCount() + reader.getAuthorityCount(); i++) {
+            if (reader.getRecordType(i) == SOA_TYPE && reader.getRecordDataLength(i) >= 20) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAuthority(DNSPacketReader reader, int index) {
+        return index >= reader.getAnswerCount() && index < reader.getAnswerCount() + reader.getAuthorityCount();
+    }
+
+    // MINIMUM is the last of the SOA's five 32-bit fields, after the two names
+    private static int soaMinimum(DNSPacketReader reader, int index) {
+        if (reader.getRecordDataLength(index) < 20) {
+            return 0; // Malformed SOA: do not cache the negative answer for long
+        }
+        int end = reader.getRecordDataOffset(index) + reader.getRecordDataLength(index);
+        return Math.max(0, reader.getInt(end - 4));
+    }
+
+    /**
+     * Copies this response into an output buffer, patched for the given request.
+     * The request must ask the same single question (compared case-insensitively).
+     * If the response rotates, each call moves the RRset one step on.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @param request A reader wrapped around the client's request.
+     * @param now The current time in milliseconds.
+     * @return The number of bytes written.
+     * @throws IOException If the response does not fit in the buffer.
+     */
+    public int writeTo(ByteBuffer out, DNSPacketReader request, long now) throws IOException {
+        int elapsedSeconds = (int) ((now - createdAt) / 1000);
+        int base = out.position();
+        int length = writeTo(out, request, elapsedSeconds, -1);
+
+        // Round-robin: record i gets the data of record i + shift, names and TTLs stay where they are
+        if (rrsetDataOffsets.length > 0) {
+            int shift = Math.floorMod(rotation.getAndIncrement(), rrsetDataOffsets.length);
+            for (int i = 0; i < rrsetDataOffsets.length && shift != 0; i++) {
+                out.put(base + rrsetDataOffsets[i], packet, rrsetDataOffsets[(i + shift) % rrsetDataOffsets.length], rrsetDataLength);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return The size of this response flattened into an entry by writeEntry.
+     */
+    public int entrySize() {
+        return ENTRY_HEADER_SIZE + ttlOffsets.length * (2 + 4) + rrsetDataOffsets.length * 2 + packet.length;
+    }
+
+    /**
+     * Flattens this response into a byte entry that writeEntryTo can serve from directly.
+     * @param buffer The buffer to write into, e.g. an off-heap slab; its position is not changed.
+     * @param at Where the entry starts; entrySize() bytes from there must be free.
+     */
+    public void writeEntry(ByteBuffer buffer, int at) {
+        buffer.putLong(at + ENTRY_CREATED_AT, createdAt);
+        buffer.putShort(at + ENTRY_PACKET_LENGTH, (short) packet.length);
+        buffer.putShort(at + ENTRY_QUESTION_END, (short) questionEnd);
+        buffer.putShort(at + ENTRY_RECORD_COUNT, (short) ttlOffsets.length);
+        buffer.putShort(at + ENTRY_RRSET_COUNT, (short) rrsetDataOffsets.length);
+        buffer.putShort(at + ENTRY_RRSET_DATA_LENGTH, (short) rrsetDataLength);
+
+        int field = at + ENTRY_HEADER_SIZE;
+        for (int ttlOffset : ttlOffsets) {
+            buffer.putShort(field, (short) ttlOffset);
+            field += 2;
+        }
+        for (int ttl : ttls) {
+            buffer.putInt(field, ttl);
+            field += 4;
+        }
+        for (int dataOffset : rrsetDataOffsets) {
+            buffer.putShort(field, (short) dataOffset);
+            field += 2;
+        }
+        buffer.put(field, packet);
+    }
+
+    /**
+     * Rebuilds a response from an entry written by writeEntry, e.g. to answer over TCP or serve it stale.
+     * @param buffer The buffer holding the entry.
+     * @param at Where the entry starts.
+     * @param rotation Where the RRset rotation starts, e.g. a hit counter.
+     * @return A copy of the response, no longer tied to the buffer.
+     */
+    public static CachedResponse readEntry(ByteBuffer buffer, int at, int rotation) {
+        int recordCount = buffer.getShort(at + ENTRY_RECORD_COUNT) & 0xFFFF;
+        int rrsetCount = buffer.getShort(at + ENTRY_RRSET_COUNT) & 0xFFFF;
+
+        int field = at + ENTRY_HEADER_SIZE;
+        int[] ttlOffsets = new int[recordCount];
+        for (int i = 0; i < recordCount; i++, field += 2) {
+            ttlOffsets[i] = buffer.getShort(field) & 0xFFFF;
+        }
+        int[] ttls = new int[recordCount];
+        for (int i = 0; i < recordCount; i++, field += 4) {
+            ttls[i] = buffer.getInt(field);
+        }
+        int[] rrsetDataOffsets = new int[rrsetCount];
+        for (int i = 0; i < rrsetCount; i++, field += 2) {
+            rrsetDataOffsets[i] = buffer.getShort(field) & 0xFFFF;
+        }
+        byte[] packet = new byte[buffer.getShort(at + ENTRY_PACKET_LENGTH) & 0xFFFF];
+        buffer.get(field, packet);
+
+        CachedResponse response = new CachedResponse(packet, buffer.getShort(at + ENTRY_QUESTION_END) & 0xFFFF, ttlOffsets, ttls,
+                buffer.getLong(at + ENTRY_CREATED_AT), rrsetDataOffsets, buffer.getShort(at + ENTRY_RRSET_DATA_LENGTH) & 0xFFFF);
+        response.rotation.set(rotation);
+        return response;
+    }
+
+    /**
+     * Serves an entry written by writeEntry without rebuilding the response: copies its packet
+     * into an output buffer and patches it for the request, just like writeTo.
+     * @param buffer The buffer holding the entry.
+     * @param at Where the entry starts.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @param request A reader wrapped around the client's request.
+     * @param now The current time in milliseconds.
+     * @param rotation How far to rotate the RRset, e.g. a hit counter; ignored if the entry does not rotate.
+     * @return The number of bytes written.
+     * @throws IOException If the response does not fit in the output buffer.
+     */
+    public static int writeEntryTo(ByteBuffer buffer, int at, ByteBuffer out, DNSPacketReader request, long now, int rotation)
+            throws IOException {
+        int packetLength = buffer.getShort(at + ENTRY_PACKET_LENGTH) & 0xFFFF;
+        int recordCount = buffer.getShort(at + ENTRY_RECORD_COUNT) & 0xFFFF;
+        int rrsetCount = buffer.getShort(at + ENTRY_RRSET_COUNT) & 0xFFFF;
+        int ttlOffsetsAt = at + ENTRY_HEADER_SIZE;
+        int ttlsAt = ttlOffsetsAt + recordCount * 2;
+        int rrsetOffsetsAt = ttlsAt + recordCount * 4;
+        int packetAt = rrsetOffsetsAt + rrsetCount * 2;
+        if (out.remaining() < packetLength) {
+            throw new IOException("Cached response of " + packetLength + " bytes does not fit");
+        }
+
+        int base = out.position();
+        out.put(base, buffer, packetAt, packetLength);
+        out.position(base + packetLength);
+        patchRequest(out, base, request, buffer.getShort(at + ENTRY_QUESTION_END) & 0xFFFF);
+
+        int elapsedSeconds = (int) ((now - buffer.getLong(at + ENTRY_CREATED_AT)) / 1000);
+        for (int i = 0; i < recordCount; i++) {
+            int ttl = Math.max(0, buffer.getInt(ttlsAt + i * 4) - elapsedSeconds);
+            out.putInt(base + (buffer.getShort(ttlOffsetsAt + i * 2) & 0xFFFF), ttl);
+        }
+
+        // Round-robin, as in writeTo but with the caller's counter
+        int shift = (rrsetCount > 0) ? Math.floorMod(rotation, rrsetCount) : 0;
+        int dataLength = buffer.getShort(at + ENTRY_RRSET_DATA_LENGTH) & 0xFFFF;
+        for (int i = 0; i < rrsetCount && shift != 0; i++) {
+            int to = buffer.getShort(rrsetOffsetsAt + i * 2) & 0xFFFF;
+            int from = buffer.getShort(rrsetOffsetsAt + (i + shift) % rrsetCount * 2) & 0xFFFF;
+            out.put(base + to, buffer, packetAt + from, dataLength);
+        }
+        return packetLength;
+    }
+
+    /**
+     * Builds a copy of this response for the given request, e.g. to answer over TCP.
+     * @param request A reader wrapped around the client's request.
+     * @param now The current time in milliseconds.
+     * @return The patched response bytes.
+     */
+    public byte[] toBytes(DNSPacketReader request, long now) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(packet.length);
+        writeTo(out, request, now);
+        return out.array();
+    }
+
+    /**
+     * Decodes the answer records out of the packet, for callers that need record objects,
+     * e.g. a multi-question request hitting an entry restored from a snapshot.
+     * @return The answer records, or null if the response has none.
+     * @throws IOException If the packet cannot be decoded.
+     */
+    public DNSRecord[] decodeAnswers() throws IOException {
+        DNSPacketReader reader = new DNSPacketReader();
+        reader.wrap(ByteBuffer.wrap(packet));
+        if (reader.getAnswerCount() == 0 || (reader.getFlags() & 0xF) != DNSHeader.RCODE_NOERROR) {
+            return null;
+        }
+        DNSRecord[] records = new DNSRecord[reader.getAnswerCount()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = DNSRecord.decodeRecord(reader, i, createdAt);
+        }
+        return records;
+    }
+
+    /**
+     * Copies the packet as it is, apart from every TTL counted down to now, e.g. to write it to a snapshot.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @param now The current time in milliseconds.
+     * @return The number of bytes written.
+     * @throws IOException If the response does not fit in the buffer.
+     */
+    public int writeSnapshot(ByteBuffer out, long now) throws IOException {
+        return writeTo(out, null, (int) ((now - createdAt) / 1000), -1);
+    }
+
+    /**
+     * Builds a copy of this response for serving stale (RFC 8767): every TTL is set to staleTtl.
+     * @param request A reader wrapped around the client's request.
+     * @param staleTtl The TTL to give each record, e.g. 30 seconds.
+     * @return The patched response bytes.
+     */
+    public byte[] toStaleBytes(DNSPacketReader request, int staleTtl) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(packet.length);
+        writeTo(out, request, 0, staleTtl);
+        return out.array();
+    }
+
+    /**
+     * Copies the packet and patches ID, question spelling and TTLs.
+     * Each TTL becomes its original value minus elapsedSeconds, or fixedTtl if that is not negative.
+     * Without a request, ID and question are left alone.
+     */
+    private int writeTo(ByteBuffer out, DNSPacketReader request, int elapsedSeconds, int fixedTtl) throws IOException {
+        if (out.remaining() < packet.length) {
+            throw new IOException("Cached response of " + packet.length + " bytes does not fit");
+        }
+        int base = out.position();
+        out.put(packet);
+
+        if (request != null) {
+            patchRequest(out, base, request, questionEnd);
+        }
+
+        // Count every TTL down by the time spent in the cache
+        for (int i = 0; i < ttlOffsets.length; i++) {
+            int ttl = (fixedTtl >= 0) ? fixedTtl : Math.max(0, ttls[i] - elapsedSeconds);
+            out.putInt(base + ttlOffsets[i], ttl);
+        }
+        return packet.length;
+    }
+
+    /**
+     * Puts the client's transaction ID and spelling of the question into a copied packet.
+     */
+    private static void patchRequest(ByteBuffer out, int base, DNSPacketReader request, int questionEnd) {
+        out.putShort(base, (short) request.getId());
+
+        // Client's spelling of the question, for resolvers that randomize case (0x20).
+        // Same name, so same length, and anything pointing at it stays valid.
+        int questionStart = DNSPacketReader.HEADER_SIZE;
+        if (request.questionSectionEnd() == questionEnd) {
+            out.put(base + questionStart, request.getBuffer(), request.getBase() + questionStart, questionEnd - questionStart);
+        }
+    }
+
+    /**
+     * @return The absolute time, in milliseconds, when the shortest TTL runs out.
+     */
+    public long getExpirationTime() {
+        return expiresAt;
+    }
+
+    /**
+     * Checks if the response has expired based on its shortest TTL.
+     * @return true if expired, false otherwise.
+     */
+    public boolean isExpired() {
+        return System.currentTimeMillis() > expiresAt;
+    }
+
+    /**
+     * @return The size of the encoded response in bytes.
+     */
+    public int size() {
+        return packet.length;
+    }
+}
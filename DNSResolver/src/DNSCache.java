@@ -1,31 +1,512 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+/**
+ * A concurrent, size-bounded DNS cache.
+ * Lookups and inserts go straight to a ConcurrentHashMap, so no global lock is taken.
+ * When the cache is full, entries are evicted with a CLOCK policy that counts hits,
+ * so popular names survive while one-off lookups are dropped first.
+ * Expired entries are removed in the background by a timing wheel sweeper.
+ *
+ * Each entry holds the whole answer for a question: any CNAME chain followed by the RRset
+ * it leads to, kept for the shortest TTL among them. The RRset can be handed out
+ * in round-robin order so clients spread their load over every address.
+ *
+ * Two features keep popular names fast when their TTL runs out:
+ * refresh-ahead asks the refresher to fetch a popular entry again once it is past a share
+ * of its TTL, and serve-stale (RFC 8767) keeps expired entries around for a while so they
+ * can be handed out when the upstream is slow or down.
+ *
+ * With an off-heap size set, entries are kept as encoded packets in a SlabStore instead
+ * of as objects, so a cache of millions of names adds next to nothing for the garbage
+ * collector to trace. Records are then decoded from the packet when asked for.
+ */
 public class DNSCache {
-    // A HashMap to store cached DNS responses
-    private final HashMap<DNSQuestion, DNSRecord> cache = new HashMap<>();
+    public static final int DEFAULT_CAPACITY = 10_000; // Max entries if no capacity is given
+    private static final int MAX_HITS = 3;             // Cap on the CLOCK counter so old popularity fades
+    private static final int WHEEL_SLOTS = 1024;       // ~17 minutes of 1 second ticks per turn
+    private static final long WHEEL_TICK_MILLIS = 1000;
+
+    private final ConcurrentHashMap<DNSQuestion, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>(); // CLOCK hand order
+    private final AtomicInteger clockSize = new AtomicInteger(); // Size of the clock queue (CLQ.size() is O(n))
+    private final AtomicBoolean evicting = new AtomicBoolean();  // Only one thread runs the clock hand at a time
+    private final int capacity;
+    private final long maxStaleMillis;      // How long an expired entry is kept for serve-stale
+    private final double refreshThreshold;  // Share of the TTL after which a popular entry is refreshed
+    private final int refreshMinHits;       // Hits an entry needs before it is worth refreshing
+    private final boolean roundRobin;       // Rotate the RRset on every hit
+    private volatile Function<DNSQuestion, CompletableFuture<?>> refresher; // Fetches a question again
+    private final SlabStore slabs;          // Off-heap entries, or null to keep them in the map
+    private final LongAdder expiredLookups = new LongAdder(); // Lookups that found only an expired entry
+
+    private final ExpiryWheel<Entry> expiryWheel = new ExpiryWheel<>(WHEEL_SLOTS, WHEEL_TICK_MILLIS);
+    private final ScheduledExecutorService sweeper;
+
+    // Cached answer records and/or encoded response, plus the bookkeeping needed for eviction
+    private static final class Entry {
+        final DNSQuestion question;
+        final DNSRecord[] records;       // CNAME chain then RRset, may be null if only the response was cached
+        final int rrsetStart;            // Index where the final RRset starts, the part that rotates
+        final AtomicInteger rotation = new AtomicInteger(); // Round-robin position
+        final CachedResponse response;   // Encoded answer packet, may be null
+        final long expiresAt;            // Whichever of the two runs out first
+        final long refreshAt;            // When a popular entry should be fetched again
+        final AtomicInteger hits = new AtomicInteger(); // CLOCK counter, bumped on every hit
+        final AtomicInteger uses = new AtomicInteger(); // Hits since insert, decides if a refresh pays off
+        final AtomicBoolean refreshing = new AtomicBoolean(); // Only one refresh per entry
+
+        Entry(DNSQuestion question, DNSRecord[] records, CachedResponse response, double refreshThreshold) {
+            this.question = question;
+            this.records = records;
+            this.rrsetStart = (records != null) ? rrsetStart(records) : 0;
+            this.response = response;
+
+            long expiresAt = (response != null) ? response.getExpirationTime() : Long.MAX_VALUE;
+            if (records != null) {
+                for (DNSRecord record : records) {
+                    expiresAt = Math.min(expiresAt, record.getExpirationTime());
+                }
+            }
+            this.expiresAt = expiresAt;
+
+            long now = System.currentTimeMillis();
+            this.refreshAt = now + (long) ((expiresAt - now) * refreshThreshold);
+        }
+
+        boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+
+        // The RRset is the run of records at the end sharing the last record's name and type
+        private static int rrsetStart(DNSRecord[] records) {
+            int start = records.length - 1;
+            while (start > 0 && records[start - 1].getType() == records[start].getType()
+                    && records[start - 1].getName().equals(records[start].getName())) {
+                start--;
+            }
+            return start;
+        }
+
+        // Copy of the records with the RRset rotated one step further than last time
+        DNSRecord[] rotated() {
+            int count = records.length - rrsetStart;
+            if (count <= 1) {
+                return records;
+            }
+            int shift = Math.floorMod(rotation.getAndIncrement(), count);
+            if (shift == 0) {
+                return records;
+            }
+            DNSRecord[] rotated = records.clone();
+            for (int i = 0; i < count; i++) {
+                rotated[rrsetStart + i] = records[rrsetStart + (i + shift) % count];
+            }
+            return rotated;
+        }
+    }
+
+    /**
+     * Creates a cache holding up to DEFAULT_CAPACITY entries.
+     */
+    public DNSCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a cache holding up to the given number of entries, without serve-stale, refresh-ahead or rotation.
+     * @param capacity The maximum number of entries to keep.
+     */
+    public DNSCache(int capacity) {
+        this(capacity, 0, 1.0, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Creates a cache holding up to the given number of entries.
+     * @param capacity The maximum number of entries to keep.
+     * @param maxStaleMillis How long past its TTL an entry may still be served stale, 0 to disable.
+     * @param refreshThreshold Share of the TTL (0-1) after which a popular entry is refreshed.
+     * @param refreshMinHits How many hits make an entry popular enough to refresh.
+     * @param roundRobin Whether to rotate the order of an RRset on every hit.
+     */
+    public DNSCache(int capacity, long maxStaleMillis, double refreshThreshold, int refreshMinHits, boolean roundRobin) {
+        this(capacity, maxStaleMillis, refreshThreshold, refreshMinHits, roundRobin, 0);
+    }
+
+    /**
+     * Creates a cache holding up to the given number of entries, on or off the heap.
+     * @param capacity The maximum number of entries to keep.
+     * @param maxStaleMillis How long past its TTL an entry may still be served stale, 0 to disable.
+     * @param refreshThreshold Share of the TTL (0-1) after which a popular entry is refreshed.
+     * @param refreshMinHits How many hits make an entry popular enough to refresh.
+     * @param roundRobin Whether to rotate the order of an RRset on every hit.
+     * @param offHeapBytes Slab memory for keeping entries off the heap, 0 to keep them on the heap.
+     */
+    public DNSCache(int capacity, long maxStaleMillis, double refreshThreshold, int refreshMinHits, boolean roundRobin,
+                    long offHeapBytes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        if (refreshThreshold <= 0 || refreshThreshold > 1) {
+            throw new IllegalArgumentException("Refresh threshold must be in (0, 1]: " + refreshThreshold);
+        }
+        this.capacity = capacity;
+        this.maxStaleMillis = maxStaleMillis;
+        this.refreshThreshold = refreshThreshold;
+        this.refreshMinHits = refreshMinHits;
+        this.roundRobin = roundRobin;
+        this.slabs = (offHeapBytes > 0) ? new SlabStore(capacity, offHeapBytes, maxStaleMillis, refreshMinHits, this::refreshAhead)
+                : null;
+
+        // Background thread that drops expired entries even if nobody asks for them again
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(this::sweepExpired, WHEEL_TICK_MILLIS, WHEEL_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
     /**
      * Checks the cache for a DNS answer.
      * @param question The DNS question being queried.
-     * @return The cached DNS record if available and not expired, otherwise null.
+     * @return The cached CNAME chain and RRset, rotated if round-robin is on, or null
+     *         if there is nothing fresh. The array is shared, so callers must not change it.
      */
-    public DNSRecord query(DNSQuestion question) {
-        DNSRecord record = cache.get(question);
+    public DNSRecord[] query(DNSQuestion question) {
+        CachedResponse response;
+        if (slabs != null) {
+            response = slabs.get(question, System.currentTimeMillis(), false);
+        } else {
+            Entry entry = lookup(question);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.records != null) {
+                return roundRobin ? entry.rotated() : entry.records;
+            }
+            response = entry.response; // Only the packet is cached, e.g. restored from a snapshot
+        }
 
-        // If record exists but is expired, remove it from the cache
-        if (record != null && record.isExpired()) {
-            cache.remove(question);
+        try {
+            return (response != null) ? response.decodeAnswers() : null;
+        } catch (IOException e) {
             return null;
         }
-        return record;
     }
 
     /**
-     * Inserts a new record into the cache.
+     * Checks the cache for an encoded answer packet, the fast path for single-question requests.
+     * @param question The DNS question being queried.
+     * @return The cached response if available and not expired, otherwise null.
+     */
+    public CachedResponse queryResponse(DNSQuestion question) {
+        if (slabs != null) {
+            return slabs.get(question, System.currentTimeMillis(), false);
+        }
+        Entry entry = lookup(question);
+        return (entry != null) ? entry.response : null;
+    }
+
+    /**
+     * Checks the cache for an encoded answer packet that may be past its TTL,
+     * as long as it is still inside the serve-stale window.
+     * @param question The DNS question being queried.
+     * @return The cached response, fresh or stale, or null if there is none.
+     */
+    public CachedResponse queryStale(DNSQuestion question) {
+        if (slabs != null) {
+            return slabs.get(question, System.currentTimeMillis(), true);
+        }
+        Entry entry = cache.get(question);
+        if (entry == null || System.currentTimeMillis() > entry.expiresAt + maxStaleMillis) {
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Writes the cached answer for a question straight into an output buffer, patched for the request.
+     * This is the hit path: off the heap nothing is allocated. An entry with records but no packet
+     * (a CNAME target, or restored from a snapshot) is encoded from its records, so a miss here
+     * means the question has no fresh answer at all and there is no need to look it up again.
+     * @param question The DNS question being queried.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @param request A reader wrapped around the client's request.
+     * @param now The current time in milliseconds.
+     * @return The number of bytes written, or -1 if there is no fresh answer.
+     * @throws IOException If the response does not fit in the buffer.
+     */
+    public int writeResponse(DNSQuestion question, ByteBuffer out, DNSPacketReader request, long now) throws IOException {
+        if (slabs != null) {
+            return slabs.writeResponse(question, out, request, now);
+        }
+        Entry entry = lookup(question);
+        if (entry == null) {
+            return -1;
+        }
+        if (entry.response != null) {
+            return entry.response.writeTo(out, request, now);
+        }
+        DNSPacketWriter writer = new DNSPacketWriter();
+        writer.reset(out);
+        DNSMessage.writeResponse(writer, request, Arrays.asList(roundRobin ? entry.rotated() : entry.records));
+        return writer.position();
+    }
+
+    /**
+     * Sets the function used for refresh-ahead. It gets the question to fetch again
+     * and should start the fetch without blocking; the fetch is expected to re-insert the answer.
+     * @param refresher The refresh function, or null to turn refresh-ahead off.
+     */
+    public void setRefresher(Function<DNSQuestion, CompletableFuture<?>> refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Inserts the answer records for a question, replacing the whole earlier entry.
+     * @param question The DNS question being stored.
+     * @param records The answer records: any CNAME chain in order, then the RRset. Must not be empty.
+     */
+    public void insert(DNSQuestion question, DNSRecord[] records) {
+        if (records.length == 0) {
+            throw new IllegalArgumentException("Cannot cache an empty answer for " + question);
+        }
+        insert(question, records, null);
+    }
+
+    /**
+     * Inserts the encoded answer packet for a question, replacing the whole earlier entry.
      * @param question The DNS question being stored.
-     * @param record The DNS answer associated with the question.
+     * @param response The encoded response for that question.
+     */
+    public void insertResponse(DNSQuestion question, CachedResponse response) {
+        insert(question, null, response);
+    }
+
+    /**
+     * Inserts what one upstream reply says about a question, replacing the whole earlier entry,
+     * and evicts unpopular entries if the cache is full. Both halves always come from the same reply,
+     * so query() and writeResponse() can never disagree, e.g. old records next to a new NXDOMAIN packet.
+     * The whole answer expires with its shortest TTL.
+     * @param question The DNS question being stored.
+     * @param records The answer records: any CNAME chain in order, then the RRset; null or empty if there are none.
+     * @param response The encoded response, or null if it is not cacheable. At least one of the two must be given.
+     */
+    public void insert(DNSQuestion question, DNSRecord[] records, CachedResponse response) {
+        if (records != null && records.length == 0) {
+            records = null;
+        }
+        if (records == null && response == null) {
+            throw new IllegalArgumentException("Nothing to cache for " + question);
+        }
+        if (slabs != null) { // Everything off the heap is a packet
+            try {
+                CachedResponse packet = (response != null) ? response : CachedResponse.fromRecords(question, records, roundRobin);
+                slabs.put(question, packet, refreshAt(packet.getExpirationTime()));
+            } catch (IOException e) {
+                System.err.println("Not caching " + question + ": " + e.getMessage());
+            }
+            return;
+        }
+        store(new Entry(question, records, response, refreshThreshold), cache.get(question));
+    }
+
+    /**
+     * Finds a fresh entry and counts the hit. Expired entries are dropped once they
+     * are past the serve-stale window too. Popular entries close to expiry get refreshed.
+     */
+    private Entry lookup(DNSQuestion question) {
+        Entry entry = cache.get(question);
+        if (entry == null) {
+            return null;
+        }
+
+        // If the entry exists but is expired, it is a miss; remove it once it is too old to serve stale
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            expiredLookups.increment();
+            if (now > entry.expiresAt + maxStaleMillis) {
+                cache.remove(question, entry);
+            }
+            return null;
+        }
+
+        // Give the entry another chance the next time the clock hand passes it
+        if (entry.hits.get() < MAX_HITS) {
+            entry.hits.incrementAndGet();
+        }
+
+        if (entry.uses.incrementAndGet() >= refreshMinHits && now >= entry.refreshAt) {
+            refreshAhead(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Starts one background refresh for an entry. A successful refresh normally replaces the entry,
+     * but a reply that is not cacheable, or a failure, leaves it in place: then it may be refreshed
+     * again once it has been hit often enough once more.
+     */
+    private void refreshAhead(Entry entry) {
+        Function<DNSQuestion, CompletableFuture<?>> refresher = this.refresher;
+        if (refresher == null || !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.apply(entry.question).whenComplete((result, error) -> {
+            entry.uses.set(0);
+            entry.refreshing.set(false);
+        });
+    }
+
+    /**
+     * Starts a background refresh for an off-heap entry; the slab store makes sure it only asks once.
+     */
+    private void refreshAhead(DNSQuestion lookedUp) {
+        DNSQuestion question = lookedUp.copy(); // The lookup may have used a receive loop's scratch key
+        Function<DNSQuestion, CompletableFuture<?>> refresher = this.refresher;
+        if (refresher == null) {
+            slabs.refreshDone(question); // Nothing to refresh with yet, ask again on a later hit
+            return;
+        }
+        refresher.apply(question).whenComplete((result, error) -> slabs.refreshDone(question)); // Even if nothing replaced it
+    }
+
+    /**
+     * When an entry expiring at the given time should be refreshed if it is popular.
+     */
+    private long refreshAt(long expiresAt) {
+        long now = System.currentTimeMillis();
+        return now + (long) ((expiresAt - now) * refreshThreshold);
+    }
+
+    /**
+     * Puts an entry in the map, the clock queue and the expiry wheel.
+     * @param entry The new entry.
+     * @param previous The entry it replaces, whose popularity carries over, or null.
+     */
+    private void store(Entry entry, Entry previous) {
+        if (previous != null) {
+            entry.hits.set(previous.hits.get());
+        }
+        cache.put(entry.question, entry);
+
+        clock.add(entry);
+        clockSize.incrementAndGet();
+        expiryWheel.schedule(entry, entry.expiresAt + maxStaleMillis); // Kept for serve-stale until then
+
+        evictIfNeeded();
+    }
+
+    /**
+     * Receives each entry during forEach.
+     */
+    public interface Visitor {
+        /**
+         * @param question The cached question.
+         * @param records The answer records, or null if only the response is cached.
+         * @param response The encoded response, or null if only the records are cached.
+         * @param expiresAt When the entry expires, in milliseconds since the epoch.
+         */
+        void visit(DNSQuestion question, DNSRecord[] records, CachedResponse response, long expiresAt) throws IOException;
+    }
+
+    /**
+     * Visits every entry that has not expired yet, e.g. to write a snapshot.
+     * Runs alongside lookups and inserts, so entries changed meanwhile may or may not be seen.
+     * @param visitor Gets each entry.
+     * @throws IOException If the visitor fails; the walk stops there.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        if (slabs != null) {
+            slabs.forEach((question, response, expiresAt) -> visitor.visit(question, null, response, expiresAt));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : cache.values()) {
+            if (!entry.isExpired(now)) {
+                visitor.visit(entry.question, entry.records, entry.response, entry.expiresAt);
+            }
+        }
+    }
+
+    /**
+     * @return Whether hits rotate their RRset, which restored responses need to know too.
+     */
+    public boolean isRoundRobin() {
+        return roundRobin;
+    }
+
+    /**
+     * @return How many lookups found an entry that had expired, i.e. misses the cache held stale data for.
+     */
+    public long getExpiredCount() {
+        return expiredLookups.sum() + ((slabs != null) ? slabs.getExpiredCount() : 0);
+    }
+
+    /**
+     * @return The number of entries currently cached.
+     */
+    public int size() {
+        return (slabs != null) ? slabs.size() : cache.size();
+    }
+
+    /**
+     * Stops the background expiry sweeper.
+     */
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Runs the CLOCK hand until the cache is back under capacity.
+     * Entries with hits get their counter decremented and go to the back of the queue,
+     * entries without hits are evicted. Entries already replaced or removed are dropped.
+     */
+    private void evictIfNeeded() {
+        if (cache.size() <= capacity && clockSize.get() <= capacity * 2) {
+            return;
+        }
+        if (!evicting.compareAndSet(false, true)) {
+            return; // Another thread is already evicting
+        }
+        try {
+            while (cache.size() > capacity || clockSize.get() > capacity * 2) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    break;
+                }
+
+                if (cache.get(entry.question) != entry) {
+                    clockSize.decrementAndGet(); // Stale: expired or overwritten since it was queued
+                } else if (cache.size() <= capacity || entry.hits.get() > 0) {
+                    entry.hits.updateAndGet(hits -> Math.max(0, hits - 1));
+                    clock.add(entry); // Second chance
+                } else {
+                    cache.remove(entry.question, entry);
+                    clockSize.decrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Called by the sweeper thread to remove everything past its TTL and serve-stale window.
      */
-    public void insert(DNSQuestion question, DNSRecord record) {
-        cache.put(question, record);
+    private void sweepExpired() {
+        expiryWheel.advance(System.currentTimeMillis(), entry -> cache.remove(entry.question, entry));
     }
 }
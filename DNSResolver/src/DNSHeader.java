@@ -1,6 +1,12 @@
-import java.io.*;
+import java.io.IOException;
 
 public class DNSHeader {
+    public static final int RCODE_NOERROR = 0;  // No error
+    public static final int RCODE_SERVFAIL = 2; // Server failed to complete the request
+    public static final int RCODE_NXDOMAIN = 3; // The name does not exist
+    public static final int FLAG_TC = 0x0200;     // Truncated: the answer did not fit, ask again over TCP
+    public static final int RESPONSE_FLAGS = 0x8180; // Standard response: QR=1, Opcode=0, AA=0, TC=0, RD=1, RA=1, RCODE=0
+
     private int id;        // Unique ID for the request/response
     private int flags;     // Contains query/response type and other control bits
     int qdCount;   // Number of questions in the request
@@ -9,21 +15,20 @@ public class DNSHeader {
     int arCount;   // Number of additional records 
 
     /**
-     * Decodes the DNS header from an InputStream.
-     * @param inputStream The input stream containing the DNS request bytes.
+     * Decodes the DNS header from a packet reader.
+     * @param reader A reader wrapped around the DNS message.
      * @return A DNSHeader object representing the parsed header.
      */
-    public static DNSHeader decodeHeader(InputStream inputStream) throws IOException {
+    public static DNSHeader decodeHeader(DNSPacketReader reader) {
         DNSHeader header = new DNSHeader();
-        DataInputStream dataInput = new DataInputStream(inputStream);
 
         // Read the header fields in the correct order
-        header.id = dataInput.readUnsignedShort();    // Read 16-bit ID
-        header.flags = dataInput.readUnsignedShort(); // Read 16-bit flags
-        header.qdCount = dataInput.readUnsignedShort(); // Number of questions
-        header.anCount = dataInput.readUnsignedShort(); // Number of answers
-        header.nsCount = dataInput.readUnsignedShort(); // Number of authority records (ignored)
-        header.arCount = dataInput.readUnsignedShort(); // Number of additional records
+        header.id = reader.getId();                    // Read 16-bit ID
+        header.flags = reader.getFlags();              // Read 16-bit flags
+        header.qdCount = reader.getQuestionCount();    // Number of questions
+        header.anCount = reader.getAnswerCount();      // Number of answers
+        header.nsCount = reader.getAuthorityCount();   // Number of authority records
+        header.arCount = reader.getAdditionalCount();  // Number of additional records
 
         return header;
     }
@@ -35,16 +40,27 @@ public class DNSHeader {
      * @return A DNSHeader object representing the response header.
      */
     public static DNSHeader buildHeaderForResponse(DNSMessage request, DNSMessage response) {
+        return buildHeaderForResponse(request, response, RCODE_NOERROR);
+    }
+
+    /**
+     * Builds a DNS response header with the given response code.
+     * @param request The original request message.
+     * @param response The response message being constructed.
+     * @param rcode The response code to put in the low 4 bits of the flags.
+     * @return A DNSHeader object representing the response header.
+     */
+    public static DNSHeader buildHeaderForResponse(DNSMessage request, DNSMessage response, int rcode) {
         DNSHeader header = new DNSHeader();
         header.id = request.getHeader().id;   // Copy request ID to response
-        header.flags = 0x8180; // Standard response: QR=1, Opcode=0, AA=0, TC=0, RD=1, RA=1, RCODE=0
+        header.flags = RESPONSE_FLAGS | (rcode & 0xF); // Standard response flags plus the response code
         header.qdCount = request.getHeader().qdCount; // Keep question count
 
 //        header.anCount = (response.getAnswers() != null && response.getAnswers().length > 0) ? response.getAnswers().length : 0;
         header.anCount = (response.getAnswers() != null) ? response.getAnswers().length : 0;
 
 
-        header.nsCount = 0; // No authority records
+        header.nsCount = (response.getAuthorityRecords() != null) ? response.getAuthorityRecords().length : 0;
 
         header.arCount = (response.getAdditionalRecords() != null) ? response.getAdditionalRecords().length : 0;
 
@@ -53,19 +69,45 @@ public class DNSHeader {
     }
 
     /**
-     * Writes the DNS header to an OutputStream
-     * @param outputStream The output stream to write the header bytes
+     * Builds a header for a recursive query with one question, used when we ask the upstream ourselves.
+     * @param id The transaction ID to use.
+     * @return A DNSHeader object representing the query header.
      */
-    public void writeBytes(OutputStream outputStream) throws IOException {
-        DataOutputStream dataOutput = new DataOutputStream(outputStream);
+    public static DNSHeader buildHeaderForQuery(int id) {
+        DNSHeader header = new DNSHeader();
+        header.id = id;
+        header.flags = 0x0100; // Standard query: QR=0, Opcode=0, RD=1
+        header.qdCount = 1;
+        return header;
+    }
 
+    /**
+     * Writes the DNS header through a packet writer.
+     * @param writer The writer to encode into.
+     */
+    public void writeBytes(DNSPacketWriter writer) throws IOException {
         // Write each header field as 16-bit values
-        dataOutput.writeShort(id);
-        dataOutput.writeShort(flags);
-        dataOutput.writeShort(qdCount);
-        dataOutput.writeShort(anCount);
-        dataOutput.writeShort(nsCount);
-        dataOutput.writeShort(arCount);
+        writer.writeShort(id);
+        writer.writeShort(flags);
+        writer.writeShort(qdCount);
+        writer.writeShort(anCount);
+        writer.writeShort(nsCount);
+        writer.writeShort(arCount);
+    }
+
+    /**
+     * Gets the response code from the low 4 bits of the flags.
+     * @return The RCODE, e.g. RCODE_NXDOMAIN.
+     */
+    public int getRcode() {
+        return flags & 0xF;
+    }
+
+    /**
+     * @return The 16-bit flags word: QR, opcode, AA, TC, RD, RA and the RCODE.
+     */
+    public int getFlags() {
+        return flags;
     }
 
     @Override //to string method
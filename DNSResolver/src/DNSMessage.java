@@ -1,117 +1,107 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class DNSMessage {
+    public static final int MAX_MESSAGE_SIZE = 65535; // Largest possible DNS message
+    public static final int MAX_PLAIN_UDP_SIZE = 512; // Largest UDP message a client without EDNS0 accepts
+    private static final int OPT_RECORD_SIZE = 11;    // Root name, type, class, TTL and an empty rdlength
+
     private DNSHeader header;          // The DNS header
     private DNSQuestion[] questions;   // The list of questions in the DNS request
     private DNSRecord[] answers;       // The list of answers in the DNS response
+    private DNSRecord[] authorityRecords; // Authority records, e.g. the SOA in a negative answer
     private DNSRecord[] additionalRecords; // Additional records
-    private byte[] rawMessage;         // Raw bytes of the original message
-
-    private HashMap<String, Integer> domainNameLocations = new HashMap<>(); // Stores domain positions for compression
 
     /**
      * Decodes a raw DNS message byte array into a DNSMessage object.
      * @param bytes The raw bytes of the DNS message.
      * @return A DNSMessage object representing the parsed message.
      */
-
     public static DNSMessage decodeMessage(byte[] bytes) throws IOException {
+        return decodeMessage(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a DNS message held between a buffer's position and limit.
+     * @param packet The buffer holding the DNS message.
+     * @return A DNSMessage object representing the parsed message.
+     */
+    public static DNSMessage decodeMessage(ByteBuffer packet) throws IOException {
+        DNSPacketReader reader = new DNSPacketReader();
+        reader.wrap(packet);
+        return decodeMessage(reader);
+    }
+
+    /**
+     * Builds the object form of a message a reader has already validated.
+     * @param reader A reader wrapped around the DNS message.
+     * @return A DNSMessage object representing the parsed message.
+     * @throws IOException If a record's data is malformed.
+     */
+    public static DNSMessage decodeMessage(DNSPacketReader reader) throws IOException {
         DNSMessage message = new DNSMessage();
-        message.rawMessage = bytes;
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
 
         // Decode the DNS header
-        message.header = DNSHeader.decodeHeader(inputStream);
+        message.header = DNSHeader.decodeHeader(reader);
 
         // Decode questions
-        message.questions = new DNSQuestion[message.header.qdCount];
+        message.questions = new DNSQuestion[reader.getQuestionCount()];
         for (int i = 0; i < message.questions.length; i++) {
-            message.questions[i] = DNSQuestion.decodeQuestion(inputStream, message);
+            message.questions[i] = DNSQuestion.decodeQuestion(reader, i);
         }
 
         // Always initialize 'answers' even if empty
-        message.answers = (message.header.anCount > 0) ? new DNSRecord[message.header.anCount] : new DNSRecord[0];
-
-
+        message.answers = new DNSRecord[reader.getAnswerCount()];
         for (int i = 0; i < message.answers.length; i++) {
-            message.answers[i] = DNSRecord.decodeRecord(inputStream, message);
+            message.answers[i] = DNSRecord.decodeRecord(reader, i);
         }
 
-        // Always initialize 'additionalRecords'
-        message.additionalRecords = (message.header.arCount > 0) ? new DNSRecord[message.header.arCount] : new DNSRecord[0];
-
+        // Always initialize 'authorityRecords', they come right after the answers
+        message.authorityRecords = new DNSRecord[reader.getAuthorityCount()];
+        for (int i = 0; i < message.authorityRecords.length; i++) {
+            message.authorityRecords[i] = DNSRecord.decodeRecord(reader, reader.getAnswerCount() + i);
+        }
 
+        // Always initialize 'additionalRecords', they come after the authority section
+        int firstAdditional = reader.getAnswerCount() + reader.getAuthorityCount();
+        message.additionalRecords = new DNSRecord[reader.getAdditionalCount()];
         for (int i = 0; i < message.additionalRecords.length; i++) {
-            message.additionalRecords[i] = DNSRecord.decodeRecord(inputStream, message);
+            message.additionalRecords[i] = DNSRecord.decodeRecord(reader, firstAdditional + i);
         }
 
         return message;
     }
 
 
-    /**
-     * Reads a domain name from an InputStream.
-     * Handles compression if needed.
-     * @param inputStream The input stream containing the DNS message.
-     * @return An array of domain name segments.
-     */
-    public String[] readDomainName(InputStream inputStream) throws IOException {
-        List<String> domainParts = new ArrayList<>();
-        int length = inputStream.read(); // Read the first length byte
-
-        while (length > 0) {
-            // Check if this is a pointer (compression is used)
-            if ((length & 0xC0) == 0xC0) { // 0xC0 = 11000000 in binary, checks if the first two bits are set to 1 (compression flag)
-
-                int pointer = ((length & 0x3F) << 8) | inputStream.read();
-
-                // (length & 0x3F) masks out the first two bits, leaving the actual pointer bits
-                // << 8 shifts these bits left by 8 to make room for the next byte
-                // | combines the shifted bits with the next byte to form the full 14-bit pointer
-
-                domainParts.addAll(Arrays.asList(readDomainName(pointer))); // Recursively read the domain name from the pointer location
-                break; // Exit loop after resolving the pointer
-
-            } else {
-                // Read a full domain part
-                byte[] part = new byte[length];
-                inputStream.read(part);
-                domainParts.add(new String(part));
-                length = inputStream.read(); // Read the next length byte
-            }
-        }
-
-        return domainParts.toArray(new String[0]);
-    }
-
 
     /**
-     * Reads a domain name from a given byte index.
-     * This is used when handling compressed domain names.
-     * @param firstByte The position in the message to start reading from.
-     * @return An array of domain name segments.
+     * Builds a DNS response message based on a request and a set of answers.
+     * @param request The original DNS request message.
+     * @param answers The DNS records to include in the response.
+     * @return A DNSMessage object representing the response.
      */
-    public String[] readDomainName(int firstByte) throws IOException {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(rawMessage);
-        byteStream.skip(firstByte);
-        return readDomainName(byteStream);
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers) {
+        return buildResponse(request, answers, new DNSRecord[0], DNSHeader.RCODE_NOERROR);
     }
 
-
-
     /**
-     * Builds a DNS response message based on a request and a set of answers.
+     * Builds a DNS response message with an authority section and response code,
+     * e.g. an NXDOMAIN answer carrying the zone's SOA record.
      * @param request The original DNS request message.
      * @param answers The DNS records to include in the response.
+     * @param authorityRecords The records for the authority section.
+     * @param rcode The response code to report.
      * @return A DNSMessage object representing the response.
      */
-    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers) {
+    public static DNSMessage buildResponse(DNSMessage request, DNSRecord[] answers, DNSRecord[] authorityRecords, int rcode) {
         DNSMessage response = new DNSMessage();
 
         response.answers = (answers != null) ? answers : new DNSRecord[0];
 
-        response.header = DNSHeader.buildHeaderForResponse(request, response);
+        response.authorityRecords = (authorityRecords != null) ? authorityRecords : new DNSRecord[0];
+
+        response.header = DNSHeader.buildHeaderForResponse(request, response, rcode);
 
         response.questions = request.questions; // Copy the questions
 
@@ -124,72 +114,247 @@ public class DNSMessage {
 
     }
 
+    /**
+     * Builds a recursive query asking a single question.
+     * @param question The question to ask.
+     * @return A DNSMessage object representing the query.
+     */
+    public static DNSMessage buildQuery(DNSQuestion question) {
+        return buildQuery(question, 0);
+    }
+
+    /**
+     * Builds a recursive query asking a single question, advertising a larger UDP payload with EDNS0.
+     * @param question The question to ask.
+     * @param udpPayloadSize The largest UDP reply we accept, or 0 to leave out the OPT record.
+     * @return A DNSMessage object representing the query.
+     */
+    public static DNSMessage buildQuery(DNSQuestion question, int udpPayloadSize) {
+        DNSMessage query = new DNSMessage();
+        query.header = DNSHeader.buildHeaderForQuery(0); // The upstream client picks the real ID
+        query.questions = new DNSQuestion[]{question};
+        query.answers = new DNSRecord[0];
+        query.authorityRecords = new DNSRecord[0];
+        query.additionalRecords = (udpPayloadSize > 0) ? new DNSRecord[]{DNSRecord.buildOpt(udpPayloadSize)} : new DNSRecord[0];
+        query.header.arCount = query.additionalRecords.length;
+        return query;
+    }
+
+    /**
+     * Builds an empty DNS response carrying an error code, e.g. SERVFAIL.
+     * @param request The original DNS request message.
+     * @param rcode The response code to report.
+     * @return A DNSMessage object representing the error response.
+     */
+    public static DNSMessage buildErrorResponse(DNSMessage request, int rcode) {
+        DNSMessage response = new DNSMessage();
+        response.answers = new DNSRecord[0];
+        response.authorityRecords = new DNSRecord[0];
+        response.additionalRecords = new DNSRecord[0];
+        response.header = DNSHeader.buildHeaderForResponse(request, response, rcode);
+        response.questions = request.questions;
+        return response;
+    }
+
+    /**
+     * Encodes a response to a request without decoding the request into objects.
+     * The header and question section are copied from the request bytes, then the answers follow.
+     * @param writer The writer to encode into, already reset to the start of the message.
+     * @param request A reader wrapped around the client's request.
+     * @param answers The DNS records to include in the response.
+     * @throws IOException If the response does not fit in the writer's buffer.
+     */
+    public static void writeResponse(DNSPacketWriter writer, DNSPacketReader request, List<DNSRecord> answers) throws IOException {
+        // Header: same ID and question count as the request
+        writer.writeShort(request.getId());
+        writer.writeShort(DNSHeader.RESPONSE_FLAGS);
+        writer.writeShort(request.getQuestionCount());
+        writer.writeShort(answers.size());
+        writer.writeShort(0); // No authority records
+        writer.writeShort(0); // No additional records
+
+        // The question section is copied as-is, so its names keep the same offsets
+        writer.writeBytes(request, DNSPacketReader.HEADER_SIZE, request.questionSectionEnd() - DNSPacketReader.HEADER_SIZE);
+        for (int i = 0; i < request.getQuestionCount(); i++) {
+            writer.addCompressionTarget(request.getQuestionNameOffset(i));
+        }
+
+        for (int i = 0; i < answers.size(); i++) {
+            answers.get(i).writeBytes(writer);
+        }
+    }
+
     /**
      * Converts the DNSMessage object into a byte array for network transmission.
      * @return The byte array representing the DNS message.
      * @throws IOException If an I/O error occurs.
      */
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSizeBound()); // Compression only makes it smaller
+        DNSPacketWriter writer = new DNSPacketWriter();
+        writer.reset(buffer);
+        writeBytes(writer);
+        return (writer.position() == buffer.capacity()) ? buffer.array() : Arrays.copyOf(buffer.array(), writer.position());
+    }
+
+    /**
+     * Encodes a response in one pass for a client with a size limit, with an OPT record for EDNS0 clients.
+     * If the records do not all fit, the response is cut back to its header and question with the TC bit
+     * set, so the client asks again over TCP (RFC 2181 section 9).
+     * @param ednsPayload The payload size for the OPT record, or 0 for none.
+     * @param sizeLimit The largest response the client takes, OPT record included.
+     * @return The encoded response.
+     * @throws IOException If not even the question fits.
+     */
+    public byte[] toBytes(int ednsPayload, int sizeLimit) throws IOException {
+        int optSize = (ednsPayload > 0) ? OPT_RECORD_SIZE : 0;
+        int budget = Math.min(encodedSizeBound(), sizeLimit - optSize);
+        ByteBuffer buffer = ByteBuffer.allocate(budget + optSize);
+        buffer.limit(budget); // The writer fails past this, leaving room for the OPT record
+        DNSPacketWriter writer = new DNSPacketWriter();
+        writer.reset(buffer);
+
+        header.writeBytes(writer);
+        for (DNSQuestion question : questions) {
+            question.writeBytes(writer);
+        }
+        int questionEnd = writer.position();
+        try {
+            writeRecords(writer);
+        } catch (IOException e) { // Over the budget, the only way writing into a buffer fails
+            buffer.position(questionEnd);
+            writer.putShort(2, header.getFlags() | DNSHeader.FLAG_TC);
+            writer.putShort(6, 0);  // No answers
+            writer.putShort(8, 0);  // No authority records
+            writer.putShort(10, 0); // No additional records
+        }
+
+        int length = writer.position();
+        buffer.limit(buffer.capacity());
+        if (optSize > 0) {
+            length = appendOpt(buffer, 0, length, ednsPayload);
+        }
+        return (length == buffer.capacity()) ? buffer.array() : Arrays.copyOf(buffer.array(), length);
+    }
+
+    /**
+     * Works out how long the message is without any compression, which is as long as it can get.
+     * @return The size in bytes.
+     */
+    private int encodedSizeBound() {
+        int size = DNSPacketReader.HEADER_SIZE;
+        for (DNSQuestion question : questions) {
+            size += question.getName().wireLength() + 4; // Type and class
+        }
+        for (DNSRecord[] section : new DNSRecord[][]{answers, authorityRecords, additionalRecords}) {
+            for (DNSRecord record : section) {
+                size += record.getName().wireLength() + 10 + record.getData().length; // Type, class, TTL, length
+            }
+        }
+        return size;
+    }
 
-        // Write the header to the output stream
-        header.writeBytes(outputStream);
+    /**
+     * Writes the message through a writer, so callers can reuse their own buffer.
+     * @param writer The writer to encode into, already reset to the start of the message.
+     * @throws IOException If the message does not fit in the writer's buffer.
+     */
+    public void writeBytes(DNSPacketWriter writer) throws IOException {
+        // Write the header
+        header.writeBytes(writer);
 
 
         // Write the question section
         for (DNSQuestion question : questions) {
-            question.writeBytes(outputStream, domainNameLocations);
+            question.writeBytes(writer);
         }
 
+        writeRecords(writer);
+    }
 
+    /**
+     * Writes the answer, authority and additional sections, after the header and question.
+     */
+    private void writeRecords(DNSPacketWriter writer) throws IOException {
         // Write the answer section
         for (DNSRecord answer : answers) {
-            answer.writeBytes(outputStream, domainNameLocations);
+            answer.writeBytes(writer);
         }
 
-        if (answers == null || answers.length == 0) {
-        } else {
-            for (DNSRecord answer : answers) {
-                answer.writeBytes(outputStream, domainNameLocations);
-            }
+        // Write the authority section
+        for (DNSRecord authority : authorityRecords) {
+            authority.writeBytes(writer);
         }
 
-        return outputStream.toByteArray();
-
+        // Write the additional section
+        for (DNSRecord additional : additionalRecords) {
+            additional.writeBytes(writer);
+        }
     }
 
     /**
-     * Writes a domain name to an output stream with DNS compression support.
-     * If the domain has been written before, a pointer is used instead.
-     * @param outputStream The output stream to write the domain name.
-     * @param domainLocations A map storing domain name positions for compression.
-     * @param domainPieces The domain name split into segments.
-     * @throws IOException If an I/O error occurs.
+     * Appends an EDNS0 OPT record to a message already in a buffer and bumps its additional count.
+     * @param message The buffer holding the message.
+     * @param start The buffer index where the message starts.
+     * @param length The message length.
+     * @param udpPayloadSize The UDP payload size to advertise.
+     * @return The new message length.
+     * @throws IOException If the buffer has no room for the record.
      */
-    public static void writeDomainName(ByteArrayOutputStream outputStream, HashMap<String, Integer> domainLocations, String[] domainPieces) throws IOException {
-        String domainName = String.join(".", domainPieces);
-
-        // Check if we have written this domain before (for compression)
-        if (domainLocations.containsKey(domainName)) {
-            int pointer = domainLocations.get(domainName);
-            outputStream.write((pointer >> 8) | 0xC0); // Write compression flag (0xC0)
-
-            // (pointer >> 8) gets the upper byte of the pointer
-            // | 0xC0 ensures the first two bits are set to indicate compression
-
-            outputStream.write(pointer & 0xFF); // Write offset -- lower byte of the pointer AND with 0xFF to keep only the last 8 bits
+    public static int appendOpt(ByteBuffer message, int start, int length, int udpPayloadSize) throws IOException {
+        if (message.limit() - start - length < OPT_RECORD_SIZE) {
+            throw new IOException("No room for an OPT record");
+        }
+        int at = start + length;
+        message.put(at, (byte) 0);                        // Root name
+        message.putShort(at + 1, (short) DNSRecord.TYPE_OPT);
+        message.putShort(at + 3, (short) udpPayloadSize);  // Class: UDP payload size
+        message.putInt(at + 5, 0);                        // Extended RCODE, version, flags
+        message.putShort(at + 9, (short) 0);               // No options
+        message.putShort(start + 10, (short) (message.getShort(start + 10) + 1));
+        return length + OPT_RECORD_SIZE;
+    }
 
-        } else {
-            // Store the domain location for potential future compression
-            domainLocations.put(domainName, outputStream.size());
+    /**
+     * Returns a copy of an encoded message with an EDNS0 OPT record appended.
+     * @param message The encoded message.
+     * @param udpPayloadSize The UDP payload size to advertise, or 0 to return the message as it is.
+     * @return The message with the OPT record.
+     */
+    public static byte[] appendOpt(byte[] message, int udpPayloadSize) throws IOException {
+        if (udpPayloadSize <= 0) {
+            return message;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(message, message.length + OPT_RECORD_SIZE));
+        appendOpt(buffer, 0, message.length, udpPayloadSize);
+        return buffer.array();
+    }
 
-            // Write each domain segment with its length prefix
-            for (String part : domainPieces) {
-                outputStream.write(part.length());
-                outputStream.write(part.getBytes());
-            }
-            outputStream.write(0); // Null terminator
+    /**
+     * Cuts an encoded response down to its header, question and OPT record and sets the TC bit,
+     * telling the client to ask again over TCP (RFC 2181 section 9).
+     * @param response The full encoded response.
+     * @param length The length of the response.
+     * @return The truncated response.
+     */
+    public static byte[] truncate(byte[] response, int length) throws IOException {
+        DNSPacketReader reader = new DNSPacketReader();
+        reader.wrap(ByteBuffer.wrap(response, 0, length));
+
+        int questionEnd = reader.questionSectionEnd();
+        int opt = reader.findOptRecord();
+        int optLength = (opt >= 0) ? reader.getRecordDataOffset(opt) + reader.getRecordDataLength(opt) - reader.getRecordNameOffset(opt) : 0;
+
+        ByteBuffer truncated = ByteBuffer.allocate(questionEnd + optLength);
+        truncated.put(response, 0, questionEnd);
+        if (opt >= 0) {
+            truncated.put(response, reader.getRecordNameOffset(opt), optLength);
         }
+        truncated.putShort(2, (short) (reader.getFlags() | DNSHeader.FLAG_TC));
+        truncated.putShort(6, (short) 0);                    // No answers
+        truncated.putShort(8, (short) 0);                    // No authority records
+        truncated.putShort(10, (short) (opt >= 0 ? 1 : 0));  // Only the OPT record
+        return truncated.array();
     }
 
 
@@ -217,6 +382,14 @@ public class DNSMessage {
         return answers;
     }
 
+    /**
+     * Getter for the authority records.
+     * @return An array of authority DNS records.
+     */
+    public DNSRecord[] getAuthorityRecords() {
+        return authorityRecords;
+    }
+
     /**
      * Getter for additional records.
      * @return An array of additional DNS records.
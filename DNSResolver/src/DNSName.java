@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A canonical, case-insensitive domain name key.
+ * The name is kept as lowercase, uncompressed wire-format bytes with the hash worked out
+ * once up front, so equals() is a byte compare and hashCode() is a field read.
+ * Used as the cache key for questions and as the owner-name identity for records.
+ * Names are immutable, except for scratch keys (see scratch()), which a receive loop refills
+ * in place for every request so a cache lookup allocates nothing; those are never stored.
+ */
+public final class DNSName {
+    private final byte[] wire; // Lowercase wire format: length-prefixed labels ending with a 0 byte
+    private int size;          // Bytes of wire in use: all of them, except in a scratch key
+    private int hash;
+
+    private DNSName(byte[] wire) {
+        this.wire = wire;
+        this.size = wire.length;
+        this.hash = Arrays.hashCode(wire);
+    }
+
+    /**
+     * Creates an empty name with room for the longest name, to be filled by readFrom for each request.
+     * Only the thread that owns it may use it, and it must never be kept: store copy() instead.
+     * @return The scratch name.
+     */
+    public static DNSName scratch() {
+        DNSName name = new DNSName(new byte[DNSPacketReader.MAX_NAME_LENGTH]);
+        name.size = 1; // The root until it is filled
+        name.hash = hashOf(name.wire, 1);
+        return name;
+    }
+
+    /**
+     * Builds a name key from label Strings.
+     * @param labels The domain name split into segments.
+     * @return The canonical name.
+     * @throws IllegalArgumentException If the name does not fit DNS limits.
+     */
+    public static DNSName fromLabels(String[] labels) {
+        int length = 1;
+        for (String label : labels) {
+            length += label.length() + 1;
+        }
+        if (length > DNSPacketReader.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("DNS name longer than " + DNSPacketReader.MAX_NAME_LENGTH + " bytes");
+        }
+
+        byte[] wire = new byte[length];
+        int at = 0;
+        for (String label : labels) {
+            if (label.length() > 63) {
+                throw new IllegalArgumentException("DNS label longer than 63 bytes: " + label);
+            }
+            wire[at++] = (byte) label.length();
+            for (int c = 0; c < label.length(); c++) {
+                wire[at++] = toLower((byte) label.charAt(c));
+            }
+        }
+        wire[at] = 0;
+        return new DNSName(wire);
+    }
+
+    /**
+     * Builds a name key from a (possibly compressed) name inside a packet.
+     * @param reader A reader wrapped around the DNS message.
+     * @param offset Where the name starts; must be a name validated by the reader.
+     * @return The canonical name.
+     */
+    public static DNSName fromPacket(DNSPacketReader reader, int offset) {
+        int length = 1;
+        for (int at = reader.nextLabel(offset); at >= 0; at = reader.nextLabel(at + 1 + reader.getUnsignedByte(at))) {
+            length += reader.getUnsignedByte(at) + 1;
+        }
+
+        byte[] wire = new byte[length];
+        int out = 0;
+        for (int at = reader.nextLabel(offset); at >= 0; at = reader.nextLabel(at + 1 + reader.getUnsignedByte(at))) {
+            int labelLength = reader.getUnsignedByte(at);
+            wire[out++] = (byte) labelLength;
+            for (int c = 1; c <= labelLength; c++) {
+                wire[out++] = toLower((byte) reader.getUnsignedByte(at + c));
+            }
+        }
+        wire[out] = 0;
+        return new DNSName(wire);
+    }
+
+    /**
+     * Refills a scratch name from a (possibly compressed) name inside a packet, without allocating.
+     * @param reader A reader wrapped around the DNS message.
+     * @param offset Where the name starts; must be a name validated by the reader.
+     */
+    public void readFrom(DNSPacketReader reader, int offset) {
+        int out = 0;
+        for (int at = reader.nextLabel(offset); at >= 0; at = reader.nextLabel(at + 1 + reader.getUnsignedByte(at))) {
+            int labelLength = reader.getUnsignedByte(at);
+            wire[out++] = (byte) labelLength;
+            for (int c = 1; c <= labelLength; c++) {
+                wire[out++] = toLower((byte) reader.getUnsignedByte(at + c));
+            }
+        }
+        wire[out] = 0;
+        size = out + 1;
+        hash = hashOf(wire, size);
+    }
+
+    /**
+     * @return An immutable copy, for keeping a name that may be a scratch name.
+     */
+    public DNSName copy() {
+        return new DNSName(Arrays.copyOf(wire, size));
+    }
+
+    /**
+     * Builds a name key from bytes that are already lowercase, uncompressed wire format,
+     * e.g. a name read back from a cache snapshot.
+     * @param wire The name bytes; not copied.
+     * @return The canonical name.
+     * @throws IOException If the bytes are not a valid uncompressed name.
+     */
+    public static DNSName fromWire(byte[] wire) throws IOException {
+        int at = 0;
+        while (at < wire.length && wire[at] != 0) {
+            int labelLength = wire[at] & 0xFF;
+            if (labelLength > 63) {
+                throw new IOException("Invalid DNS label length " + labelLength);
+            }
+            at += labelLength + 1;
+        }
+        if (at != wire.length - 1 || wire.length > DNSPacketReader.MAX_NAME_LENGTH) {
+            throw new IOException("Malformed DNS name in wire format");
+        }
+        return new DNSName(wire);
+    }
+
+    /**
+     * Splits the name back into (lowercase) label Strings.
+     * @return An array of domain name segments.
+     */
+    public String[] toLabels() {
+        int count = 0;
+        for (int at = 0; wire[at] != 0; at += (wire[at] & 0xFF) + 1) {
+            count++;
+        }
+        String[] labels = new String[count];
+        int i = 0;
+        for (int at = 0; wire[at] != 0; at += (wire[at] & 0xFF) + 1) {
+            labels[i++] = new String(wire, at + 1, wire[at] & 0xFF, StandardCharsets.ISO_8859_1);
+        }
+        return labels;
+    }
+
+    /**
+     * @return The length of the name in uncompressed wire format.
+     */
+    public int wireLength() {
+        return size;
+    }
+
+    /**
+     * Copies the wire-format bytes out, e.g. into a snapshot or off-heap slab.
+     * @return A copy of the lowercase wire bytes.
+     */
+    public byte[] toWire() {
+        return Arrays.copyOf(wire, size);
+    }
+
+    /**
+     * Writes the wire-format bytes into a buffer at an absolute offset, e.g. into an off-heap slab.
+     * @param buffer The buffer to write into; its position is not changed.
+     * @param offset Where the name starts.
+     */
+    public void putWire(ByteBuffer buffer, int offset) {
+        buffer.put(offset, wire, 0, size);
+    }
+
+    /**
+     * Compares this name with wire-format bytes stored in a buffer, without copying them out.
+     * @param buffer The buffer holding a name written by putWire.
+     * @param offset Where that name starts.
+     * @param length Its length in bytes.
+     * @return true if the stored name is this name.
+     */
+    public boolean equalsWire(ByteBuffer buffer, int offset, int length) {
+        if (length != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (buffer.get(offset + i) != wire[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The name with its first label removed, e.g. example.com for www.example.com, or null for the root.
+     */
+    public DNSName parent() {
+        if (size == 1) {
+            return null;
+        }
+        return new DNSName(Arrays.copyOfRange(wire, (wire[0] & 0xFF) + 1, size));
+    }
+
+    /**
+     * Checks whether this name is at or below a zone, label by label, so example.com is not under ample.com.
+     * @param zone The zone name.
+     * @return true if this name equals the zone or ends with it.
+     */
+    public boolean isSubdomainOf(DNSName zone) {
+        for (int at = 0; size - at >= zone.size; at += (wire[at] & 0xFF) + 1) {
+            if (size - at == zone.size) {
+                return Arrays.equals(wire, at, size, zone.wire, 0, zone.size);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives code that walks the labels itself the wire-format bytes without a copy.
+     * @return The lowercase wire bytes, shared: callers must not change them. For a scratch name
+     *         the array is longer than the name, which ends at its 0 byte.
+     */
+    byte[] wire() {
+        return wire;
+    }
+
+    // Arrays.hashCode of the first bytes, so a scratch name hashes like an exact-size copy of it
+    private static int hashOf(byte[] bytes, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    // ASCII-only lowercase, DNS names compare case-insensitively only for A-Z (RFC 4343)
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DNSName)) return false;
+        DNSName that = (DNSName) o;
+        return hash == that.hash && Arrays.equals(wire, 0, size, that.wire, 0, that.size);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return (size == 1) ? "." : String.join(".", toLabels());
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A flyweight, zero-copy view over a DNS message held in a ByteBuffer.
+ * wrap() validates the whole message once and records where every question and
+ * record starts; after that every field is read straight out of the buffer by offset.
+ * Names are never turned into Strings unless readLabels() is called.
+ * One reader can be reused for many packets, so steady-state decoding allocates nothing.
+ * Not thread safe: use one reader per thread.
+ */
+public class DNSPacketReader {
+    public static final int HEADER_SIZE = 12;
+    public static final int MAX_NAME_LENGTH = 255;  // Longest name in wire format (RFC 1035)
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_POINTER_JUMPS = 127; // Can't be more without revisiting an offset
+    private static final int MIN_QUESTION_SIZE = 5;   // Root name, qtype, qclass
+    private static final int MIN_RECORD_SIZE = 11;    // Root name, type, class, ttl, rdlength, no rdata
+
+    private ByteBuffer packet; // Buffer holding the message
+    private int base;          // Buffer index where the message starts (offset 0)
+    private int length;        // Message length in bytes
+
+    private int questionCount;
+    private int answerCount;
+    private int authorityCount;
+    private int additionalCount;
+
+    // Offsets are relative to the start of the message, like DNS compression pointers
+    private int[] questionNameOffsets = new int[4];
+    private int[] questionFieldOffsets = new int[4]; // Where qtype starts
+    private int[] recordNameOffsets = new int[16];
+    private int[] recordFieldOffsets = new int[16];  // Where type starts; class, ttl, rdlength and rdata follow
+
+    /**
+     * Points this reader at a new message and validates it.
+     * The message runs from the buffer's position to its limit; neither is changed.
+     * @param packet The buffer holding the DNS message.
+     * @throws IOException If the message is truncated or a name is malformed.
+     */
+    public void wrap(ByteBuffer packet) throws IOException {
+        this.packet = packet;
+        this.base = packet.position();
+        this.length = packet.remaining();
+
+        if (length < HEADER_SIZE) {
+            throw new IOException("DNS message shorter than a header: " + length + " bytes");
+        }
+        questionCount = getUnsignedShort(4);
+        answerCount = getUnsignedShort(6);
+        authorityCount = getUnsignedShort(8);
+        additionalCount = getUnsignedShort(10);
+
+        // Counts are only trusted as far as the bytes could hold them, before any array grows to fit
+        int recordCount = recordCount();
+        if ((long) questionCount * MIN_QUESTION_SIZE + (long) recordCount * MIN_RECORD_SIZE > length - HEADER_SIZE) {
+            throw new IOException("DNS message too short for " + questionCount + " questions and " + recordCount + " records");
+        }
+
+        if (questionNameOffsets.length < questionCount) {
+            questionNameOffsets = new int[questionCount];
+            questionFieldOffsets = new int[questionCount];
+        }
+        if (recordNameOffsets.length < recordCount) {
+            recordNameOffsets = new int[recordCount];
+            recordFieldOffsets = new int[recordCount];
+        }
+
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < questionCount; i++) {
+            questionNameOffsets[i] = offset;
+            offset = skipName(offset);
+            questionFieldOffsets[i] = offset;
+            offset = checkBounds(offset, 4); // qtype + qclass
+        }
+
+        for (int i = 0; i < recordCount; i++) {
+            recordNameOffsets[i] = offset;
+            offset = skipName(offset);
+            recordFieldOffsets[i] = offset;
+            offset = checkBounds(offset, 10); // type + class + ttl + rdlength
+            offset = checkBounds(offset, getUnsignedShort(offset - 2));
+        }
+    }
+
+    /**
+     * Walks a name starting at an offset, validating every label and pointer on the way.
+     * Pointers must point strictly backwards, which rules out compression loops.
+     * @param offset Where the name starts.
+     * @return The offset just past the name as it is stored here (after the first pointer, if any).
+     * @throws IOException If the name is truncated, too long, or loops.
+     */
+    public int skipName(int offset) throws IOException {
+        int end = -1;       // End of the name in place, known once we follow the first pointer
+        int nameLength = 1; // Wire length of the expanded name, counting the root label
+        int jumps = 0;
+
+        while (true) {
+            checkBounds(offset, 1);
+            int labelLength = getUnsignedByte(offset);
+
+            if (labelLength == 0) {
+                return (end >= 0) ? end : offset + 1;
+            }
+
+            if ((labelLength & 0xC0) == 0xC0) { // Compression pointer
+                checkBounds(offset, 2);
+                int pointer = getUnsignedShort(offset) & 0x3FFF;
+                if (pointer >= offset || ++jumps > MAX_POINTER_JUMPS) {
+                    throw new IOException("DNS name compression loop at offset " + offset);
+                }
+                if (end < 0) {
+                    end = offset + 2;
+                }
+                offset = pointer;
+            } else if (labelLength > MAX_LABEL_LENGTH) { // 0x40 and 0x80 label types are not used
+                throw new IOException("Unsupported DNS label type at offset " + offset);
+            } else {
+                nameLength += labelLength + 1;
+                if (nameLength > MAX_NAME_LENGTH) {
+                    throw new IOException("DNS name longer than " + MAX_NAME_LENGTH + " bytes");
+                }
+                offset = checkBounds(offset, labelLength + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads a name into separate label Strings. This allocates, so the hot path avoids it.
+     * @param offset Where the name starts; must be a name found by wrap().
+     * @return An array of domain name segments.
+     */
+    public String[] readLabels(int offset) {
+        int count = 0;
+        for (int at = nextLabel(offset); at >= 0; at = nextLabel(at + 1 + getUnsignedByte(at))) {
+            count++;
+        }
+
+        String[] labels = new String[count];
+        int i = 0;
+        for (int at = nextLabel(offset); at >= 0; at = nextLabel(at + 1 + getUnsignedByte(at))) {
+            byte[] label = new byte[getUnsignedByte(at)];
+            packet.get(base + at + 1, label);
+            labels[i++] = new String(label, StandardCharsets.ISO_8859_1);
+        }
+        return labels;
+    }
+
+    /**
+     * Follows pointers from an offset until it lands on a length byte.
+     * @return The offset of the next real label, or -1 at the end of the name.
+     */
+    public int nextLabel(int offset) {
+        int labelLength = getUnsignedByte(offset);
+        while ((labelLength & 0xC0) == 0xC0) {
+            offset = getUnsignedShort(offset) & 0x3FFF;
+            labelLength = getUnsignedByte(offset);
+        }
+        return (labelLength == 0) ? -1 : offset;
+    }
+
+    /**
+     * @return The offset just past the question section.
+     */
+    public int questionSectionEnd() {
+        return (questionCount == 0) ? HEADER_SIZE : questionFieldOffsets[questionCount - 1] + 4;
+    }
+
+    // ---- Header fields ----
+
+    public int getId() {
+        return getUnsignedShort(0);
+    }
+
+    public int getFlags() {
+        return getUnsignedShort(2);
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    public int getAuthorityCount() {
+        return authorityCount;
+    }
+
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
+
+    // ---- Questions ----
+
+    public int getQuestionNameOffset(int index) {
+        return questionNameOffsets[index];
+    }
+
+    public int getQuestionType(int index) {
+        return getUnsignedShort(questionFieldOffsets[index]);
+    }
+
+    public int getQuestionClass(int index) {
+        return getUnsignedShort(questionFieldOffsets[index] + 2);
+    }
+
+    // ---- Records: answers first, then authority, then additional ----
+
+    /**
+     * @return The total number of answer, authority and additional records.
+     */
+    public int recordCount() {
+        return answerCount + authorityCount + additionalCount;
+    }
+
+    /**
+     * Finds the EDNS0 OPT pseudo-record (RFC 6891), which can only be in the additional section.
+     * @return Its record index, or -1 if the message has none.
+     */
+    public int findOptRecord() {
+        for (int i = answerCount + authorityCount; i < recordCount(); i++) {
+            if (getRecordType(i) == DNSRecord.TYPE_OPT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getRecordNameOffset(int index) {
+        return recordNameOffsets[index];
+    }
+
+    public int getRecordType(int index) {
+        return getUnsignedShort(recordFieldOffsets[index]);
+    }
+
+    public int getRecordClass(int index) {
+        return getUnsignedShort(recordFieldOffsets[index] + 2);
+    }
+
+    public int getRecordTtlOffset(int index) {
+        return recordFieldOffsets[index] + 4;
+    }
+
+    public int getRecordTtl(int index) {
+        return getInt(recordFieldOffsets[index] + 4);
+    }
+
+    public int getRecordDataLength(int index) {
+        return getUnsignedShort(recordFieldOffsets[index] + 8);
+    }
+
+    public int getRecordDataOffset(int index) {
+        return recordFieldOffsets[index] + 10;
+    }
+
+    // ---- Raw access by message offset ----
+
+    public ByteBuffer getBuffer() {
+        return packet;
+    }
+
+    /**
+     * @return The buffer index of message offset 0.
+     */
+    public int getBase() {
+        return base;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getUnsignedByte(int offset) {
+        return packet.get(base + offset) & 0xFF;
+    }
+
+    public int getUnsignedShort(int offset) {
+        return packet.getShort(base + offset) & 0xFFFF;
+    }
+
+    public int getInt(int offset) {
+        return packet.getInt(base + offset);
+    }
+
+    /**
+     * Makes sure count bytes starting at offset are inside the message.
+     * @return offset + count
+     */
+    private int checkBounds(int offset, int count) throws IOException {
+        if (offset + count > length) {
+            throw new IOException("DNS message truncated at offset " + offset);
+        }
+        return offset + count;
+    }
+}
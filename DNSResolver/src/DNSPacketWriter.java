@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a DNS message straight into a ByteBuffer.
+ * Every label written is remembered as the start of a suffix, so a name is written as its
+ * labels up to the longest suffix already in the message and then a compression pointer:
+ * cdn.example.com after www.example.com costs "cdn" and a pointer to "example.com".
+ * The suffix table only keeps offsets into the output, so a writer can be
+ * reset and reused for every response without allocating.
+ * Not thread safe: use one writer per thread.
+ */
+public class DNSPacketWriter {
+    private static final int MAX_COMPRESSION_TARGETS = 128; // Suffixes remembered for compression
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;   // Pointers only have 14 bits
+
+    private ByteBuffer out; // Buffer being written
+    private int base;       // Buffer index where the message starts (offset 0)
+
+    private final int[] suffixOffsets = new int[MAX_COMPRESSION_TARGETS]; // Where each written label starts
+    private int suffixCount;
+    private final byte[] scratch = new byte[DNSPacketReader.MAX_NAME_LENGTH]; // A label array turned into wire format
+
+    /**
+     * Starts a new message at the buffer's current position.
+     * @param out The buffer to write into.
+     */
+    public void reset(ByteBuffer out) {
+        this.out = out;
+        this.base = out.position();
+        this.suffixCount = 0;
+    }
+
+    /**
+     * @return The number of bytes written so far, which is also the offset of the next byte.
+     */
+    public int position() {
+        return out.position() - base;
+    }
+
+    /**
+     * Gets the buffer being written, e.g. to send it once the message is done.
+     * @return The output buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return out;
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensureRemaining(1);
+        out.put((byte) value);
+    }
+
+    public void writeShort(int value) throws IOException {
+        ensureRemaining(2);
+        out.putShort((short) value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensureRemaining(4);
+        out.putInt(value);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        ensureRemaining(bytes.length);
+        out.put(bytes);
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int count) throws IOException {
+        ensureRemaining(count);
+        out.put(bytes, offset, count);
+    }
+
+    /**
+     * Copies a range of another message's bytes, e.g. a question section, without decoding it.
+     * @param source The message to copy from.
+     * @param offset The message offset to start at.
+     * @param count How many bytes to copy.
+     */
+    public void writeBytes(DNSPacketReader source, int offset, int count) throws IOException {
+        ensureRemaining(count);
+        out.put(out.position(), source.getBuffer(), source.getBase() + offset, count);
+        out.position(out.position() + count);
+    }
+
+    /**
+     * Overwrites a 16-bit value already written, e.g. a section count.
+     * @param offset The message offset of the value.
+     * @param value The new value.
+     */
+    public void putShort(int offset, int value) {
+        out.putShort(base + offset, (short) value);
+    }
+
+    /**
+     * Records that a name starts at an offset, so later names ending the same way can point into it.
+     * Used for names that were copied in as raw bytes rather than through writeName.
+     * @param offset The message offset of the name.
+     */
+    public void addCompressionTarget(int offset) {
+        for (int at = offset; ; at += (out.get(base + at) & 0xFF) + 1) {
+            int labelLength = out.get(base + at) & 0xFF;
+            if (labelLength == 0 || (labelLength & 0xC0) == 0xC0) {
+                return; // Suffixes past a pointer are already in the table, where the pointer leads
+            }
+            addSuffix(at);
+        }
+    }
+
+    private void addSuffix(int offset) {
+        if (suffixCount < MAX_COMPRESSION_TARGETS && offset <= MAX_POINTER_OFFSET) {
+            suffixOffsets[suffixCount++] = offset;
+        }
+    }
+
+    /**
+     * Writes a domain name, compressed against every name written before.
+     * @param labels The domain name split into segments.
+     */
+    public void writeName(String[] labels) throws IOException {
+        int length = 0;
+        for (String label : labels) {
+            if (label.length() > 63 || length + label.length() + 2 > scratch.length) {
+                throw new IOException("DNS name too long to encode");
+            }
+            scratch[length++] = (byte) label.length();
+            for (int c = 0; c < label.length(); c++) {
+                scratch[length++] = (byte) label.charAt(c); // Labels are ISO-8859-1, one byte per char
+            }
+        }
+        scratch[length] = 0;
+        writeName(scratch, 0);
+    }
+
+    /**
+     * Writes a domain name given in uncompressed wire format, compressed against every name written before:
+     * the labels before the longest suffix already in the message, then a pointer to that suffix.
+     * @param name Bytes holding the name.
+     * @param offset Where the name starts in them.
+     * @return The index just past the name in the given bytes.
+     */
+    public int writeName(byte[] name, int offset) throws IOException {
+        int end = offset;
+        while (name[end] != 0) {
+            end += (name[end] & 0xFF) + 1;
+        }
+
+        // The first label from which the rest is already in the message gives the longest match
+        int pointer = -1;
+        int literalEnd = offset;
+        for (; name[literalEnd] != 0; literalEnd += (name[literalEnd] & 0xFF) + 1) {
+            pointer = findSuffix(name, literalEnd);
+            if (pointer >= 0) {
+                break;
+            }
+        }
+
+        ensureRemaining(literalEnd - offset + ((pointer >= 0) ? 2 : 1));
+        for (int at = offset; at < literalEnd; at += (name[at] & 0xFF) + 1) {
+            addSuffix(position());
+            out.put(name, at, (name[at] & 0xFF) + 1);
+        }
+        if (pointer >= 0) {
+            out.putShort((short) (0xC000 | pointer)); // Compression flag plus 14-bit offset
+        } else {
+            out.put((byte) 0); // Null terminator
+        }
+        return end + 1;
+    }
+
+    /**
+     * Looks for a written name suffix equal to the labels of a name from a given label on.
+     * @return The message offset of the suffix, or -1 if there is none.
+     */
+    private int findSuffix(byte[] name, int from) {
+        for (int i = 0; i < suffixCount; i++) {
+            if (suffixEquals(suffixOffsets[i], name, from)) {
+                return suffixOffsets[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a name already in the output with wire-format labels, following pointers.
+     * Case is compared exactly, so compression never changes how a name is spelled.
+     */
+    private boolean suffixEquals(int offset, byte[] name, int at) {
+        while (true) {
+            int labelLength = out.get(base + offset) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0) {
+                offset = (out.getShort(base + offset) & 0x3FFF);
+                continue;
+            }
+            if (labelLength != (name[at] & 0xFF)) {
+                return false;
+            }
+            if (labelLength == 0) {
+                return true;
+            }
+            for (int c = 1; c <= labelLength; c++) {
+                if (name[at + c] != out.get(base + offset + c)) {
+                    return false;
+                }
+            }
+            offset += labelLength + 1;
+            at += labelLength + 1;
+        }
+    }
+
+    /**
+     * @return The number of bytes still free in the output buffer.
+     */
+    public int remaining() {
+        return out.remaining();
+    }
+
+    /**
+     * Fails cleanly instead of overflowing the buffer.
+     */
+    private void ensureRemaining(int count) throws IOException {
+        if (out.remaining() < count) {
+            throw new IOException("DNS message does not fit in " + (out.limit() - base) + " bytes");
+        }
+    }
+}
@@ -1,51 +1,157 @@
-import java.io.*;
-import java.util.HashMap;
-import java.util.Objects;
+import java.io.IOException;
 
 public class DNSQuestion {
-    private String[] domainName;  // The domain being queried
+    private String[] domainName;  // The domain being queried, as the client spelled it
+    private DNSName name;         // Canonical lowercase key used for equality and hashing
     private int qtype;  // Record type like: A, AAAA, CNAME
     private int qclass; // Usually 1 (IN - Internet)
+    private int hash;   // Worked out once, questions are used as map keys
 
+    private DNSQuestion() {
+    }
+
+    /**
+     * Creates a question, e.g. for a query we send ourselves.
+     * @param domainName The domain name split into segments.
+     * @param qtype The record type being asked for.
+     * @param qclass The class, usually 1 (IN).
+     */
+    public DNSQuestion(String[] domainName, int qtype, int qclass) {
+        this.domainName = domainName;
+        this.name = DNSName.fromLabels(domainName);
+        this.qtype = qtype;
+        this.qclass = qclass;
+        this.hash = computeHash();
+    }
+
+    /**
+     * Creates a question from a name key, e.g. one read back from the cache.
+     * @param name The canonical name.
+     * @param qtype The record type being asked for.
+     * @param qclass The class, usually 1 (IN).
+     */
+    public DNSQuestion(DNSName name, int qtype, int qclass) {
+        this.name = name;
+        this.qtype = qtype;
+        this.qclass = qclass;
+        this.hash = computeHash();
+    }
 
     /**
-     * Decodes a DNS question from an InputStream.
-     * @param inputStream The input stream containing DNS question data.
-     * @param message The DNS message containing the question.
+     * Decodes a DNS question from a packet reader.
+     * @param reader A reader wrapped around the DNS message.
+     * @param index Which question in the message to decode.
      * @return A DNSQuestion object.
      */
-    public static DNSQuestion decodeQuestion(InputStream inputStream, DNSMessage message) throws IOException {
+    public static DNSQuestion decodeQuestion(DNSPacketReader reader, int index) {
         DNSQuestion question = new DNSQuestion();
 
-        // Read the domain name using message helper method
-        question.domainName = message.readDomainName(inputStream);
-
-        DataInputStream dataInput = new DataInputStream(inputStream);
+        // Read the domain name (the reader handles compression)
+        question.domainName = reader.readLabels(reader.getQuestionNameOffset(index));
+        question.name = DNSName.fromPacket(reader, reader.getQuestionNameOffset(index));
 
         // Read 16-bit type: A, AAAA, CNAME etc.
-        question.qtype = dataInput.readUnsignedShort();
+        question.qtype = reader.getQuestionType(index);
 
         // Read 16-bit class (usually 1 for Internet)
-        question.qclass = dataInput.readUnsignedShort();
+        question.qclass = reader.getQuestionClass(index);
 
+        question.hash = question.computeHash();
         return question;
     }
 
     /**
-     * Writes the question into an output stream.
-     * @param outputStream The output stream to write question bytes.
-     * @param domainNameLocations HashMap to track domain name positions for compression.
+     * Decodes just enough of a question to look it up in the cache.
+     * The label Strings are skipped and only built later if something asks for them.
+     * @param reader A reader wrapped around the DNS message.
+     * @param index Which question in the message to decode.
+     * @return A DNSQuestion object usable as a cache key.
      */
-    public void writeBytes(ByteArrayOutputStream outputStream, HashMap<String, Integer> domainNameLocations) throws IOException {
+    public static DNSQuestion decodeKey(DNSPacketReader reader, int index) {
+        DNSQuestion question = new DNSQuestion();
+        question.name = DNSName.fromPacket(reader, reader.getQuestionNameOffset(index));
+        question.qtype = reader.getQuestionType(index);
+        question.qclass = reader.getQuestionClass(index);
+        question.hash = question.computeHash();
+        return question;
+    }
 
-        // Write domain name, allowing for compression
-        DNSMessage.writeDomainName(outputStream, domainNameLocations, domainName);
+    /**
+     * Creates a key for decodeKeyInto, which a receive loop refills for every request so that
+     * looking a question up allocates nothing. It must never be kept: store copy() instead.
+     * @return An empty question with a scratch name.
+     */
+    public static DNSQuestion scratchKey() {
+        DNSQuestion question = new DNSQuestion();
+        question.name = DNSName.scratch();
+        return question;
+    }
 
-        DataOutputStream dataOutput = new DataOutputStream(outputStream);
+    /**
+     * Refills a key from scratchKey with a question from a packet, like decodeKey but in place.
+     * @param reader A reader wrapped around the DNS message.
+     * @param index Which question in the message to decode.
+     * @return This question, now usable as a cache key.
+     */
+    public DNSQuestion decodeKeyInto(DNSPacketReader reader, int index) {
+        domainName = null;
+        name.readFrom(reader, reader.getQuestionNameOffset(index));
+        qtype = reader.getQuestionType(index);
+        qclass = reader.getQuestionClass(index);
+        hash = computeHash();
+        return this;
+    }
+
+    /**
+     * @return A question that is safe to keep, for a key that may be a scratch key.
+     */
+    public DNSQuestion copy() {
+        return new DNSQuestion(name.copy(), qtype, qclass);
+    }
+
+    /**
+     * Writes the question through a packet writer.
+     * @param writer The writer to encode into; it tracks names for compression.
+     */
+    public void writeBytes(DNSPacketWriter writer) throws IOException {
+
+        // Write domain name, allowing for compression
+        writer.writeName(getDomainName());
 
         // Write the type and class fields
-        dataOutput.writeShort(qtype);
-        dataOutput.writeShort(qclass);
+        writer.writeShort(qtype);
+        writer.writeShort(qclass);
+    }
+
+    /**
+     * Gets the domain name labels, rebuilding them from the name key if this question
+     * was decoded with decodeKey.
+     * @return An array of domain name segments.
+     */
+    public String[] getDomainName() {
+        if (domainName == null) {
+            domainName = name.toLabels();
+        }
+        return domainName;
+    }
+
+    /**
+     * @return The canonical name key.
+     */
+    public DNSName getName() {
+        return name;
+    }
+
+    public int getQtype() {
+        return qtype;
+    }
+
+    public int getQclass() {
+        return qclass;
+    }
+
+    private int computeHash() {
+        return 31 * (31 * name.hashCode() + qtype) + qclass;
     }
 
     @Override
@@ -53,18 +159,18 @@ public class DNSQuestion {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return qtype == that.qtype && qclass == that.qclass && Objects.equals(domainName, that.domainName);
+        return hash == that.hash && qtype == that.qtype && qclass == that.qclass && name.equals(that.name);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(domainName, qtype, qclass);
+        return hash;
     }
 
     @Override
     public String toString() {
         return "DNSQuestion{" +
-                "domainName=" + String.join(".", domainName) +
+                "domainName=" + String.join(".", getDomainName()) +
                 ", qtype=" + qtype +
                 ", qclass=" + qclass +
                 '}';
@@ -1,10 +1,20 @@
-import java.io.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 
 public class DNSRecord {
+    public static final int TYPE_NS = 2;     // Name server
+    public static final int TYPE_CNAME = 5;  // Alias for another name
+    public static final int TYPE_SOA = 6;    // Start of authority
+    public static final int TYPE_PTR = 12;   // Reverse lookup pointer
+    public static final int TYPE_MX = 15;    // Mail exchange
+    public static final int TYPE_OPT = 41;   // EDNS0 pseudo-record, its class is the UDP payload size
+
     private String[] domainName;  // The domain name this record corresponds to
+    private DNSName name;         // Canonical lowercase owner name, used for equality
     private int type;   // Record type:  A, AAAA, CNAME
     private int clazz;  // Usually 1 (IN - Internet)
     private int ttl;    // Time-to-live (how long this record is valid)
@@ -12,60 +22,184 @@ public class DNSRecord {
     private Date creationDate; // Timestamp when the record was cached
 
     /**
-     * Decodes a DNS record from an InputStream.
-     * @param inputStream The input stream containing DNS record data.
-     * @param message The DNSMessage object containing this record.
+     * Decodes a DNS record from a packet reader.
+     * @param reader A reader wrapped around the DNS message.
+     * @param index Which record in the message to decode (answers, then authority, then additional).
      * @return A DNSRecord object.
+     * @throws IOException If the record data holds a malformed name.
      */
-    public static DNSRecord decodeRecord(InputStream inputStream, DNSMessage message) throws IOException {
-        DNSRecord record = new DNSRecord();
+    public static DNSRecord decodeRecord(DNSPacketReader reader, int index) throws IOException {
+        return decodeRecord(reader, index, System.currentTimeMillis());
+    }
 
-        // Read the domain name using message helper method (handles compression)
-        record.domainName = message.readDomainName(inputStream);
+    /**
+     * Decodes a DNS record whose TTL started counting at a given time, e.g. one read back from a snapshot.
+     * @param reader A reader wrapped around the DNS message.
+     * @param index Which record in the message to decode (answers, then authority, then additional).
+     * @param createdAt When the TTL in the message was current, in milliseconds since the epoch.
+     * @return A DNSRecord object.
+     * @throws IOException If the record data holds a malformed name.
+     */
+    public static DNSRecord decodeRecord(DNSPacketReader reader, int index, long createdAt) throws IOException {
+        DNSRecord record = new DNSRecord();
 
-        DataInputStream dataInput = new DataInputStream(inputStream);
+        // Read the domain name (the reader handles compression)
+        record.domainName = reader.readLabels(reader.getRecordNameOffset(index));
+        record.name = DNSName.fromPacket(reader, reader.getRecordNameOffset(index));
 
         // Read 16-bit type: A, AAAA, CNAME
-        record.type = dataInput.readUnsignedShort();
+        record.type = reader.getRecordType(index);
 
         // Read 16-bit class (usually 1 for Internet)
-        record.clazz = dataInput.readUnsignedShort();
+        record.clazz = reader.getRecordClass(index);
 
         // Read 32-bit TTL (time-to-live)
-        record.ttl = dataInput.readInt();
-
-        // Read 16-bit data length
-        int dataLength = dataInput.readUnsignedShort();
+        record.ttl = reader.getRecordTtl(index);
 
         // Read the actual answer data
-        record.data = new byte[dataLength];
-        dataInput.readFully(record.data);
+        // Names inside the data may point elsewhere in the packet, so they are expanded
+        switch (record.type) {
+            case TYPE_NS, TYPE_CNAME, TYPE_PTR -> record.data = decodeNameData(reader, index, 0, 1, 0);
+            case TYPE_MX -> record.data = decodeNameData(reader, index, 2, 1, 0);   // PREFERENCE, EXCHANGE
+            case TYPE_SOA -> record.data = decodeNameData(reader, index, 0, 2, 20); // MNAME, RNAME, 5 numbers
+            default -> {
+                record.data = new byte[reader.getRecordDataLength(index)];
+                reader.getBuffer().get(reader.getBase() + reader.getRecordDataOffset(index), record.data);
+            }
+        }
 
-        // Set the creation time to now (used for expiration checks)
-        record.creationDate = new Date();
+        // Set the creation time (used for expiration checks)
+        record.creationDate = new Date(createdAt);
 
         return record;
     }
 
+    /**
+     * Reads record data laid out as fixed bytes, then names, then fixed bytes, with the names
+     * expanded, so the bytes stay valid when the record is written into another message.
+     * @param prefix Fixed bytes before the names.
+     * @param names How many names follow.
+     * @param suffix Fixed bytes after the names.
+     */
+    private static byte[] decodeNameData(DNSPacketReader reader, int index, int prefix, int names, int suffix) throws IOException {
+        int offset = reader.getRecordDataOffset(index);
+        int end = offset + reader.getRecordDataLength(index);
+        if (end - offset < prefix + names + suffix) {
+            throw new IOException("Record data too short for type " + reader.getRecordType(index));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end - offset + 32);
+        for (; prefix > 0; prefix--) {
+            out.write(reader.getUnsignedByte(offset++));
+        }
+        for (int name = 0; name < names; name++) {
+            int nameEnd = reader.skipName(offset); // Validates the name, the packet check only covered owner names
+            for (int at = reader.nextLabel(offset); at >= 0; at = reader.nextLabel(at + 1 + reader.getUnsignedByte(at))) {
+                for (int c = 0; c <= reader.getUnsignedByte(at); c++) {
+                    out.write(reader.getUnsignedByte(at + c));
+                }
+            }
+            out.write(0);
+            offset = nameEnd;
+        }
+
+        if (end - offset != suffix) {
+            throw new IOException("Malformed data in record of type " + reader.getRecordType(index));
+        }
+        for (; offset < end; offset++) {
+            out.write(reader.getUnsignedByte(offset));
+        }
+        return out.toByteArray();
+    }
 
     /**
-     * Writes this record to an output stream.
-     * @param outputStream The output stream to write the record bytes.
-     * @param domainLocations HashMap to track domain name positions for compression.
+     * Gets the TTL this record should have in a negative answer (RFC 2308 section 3):
+     * for an SOA that is its own TTL capped at its MINIMUM field.
+     * @return The negative caching TTL, or the plain TTL for other types.
      */
-    public void writeBytes(ByteArrayOutputStream outputStream, HashMap<String, Integer> domainLocations) throws IOException {
+    public int getNegativeTtl() {
+        if (type != TYPE_SOA) {
+            return ttl;
+        }
+        int minimum = ((data[data.length - 4] & 0xFF) << 24) | ((data[data.length - 3] & 0xFF) << 16)
+                | ((data[data.length - 2] & 0xFF) << 8) | (data[data.length - 1] & 0xFF);
+        return Math.min(ttl, Math.max(0, minimum));
+    }
 
-        // Write domain name using DNS encoding (supports compression)
-        DNSMessage.writeDomainName(outputStream, domainLocations, domainName);
+    /**
+     * Makes a copy of this record with a different TTL.
+     * @param ttl The new TTL in seconds.
+     * @return The copy.
+     */
+    public DNSRecord withTtl(int ttl) {
+        DNSRecord record = new DNSRecord();
+        record.domainName = domainName;
+        record.name = name;
+        record.type = type;
+        record.clazz = clazz;
+        record.ttl = ttl;
+        record.data = data;
+        record.creationDate = creationDate;
+        return record;
+    }
 
-        DataOutputStream dataOutput = new DataOutputStream(outputStream);
+    /**
+     * Builds an EDNS0 OPT pseudo-record (RFC 6891) with no options.
+     * @param udpPayloadSize The largest UDP message the sender can receive.
+     * @return The OPT record, owned by the root name.
+     */
+    public static DNSRecord buildOpt(int udpPayloadSize) {
+        DNSRecord record = new DNSRecord();
+        record.domainName = new String[0];
+        record.name = DNSName.fromLabels(record.domainName);
+        record.type = TYPE_OPT;
+        record.clazz = udpPayloadSize;
+        record.ttl = 0; // Extended RCODE, version 0, no DO bit
+        record.data = new byte[0];
+        record.creationDate = new Date();
+        return record;
+    }
+
+    /**
+     * Writes this record through a packet writer.
+     * @param writer The writer to encode into; it tracks names for compression.
+     */
+    public void writeBytes(DNSPacketWriter writer) throws IOException {
+
+        // Write domain name using DNS encoding (supports compression)
+        writer.writeName(domainName);
 
         // Write type, class, TTL, and data length
-        dataOutput.writeShort(type);
-        dataOutput.writeShort(clazz);
-        dataOutput.writeInt(ttl);
-        dataOutput.writeShort(data.length);
-        dataOutput.write(data);
+        writer.writeShort(type);
+        writer.writeShort(clazz);
+        writer.writeInt(ttl);
+
+        // Names in the data of the RFC 1035 types may be compressed too (RFC 3597 section 4)
+        switch (type) {
+            case TYPE_NS, TYPE_CNAME, TYPE_PTR -> writeNameData(writer, 0, 1);
+            case TYPE_MX -> writeNameData(writer, 2, 1);   // PREFERENCE, EXCHANGE
+            case TYPE_SOA -> writeNameData(writer, 0, 2);  // MNAME, RNAME, 5 numbers
+            default -> {
+                writer.writeShort(data.length);
+                writer.writeBytes(data);
+            }
+        }
+    }
+
+    /**
+     * Writes data laid out as decodeNameData left it, fixed bytes around expanded names,
+     * with the names compressed, then fills in the data length.
+     */
+    private void writeNameData(DNSPacketWriter writer, int prefix, int names) throws IOException {
+        int lengthAt = writer.position();
+        writer.writeShort(0); // Filled in below
+        writer.writeBytes(data, 0, prefix);
+        int at = prefix;
+        for (int name = 0; name < names; name++) {
+            at = writer.writeName(data, at);
+        }
+        writer.writeBytes(data, at, data.length - at);
+        writer.putShort(lengthAt, writer.position() - lengthAt - 2);
     }
 
     /**
@@ -74,8 +208,93 @@ public class DNSRecord {
      */
     public boolean isExpired() {
         long currentTime = System.currentTimeMillis();
-        long expirationTime = creationDate.getTime() + (ttl * 1000L);
-        return currentTime > expirationTime;
+        return currentTime > getExpirationTime();
+    }
+
+    /**
+     * Gets the absolute time at which this record stops being valid.
+     * @return The expiration time in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return creationDate.getTime() + (ttl * 1000L);
+    }
+
+    /**
+     * @return The owner name split into labels, as spelled in the packet.
+     */
+    public String[] getDomainName() {
+        return domainName;
+    }
+
+    /**
+     * Gets the name a CNAME record points at.
+     * @return The target name, or null if this is not a CNAME.
+     */
+    public String[] getCnameTarget() {
+        if (type != TYPE_CNAME) {
+            return null;
+        }
+        return dataLabels();
+    }
+
+    /**
+     * Gets the name an NS, CNAME or PTR record points at.
+     * @return The canonical target name, or null for other types.
+     */
+    public DNSName getTargetName() {
+        if (type != TYPE_NS && type != TYPE_CNAME && type != TYPE_PTR) {
+            return null;
+        }
+        return DNSName.fromLabels(dataLabels());
+    }
+
+    // The labels of a name at the start of the data, which decodeRecord stored expanded
+    private String[] dataLabels() {
+        ArrayList<String> labels = new ArrayList<>();
+        for (int at = 0; at < data.length && data[at] != 0; at += (data[at] & 0xFF) + 1) {
+            labels.add(new String(data, at + 1, data[at] & 0xFF, StandardCharsets.ISO_8859_1));
+        }
+        return labels.toArray(new String[0]);
+    }
+
+    /**
+     * @return The canonical owner name of this record.
+     */
+    public DNSName getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getClazz() {
+        return clazz;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Two records are the same resource record when owner name, type, class and data match.
+     * The TTL and the time it was cached are not part of its identity.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DNSRecord that = (DNSRecord) o;
+        return type == that.type && clazz == that.clazz && name.equals(that.name) && Arrays.equals(data, that.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * name.hashCode() + type) + clazz) + Arrays.hashCode(data);
     }
 
     @Override
@@ -7,107 +7,798 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class DNSServer {
-    private static final int PORT = 8053; // Listening port for DNS queries
-    private static final String GOOGLE_DNS = "8.8.8.8"; // Upstream resolver
-    private static final int GOOGLE_DNS_PORT = 53; // Standard DNS port
+    private static final int STALE_TTL_SECONDS = 30; // TTL on stale answers, as RFC 8767 suggests
+    private static final int SNAPSHOT_SHUTDOWN_WAIT_SECONDS = 10; // Longest the final snapshot waits for a periodic one
+
+    private final DNSServerConfig config;
+    private final DNSCache cache; // Local DNS cache
+    private final LocalZones localZones; // Local names and blocklists, checked before the cache; null if none
+    private final ExecutorService workers; // Worker stage that handles cache misses
+    private final Semaphore missSlots;     // Bounds how many misses can be queued or in progress
+    private final ServerMetrics metrics = new ServerMetrics(); // Counters and latencies, see startStats
+
+    private Shard[] shards; // UDP receive loops, all on the server port
+    private int port;       // The port bound, which the OS picks if config.port is 0
+    private UpstreamPool upstream; // Shared, multiplexed connections to the upstream resolvers; null when iterative
+    private IterativeResolver iterative; // Resolves from the root servers down; null when forwarding
+    private final QueryCoalescer<DNSQuestion, DNSMessage> inFlight = new QueryCoalescer<>(); // One upstream fetch per question
 
-    private final DNSCache cache = new DNSCache(); // Local DNS cache
+    /**
+     * Creates a DNS server with the given settings.
+     * @param config The server settings.
+     */
+    public DNSServer(DNSServerConfig config) {
+        this.config = config;
+        this.cache = new DNSCache(config.cacheCapacity, config.serveStaleMillis, config.refreshThreshold, config.refreshMinHits,
+                config.roundRobin, config.cacheOffHeapBytes);
+        this.cache.setRefresher(question -> inFlight.fetch(question, this::fetchFromUpstream)); // Refresh-ahead
+        this.missSlots = new Semaphore(config.queueDepth);
+        this.localZones = config.localZoneFiles.isEmpty() ? null : new LocalZones(config.localZoneFiles);
+
+        if (config.workerThreads > 0) {
+            this.workers = Executors.newFixedThreadPool(config.workerThreads);
+        } else {
+            this.workers = Executors.newVirtualThreadPerTaskExecutor();
+        }
+    }
 
     /**
      * Starts the DNS server, listening for queries and handling responses.
+     * The receive loop answers cache hits itself and hands misses to the worker stage,
+     * so a slow upstream lookup never holds up other clients.
+     * TCP queries on the same port are served by their own acceptor thread.
      */
     public void start() throws IOException {
+        open();
+        serve();
+    }
 
-        DatagramSocket socket = new DatagramSocket(PORT);
-        System.out.println("DNS Server started on port " + PORT);
+    /**
+     * Runs every shard's receive loop, shard 0 on the calling thread, until a socket fails.
+     */
+    void serve() throws IOException {
+        for (int i = 1; i < shards.length; i++) {
+            Shard shard = shards[i];
+            Thread receiver = new Thread(() -> {
+                try {
+                    shard.serve();
+                } catch (IOException e) {
+                    System.err.println("UDP shard stopped: " + e.getMessage());
+                }
+            }, "dns-udp-shard-" + i);
+            receiver.start();
+        }
+        shards[0].serve();
+    }
 
-        while (true) {
+    /**
+     * Opens the sockets and upstream connections and starts the background threads, everything but the receive loops.
+     */
+    void open() throws IOException {
+        if (config.snapshotFile != null) {
+            startSnapshots(Path.of(config.snapshotFile));
+        }
+        if (localZones != null) {
+            localZones.start(config.localZonesReloadMillis);
+        }
 
-            // Prepare buffer for incoming request
-            DatagramPacket requestPacket = new DatagramPacket(new byte[512], 512);
-            socket.receive(requestPacket);
+        if (config.resolution == DNSServerConfig.ResolutionMode.ITERATIVE) {
+            iterative = new IterativeResolver(config.rootHints, config.nameServerPort, config.upstreamTimeoutMillis,
+                    config.ednsPayloadSize);
+        } else {
+            upstream = new UpstreamPool(config.upstreams, config.upstreamChannels, config.upstreamTimeoutMillis,
+                    config.upstreamRetries, config.hedgePercentile);
+        }
+        shards = openShards();
+        port = ((InetSocketAddress) shards[0].channel.getLocalAddress()).getPort();
+        startTcp();
+        startStats();
+        System.out.println("DNS Server started on port " + port
+                + ((shards.length > 1) ? " with " + shards.length + " UDP shards" : ""));
+    }
 
-            // Extract client address and port
-            InetAddress clientAddress = requestPacket.getAddress();
-            System.out.println("Client address " + clientAddress);
+    /**
+     * Binds one UDP channel per shard to the server port. More than one needs SO_REUSEPORT,
+     * which makes the kernel spread clients over the channels by a hash of their address.
+     * @return The shards, not yet receiving.
+     */
+    private Shard[] openShards() throws IOException {
+        Shard[] opened = new Shard[config.udpShards];
+        InetSocketAddress address = new InetSocketAddress(config.port);
+        for (int i = 0; i < opened.length; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            if (opened.length > 1) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.close();
+                    throw new IOException("SO_REUSEPORT is not supported here, run with --udp-shards=1");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address);
+            address = (InetSocketAddress) channel.getLocalAddress(); // The others join the port the first one got
+            opened[i] = new Shard(channel);
+        }
+        return opened;
+    }
 
-            int clientPort = requestPacket.getPort();
-            System.out.println("client port " + clientPort);
+    /**
+     * Handles one request as if shard 0 had just received it; the benchmarks drive the hit path through this.
+     * @param request The request packet.
+     * @param client Where to send the answer.
+     */
+    void handlePacket(byte[] request, InetSocketAddress client) {
+        shards[0].requestBuffer.clear();
+        shards[0].requestBuffer.put(request).flip();
+        shards[0].handlePacket(client);
+    }
 
-            // Convert request bytes into DNSMessage object
-            byte[] requestData = requestPacket.getData();
-            DNSMessage requestMessage = DNSMessage.decodeMessage(requestData);
+    /**
+     * Warms the cache from the last snapshot, then saves it periodically and once more on shutdown.
+     * The final save waits for a periodic one in progress, as both write the same temp file.
+     * A missing or broken snapshot only means a cold start.
+     * @param file The snapshot file.
+     */
+    private void startSnapshots(Path file) {
+        if (Files.exists(file)) {
+            long start = System.nanoTime();
+            try {
+                int loaded = CacheSnapshot.load(file, cache);
+                System.out.println("Loaded " + loaded + " cache entries from " + file + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("Starting with an empty cache, could not load " + file + ": " + e.getMessage());
+            }
+        }
 
-            ArrayList<DNSRecord> answers = new ArrayList<>(); //holds answers, or IPs
+        Runnable save = () -> {
+            try {
+                CacheSnapshot.write(cache, file);
+            } catch (IOException e) {
+                System.err.println("Failed to save cache snapshot: " + e.getMessage());
+            }
+        };
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(save, config.snapshotIntervalMillis, config.snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            snapshots.shutdown(); // Cancels the periodic save, but lets a running one finish
+            try {
+                if (!snapshots.awaitTermination(SNAPSHOT_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    System.err.println("Skipping the final cache snapshot, the last one is still being written");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            save.run();
+        }, "dns-cache-snapshot-final"));
+    }
 
-            // Check cache for each question
-            for (DNSQuestion question : requestMessage.getQuestions()) {
+    /**
+     * Serves the metrics over HTTP on the loopback interface and/or prints them periodically, as configured.
+     */
+    private void startStats() throws IOException {
+        if (config.statsPort > 0) {
+            HttpServer stats = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.statsPort), 0);
+            stats.createContext("/metrics", exchange -> {
+                byte[] body = formatMetrics().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            stats.start(); // Its own single dispatcher thread, nothing on the query path
+            System.out.println("Stats on http://" + stats.getAddress().getHostString() + ":" + config.statsPort + "/metrics");
+        }
 
-                DNSRecord cachedRecord = cache.query(question);
+        if (config.statsIntervalMillis > 0) {
+            ScheduledExecutorService dumps = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumps.scheduleAtFixedRate(() -> System.out.print(formatMetrics()),
+                    config.statsIntervalMillis, config.statsIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                if (cachedRecord != null) { // Cache hit: add the cached record to response
-                    answers.add(cachedRecord);
-                } else { // Cache miss: forward request to Google DNS
+    /**
+     * @return The port the server answers on, UDP and TCP alike, once open() has bound it.
+     */
+    int getPort() {
+        return port;
+    }
 
-                    byte[] googleResponse = forwardToGoogle(requestData);
+    /**
+     * @return The server's cache.
+     */
+    DNSCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The server's counters and latency histograms.
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Every metric in the Prometheus text format.
+     */
+    public String formatMetrics() {
+        String text = metrics.format(cache, upstream, getCoalescedQueries());
+        if (iterative == null) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text);
+        iterative.appendMetrics(out);
+        return out.toString();
+    }
+
+    /**
+     * One UDP receive loop: a channel bound to the server port, the thread that reads it, and the buffers
+     * that thread reuses for every packet. Shards share the cache and the worker stage but nothing else,
+     * so each can run on its own core. Misses are answered through the shard that received them.
+     */
+    private final class Shard {
+        private final DatagramChannel channel;
+
+        // Owned by the receive thread and reused for every packet
+        // (full 64 KB: EDNS0 requests can be large, and cached answers from TCP can be larger than a client takes)
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+        private final DNSPacketReader requestReader = new DNSPacketReader();
+        private final DNSQuestion requestKey = DNSQuestion.scratchKey(); // Refilled for every request, so a hit allocates nothing
+        private final ByteBuffer responseBuffer = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+        private final DNSPacketWriter responseWriter = new DNSPacketWriter();
+        private final ArrayList<DNSRecord> hitAnswers = new ArrayList<>();
+        private long receivedAt; // When the packet being handled arrived, System.nanoTime
+
+        Shard(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * The receive loop: reads and handles packets until the channel fails.
+         */
+        void serve() throws IOException {
+            while (true) {
+                requestBuffer.clear();
+                SocketAddress client = channel.receive(requestBuffer);
+                requestBuffer.flip();
+                handlePacket(client);
+            }
+        }
+
+        /**
+         * Handles the packet in the receive buffer.
+         * @param client Where it came from.
+         */
+        void handlePacket(SocketAddress client) {
+            receivedAt = System.nanoTime();
+            metrics.udpQueries.increment();
+            try {
+                handleRequest(client);
+            } catch (IOException | RuntimeException e) { // A bad packet should not take down the shard, nothing restarts it
+                metrics.malformed.increment(); // Counted, not logged: a client can send these at line rate
+            }
+        }
+
+        /**
+         * Answers the request in the receive buffer.
+         * @param client Where it came from.
+         */
+        private void handleRequest(SocketAddress client) throws IOException {
+            // Parse the request in place, only the bytes actually received
+            requestReader.wrap(requestBuffer);
+            countQuestions(requestReader);
+
+            // EDNS0: a client with an OPT record takes bigger answers and gets an OPT record back
+            int opt = requestReader.findOptRecord();
+            int ednsPayload = (opt >= 0) ? config.ednsPayloadSize : 0;
+            int sizeLimit = (opt >= 0) ? Math.max(DNSMessage.MAX_PLAIN_UDP_SIZE, Math.min(requestReader.getRecordClass(opt), config.ednsPayloadSize))
+                    : DNSMessage.MAX_PLAIN_UDP_SIZE;
+
+            // Fast path: a single question whose encoded answer is cached, just copy and patch it
+            if (requestReader.getQuestionCount() == 1) {
+                DNSQuestion key = requestKey.decodeKeyInto(requestReader, 0);
+
+                // Local names and blocked names are answered before the cache is even looked at
+                LocalZones.LocalAnswer localAnswer = findLocal(key);
+                if (localAnswer != null) {
+                    countLocal(localAnswer);
+                    responseBuffer.clear();
+                    sendPacket(LocalZones.writeResponse(localAnswer, requestReader, responseBuffer), ednsPayload, sizeLimit, client);
+                    return;
+                }
 
+                responseBuffer.clear();
+                int length = cache.writeResponse(key, responseBuffer, requestReader, System.currentTimeMillis());
+                if (length >= 0) {
+                    metrics.cacheHits.increment();
+                    sendPacket(length, ednsPayload, sizeLimit, client);
+                    return;
+                }
+
+                // Expired but still inside the serve-stale window: keep it ready in case the upstream is slow
+                CachedResponse staleResponse = cache.queryStale(key);
+                if (staleResponse != null) {
+                    byte[] staleAnswer = DNSMessage.appendOpt(staleResponse.toStaleBytes(requestReader, STALE_TTL_SECONDS), ednsPayload);
+                    submitMiss(DNSMessage.decodeMessage(requestReader), staleAnswer, ednsPayload, sizeLimit, udpReply(client, sizeLimit));
+                    return;
+                }
+
+                // writeResponse found no fresh answer, looking again would only count the same miss twice
+                submitMiss(DNSMessage.decodeMessage(requestReader), null, ednsPayload, sizeLimit, udpReply(client, sizeLimit));
+                return;
+            }
+
+            hitAnswers.clear(); //holds answers, or IPs
+
+            // Several questions: try to answer every one from the cache
+            for (int i = 0; i < requestReader.getQuestionCount(); i++) {
+                DNSRecord[] cachedRecords = cache.query(requestKey.decodeKeyInto(requestReader, i));
+
+                if (cachedRecords == null) { // Cache miss: let a worker talk to the upstream
+                    submitMiss(DNSMessage.decodeMessage(requestReader), null, ednsPayload, sizeLimit, udpReply(client, sizeLimit));
+                    return;
+                }
+                Collections.addAll(hitAnswers, cachedRecords);
+            }
+
+            // All hits: encode straight from the request bytes and answer from the receive thread
+            metrics.cacheHits.add(requestReader.getQuestionCount());
+            responseBuffer.clear();
+            responseWriter.reset(responseBuffer);
+            DNSMessage.writeResponse(responseWriter, requestReader, hitAnswers);
+            sendPacket(responseWriter.position(), ednsPayload, sizeLimit, client);
+        }
 
-                    DNSMessage googleMessage = DNSMessage.decodeMessage(googleResponse);
+        /**
+         * Sends the first length bytes of the response buffer,
+         * adding an OPT record for EDNS0 clients and truncating answers that do not fit.
+         */
+        private void sendPacket(int length, int ednsPayload, int sizeLimit, SocketAddress client) throws IOException {
+            if (ednsPayload > 0) {
+                length = DNSMessage.appendOpt(responseBuffer, 0, length, ednsPayload);
+            }
+            if (length > sizeLimit) {
+                sendBytes(DNSMessage.truncate(responseBuffer.array(), length), client);
+            } else {
+                try {
+                    channel.send(responseBuffer.limit(length).position(0), client);
+                } catch (IOException e) {
+                    sendFailed();
+                }
+            }
+            metrics.requestLatency.record(System.nanoTime() - receivedAt);
+        }
 
+        /**
+         * A reply to a UDP client, truncated with the TC bit if it is over the client's size limit.
+         */
+        private Reply udpReply(SocketAddress client, int sizeLimit) {
+            return timed(response -> sendBytes((response.length > sizeLimit) ? DNSMessage.truncate(response, response.length) : response,
+                    client), receivedAt);
+        }
 
-                    // Cache the response and add it to the answer list
-                    for (DNSRecord record : googleMessage.getAnswers()) {
-                        cache.insert(question, record);
-                        answers.add(record);
+        /**
+         * Sends already encoded response bytes to the client. DatagramChannel.send is thread safe,
+         * so both the receive thread and the workers can call this.
+         */
+        private void sendBytes(byte[] responseData, SocketAddress client) {
+            try {
+                channel.send(ByteBuffer.wrap(responseData), client);
+            } catch (IOException e) {
+                sendFailed();
+            }
+        }
+    }
+
+    /**
+     * Counts an answer that could not be sent. There is nothing else to do about it:
+     * a UDP client will retry, and a broken TCP connection fails its next read and is closed.
+     * Not logged, as a flood of unreachable clients would otherwise flood the console too.
+     */
+    private void sendFailed() {
+        metrics.sendErrors.increment();
+    }
+
+    /**
+     * Counts every question in a request by its type.
+     */
+    private void countQuestions(DNSPacketReader reader) {
+        for (int i = 0; i < reader.getQuestionCount(); i++) {
+            metrics.countQuestion(reader.getQuestionType(i));
+        }
+    }
+
+    private void countLocal(LocalZones.LocalAnswer answer) {
+        metrics.localAnswers.increment();
+        if (answer.isBlocked()) {
+            metrics.blockedAnswers.increment();
+        }
+    }
+
+    /**
+     * Where a finished response goes: a UDP client or a TCP connection.
+     */
+    private interface Reply {
+        void send(byte[] response) throws IOException;
+    }
+
+    /**
+     * Wraps a reply to record the request's latency once it has been sent.
+     * @param reply The reply to wrap.
+     * @param receivedAt When the request arrived, System.nanoTime.
+     */
+    private Reply timed(Reply reply, long receivedAt) {
+        return response -> {
+            reply.send(response);
+            metrics.requestLatency.record(System.nanoTime() - receivedAt);
+        };
+    }
+
+    /**
+     * Hands a request with at least one cache miss to the worker stage.
+     * If the worker stage is full the overload policy decides what the client gets.
+     * The slot is held until the answer is sent, so it bounds misses waiting on the upstream too.
+     * @param requestMessage The decoded client request.
+     * @param staleAnswer A stale answer to send if the upstream is too slow or fails, or null.
+     * @param ednsPayload The payload size for the response's OPT record, or 0 for none.
+     * @param sizeLimit The largest response the client takes; bigger answers are sent truncated.
+     * @param reply Where to send the response.
+     * @return A future completed once the response has been sent, or dropped.
+     */
+    private CompletableFuture<Void> submitMiss(DNSMessage requestMessage, byte[] staleAnswer, int ednsPayload, int sizeLimit,
+                                               Reply reply) throws IOException {
+        if (!missSlots.tryAcquire()) {
+            if (staleAnswer != null) { // Stale data beats SERVFAIL or silence
+                metrics.staleAnswers.increment();
+                reply.send(staleAnswer);
+            } else if (config.overloadPolicy == DNSServerConfig.OverloadPolicy.SERVFAIL) {
+                metrics.servfails.increment();
+                reply.send(encodeResponse(DNSMessage.buildErrorResponse(requestMessage, DNSHeader.RCODE_SERVFAIL), ednsPayload, sizeLimit));
+            } else {
+                metrics.dropped.increment();
+            }
+            return CompletableFuture.completedFuture(null); // DROP: the client will retry
+        }
+
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        workers.execute(() -> {
+            CompletableFuture<byte[]> response = resolve(requestMessage).thenApply(message -> encodeResponse(message, ednsPayload, sizeLimit));
+            if (staleAnswer != null) {
+                // Answer stale if the upstream misses the deadline, the fetch still refreshes the cache
+                response = response.completeOnTimeout(staleAnswer, config.staleAnswerDeadlineMillis, TimeUnit.MILLISECONDS);
+            }
+
+            response.whenComplete((responseData, error) -> {
+                try {
+                    if (error != null) { // Upstream timed out or sent garbage, counted below as a SERVFAIL or a stale answer
+                        if (staleAnswer == null) {
+                            metrics.servfails.increment();
+                        }
+                        responseData = (staleAnswer != null) ? staleAnswer
+                                : encodeResponse(DNSMessage.buildErrorResponse(requestMessage, DNSHeader.RCODE_SERVFAIL), ednsPayload, sizeLimit);
+                    }
+                    if (responseData == staleAnswer) {
+                        metrics.staleAnswers.increment();
+                    }
+                    reply.send(responseData);
+                } catch (IOException e) {
+                    sendFailed();
+                } catch (CompletionException e) {
+                    System.err.println("Failed to encode response: " + e.getMessage());
+                } finally {
+                    missSlots.release();
+                    sent.complete(null);
+                }
+            });
+        });
+        return sent;
+    }
+
+    /**
+     * Opens the TCP listener on the port the UDP shards got. Each connection gets its own virtual thread.
+     */
+    private void startTcp() throws IOException {
+        ServerSocket listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket connection = listener.accept();
+                    Thread.ofVirtual().name("dns-tcp-connection").start(() -> serveTcp(connection));
+                } catch (IOException e) {
+                    System.err.println("Failed to accept TCP connection: " + e.getMessage());
+                }
+            }
+        }, "dns-tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Serves one TCP connection: length-prefixed queries (RFC 1035 section 4.2.2), possibly pipelined.
+     * Queries are answered as soon as each one is ready, which may be out of order (RFC 7766 section 6.2.1.1).
+     * The connection is closed when the client closes it or stays idle too long.
+     */
+    private void serveTcp(Socket connection) {
+        ArrayList<CompletableFuture<Void>> pending = new ArrayList<>(); // Misses still being answered
+        try (connection) {
+            connection.setSoTimeout(config.tcpIdleTimeoutMillis);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            Reply reply = response -> {
+                try {
+                    synchronized (out) { // Answers from workers must not interleave
+                        out.writeShort(response.length);
+                        out.write(response);
+                        out.flush();
                     }
+                } catch (IOException e) {
+                    sendFailed();
+                }
+            };
+            DNSPacketReader reader = new DNSPacketReader();
+
+            while (true) {
+                byte[] request;
+                try {
+                    request = new byte[in.readUnsignedShort()];
+                    in.readFully(request);
+                } catch (EOFException | SocketTimeoutException e) {
+                    break; // Client is done, or idle
+                }
+
+                try {
+                    pending.removeIf(CompletableFuture::isDone);
+                    pending.add(handleTcpQuery(request, reader, timed(reply, System.nanoTime())));
+                } catch (IOException e) { // A bad query should not take down the connection
+                    metrics.malformed.increment();
                 }
             }
 
-            // Construct the response message
-            DNSMessage responseMessage = DNSMessage.buildResponse(requestMessage, answers.toArray(new DNSRecord[0]));
+            // Let the answers still on their way go out before closing
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                    .get(config.upstreamTimeoutMillis << config.upstreamRetries, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            System.err.println("TCP connection failed: " + e.getMessage());
+        } catch (Exception e) { // Interrupted, or the pending answers timed out
+            System.err.println("Closing TCP connection with answers pending: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Answers one query read from a TCP connection. There is no size limit short of 64 KB, so nothing is truncated.
+     * @return A future completed once the answer has been sent.
+     */
+    private CompletableFuture<Void> handleTcpQuery(byte[] request, DNSPacketReader reader, Reply reply) throws IOException {
+        metrics.tcpQueries.increment();
+        reader.wrap(ByteBuffer.wrap(request));
+        countQuestions(reader);
+        int ednsPayload = (reader.findOptRecord() >= 0) ? config.ednsPayloadSize : 0;
+
+        if (reader.getQuestionCount() == 1) {
+            DNSQuestion key = DNSQuestion.decodeKey(reader, 0);
+            LocalZones.LocalAnswer localAnswer = findLocal(key);
+            if (localAnswer != null) {
+                countLocal(localAnswer);
+                ByteBuffer out = ByteBuffer.allocate(LocalZones.responseSize(localAnswer, reader));
+                LocalZones.writeResponse(localAnswer, reader, out);
+                reply.send(DNSMessage.appendOpt(out.array(), ednsPayload));
+                return CompletableFuture.completedFuture(null);
+            }
 
-            byte[] responseData = responseMessage.toBytes();
+            CachedResponse cachedResponse = cache.queryResponse(key);
+            if (cachedResponse != null) {
+                metrics.cacheHits.increment();
+                reply.send(DNSMessage.appendOpt(cachedResponse.toBytes(reader, System.currentTimeMillis()), ednsPayload));
+                return CompletableFuture.completedFuture(null);
+            }
 
-            // Send response to client
-            DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, clientAddress, clientPort);
-            socket.send(responsePacket);
+            CachedResponse staleResponse = cache.queryStale(key);
+            if (staleResponse != null) {
+                byte[] staleAnswer = DNSMessage.appendOpt(staleResponse.toStaleBytes(reader, STALE_TTL_SECONDS), ednsPayload);
+                return submitMiss(DNSMessage.decodeMessage(reader), staleAnswer, ednsPayload, DNSMessage.MAX_MESSAGE_SIZE, reply);
+            }
         }
+
+        // Everything else goes through the worker stage, which answers from the cache where it can
+        return submitMiss(DNSMessage.decodeMessage(reader), null, ednsPayload, DNSMessage.MAX_MESSAGE_SIZE, reply);
     }
 
+    /**
+     * Checks the local zones and blocklists for a question.
+     * @return What to answer, or null if the question should go through the cache as usual.
+     */
+    private LocalZones.LocalAnswer findLocal(DNSQuestion question) {
+        return (localZones != null && LocalZones.applies(question)) ? localZones.find(question.getName()) : null;
+    }
+
+    /**
+     * Answers every question in a request, going upstream for the ones not in the cache.
+     * Nothing here blocks: upstream replies are decoded on the worker stage when they arrive.
+     * @param requestMessage The decoded client request.
+     * @return A future completed with the response to send back to the client.
+     */
+    private CompletableFuture<DNSMessage> resolve(DNSMessage requestMessage) {
+        ArrayList<CompletableFuture<DNSRecord[]>> parts = new ArrayList<>(); // answers for each question, in order
+        ArrayList<CompletableFuture<DNSMessage>> fetches = new ArrayList<>(); // upstream replies, for negative answers
+
+        // Check cache for each question
+        for (DNSQuestion question : requestMessage.getQuestions()) {
+
+            DNSRecord[] cachedRecords = cache.query(question);
+
+            if (cachedRecords != null) { // Cache hit: add the cached records to response
+                metrics.cacheHits.increment();
+                parts.add(CompletableFuture.completedFuture(cachedRecords));
+            } else { // Cache miss: join the fetch already running for this question, or start one
+                metrics.cacheMisses.increment();
+                CompletableFuture<DNSMessage> fetch = inFlight.fetch(question, this::fetchFromUpstream);
+                fetches.add(fetch);
+                parts.add(fetch.thenApply(DNSMessage::getAnswers));
+            }
+        }
 
+        // Construct the response message once every question has its answers
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            ArrayList<DNSRecord> answers = new ArrayList<>(); //holds answers, or IPs
+            for (CompletableFuture<DNSRecord[]> part : parts) {
+                for (DNSRecord record : part.join()) {
+                    answers.add(record);
+                }
+            }
 
+            // No answers at all: pass on the upstream's RCODE and SOA so the client can cache the negative answer too
+            if (answers.isEmpty() && !fetches.isEmpty()) {
+                DNSMessage reply = fetches.get(0).join();
+                DNSRecord[] authority = new DNSRecord[reply.getAuthorityRecords().length];
+                for (int i = 0; i < authority.length; i++) {
+                    DNSRecord record = reply.getAuthorityRecords()[i];
+                    authority[i] = record.withTtl(record.getNegativeTtl());
+                }
+                return DNSMessage.buildResponse(requestMessage, new DNSRecord[0], authority, reply.getHeader().getRcode());
+            }
+            return DNSMessage.buildResponse(requestMessage, answers.toArray(new DNSRecord[0]));
+        });
+    }
 
     /**
-     * Forwards the DNS request to Google's public DNS and returns the response.
-     * @param requestData The DNS request bytes.
-     * @return The response bytes from Google’s DNS.
+     * Asks the upstream resolvers a single question, or resolves it iteratively, and caches the answers.
+     * Negative answers are cached as packets for their SOA's negative TTL (RFC 2308).
+     * Only the first miss for a question calls this; concurrent misses share its result.
+     * @param question The question to resolve.
+     * @return A future completed with the upstream's reply.
      */
-    private byte[] forwardToGoogle(byte[] requestData) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
+    private CompletableFuture<DNSMessage> fetchFromUpstream(DNSQuestion question) {
+        byte[] queryData;
+        try {
+            queryData = DNSMessage.buildQuery(question, config.ednsPayloadSize).toBytes();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> reply = (iterative != null) ? iterative.query(queryData) : upstream.query(queryData);
+        return reply.whenComplete((upstreamResponse, error) -> {
+            metrics.upstreamLatency.record(System.nanoTime() - start);
+            if (error != null) {
+                metrics.upstreamFailures.increment();
+            }
+        }).thenApplyAsync(upstreamResponse -> {
+            DNSPacketReader reader = new DNSPacketReader();
+            DNSMessage upstreamMessage = decodeUpstream(reader, upstreamResponse);
+
+            // Keep the encoded answer with the records, so later hits are served without re-encoding.
+            // Negative answers are only cacheable with an SOA to say for how long.
+            DNSRecord[] answers = upstreamMessage.getAnswers();
+            boolean cacheable = CachedResponse.isNegative(reader) ? CachedResponse.hasNegativeTtl(reader)
+                    : answers.length > 0 && upstreamMessage.getHeader().getRcode() == DNSHeader.RCODE_NOERROR;
+            CachedResponse response = null;
+            if (cacheable) {
+                try {
+                    response = CachedResponse.fromPacket(reader, config.roundRobin);
+                } catch (IOException e) {
+                    System.err.println("Not caching response packet: " + e.getMessage());
+                }
+            }
 
-        // Send the DNS request to Google's DNS server
-        DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, InetAddress.getByName(GOOGLE_DNS), GOOGLE_DNS_PORT);
-        socket.send(requestPacket);
+            // Both halves of the entry come from this one reply, CNAME chain included,
+            // and the RRset it ends in is cached under its own name too
+            if (answers.length > 0 || response != null) {
+                cache.insert(question, answers, response);
+            }
+            if (answers.length > 0) {
+                cacheCnameTarget(question, answers);
+            }
+            return upstreamMessage;
+        }, workers);
+    }
+
+    /**
+     * When an answer follows a CNAME chain, also caches the records at the end of the chain
+     * under the name they belong to, so a lookup of the target name hits too.
+     * @param question The question the answer is for.
+     * @param answers The answer records, CNAME chain first.
+     */
+    private void cacheCnameTarget(DNSQuestion question, DNSRecord[] answers) {
+        DNSRecord last = answers[answers.length - 1];
+        if (answers[0].getType() != DNSRecord.TYPE_CNAME || last.getType() != question.getQtype()) {
+            return;
+        }
+        int start = answers.length - 1;
+        while (start > 0 && answers[start - 1].getType() == last.getType() && answers[start - 1].getName().equals(last.getName())) {
+            start--;
+        }
+        DNSQuestion target = new DNSQuestion(last.getDomainName(), question.getQtype(), question.getQclass());
+        cache.insert(target, Arrays.copyOfRange(answers, start, answers.length));
+    }
 
-        // Receive the response from Google
-        DatagramPacket responsePacket = new DatagramPacket(new byte[512], 512);
-        socket.receive(responsePacket);
-        socket.close();
+    /**
+     * @return How many misses were answered by joining an upstream fetch already in flight.
+     */
+    public long getCoalescedQueries() {
+        return inFlight.getCoalescedCount();
+    }
 
-        // Return the response data
-        return responsePacket.getData();
+    /**
+     * Decodes an upstream reply inside a future stage.
+     * @param reader The reader to wrap around the reply, left pointing at it.
+     * @param responseData The reply bytes.
+     * @return The decoded message.
+     */
+    private static DNSMessage decodeUpstream(DNSPacketReader reader, byte[] responseData) {
+        try {
+            reader.wrap(ByteBuffer.wrap(responseData));
+            return DNSMessage.decodeMessage(reader);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
     }
 
-    
+    /**
+     * Encodes a response inside a future stage, in one pass within the client's size limit.
+     * @param ednsPayload The payload size for an OPT record to append, or 0 for none.
+     * @param sizeLimit The largest response the client takes.
+     */
+    private static byte[] encodeResponse(DNSMessage responseMessage, int ednsPayload, int sizeLimit) {
+        try {
+            return responseMessage.toBytes(ednsPayload, sizeLimit);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
 
     /**
      * Main entry point for starting the DNS server.
+     * @param args Optional settings as --name=value, see DNSServerConfig.
      */
     public static void main(String[] args) throws IOException {
-        new DNSServer().start();
+        new DNSServer(DNSServerConfig.fromArgs(args)).start();
     }
 }
@@ -0,0 +1,150 @@
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings for DNSServer. Defaults match the original hard-coded values,
+ * and each one can be overridden on the command line as --name=value.
+ */
+public class DNSServerConfig {
+    private static final int DNS_PORT = 53; // Standard DNS port, used when an upstream gives none
+
+    /**
+     * What to do with a cache miss when the worker stage is already full.
+     */
+    public enum OverloadPolicy {
+        DROP,     // Silently drop the query; the client will retry
+        SERVFAIL  // Answer right away with SERVFAIL so the client can fail over
+    }
+
+    /**
+     * How cache misses are resolved.
+     */
+    public enum ResolutionMode {
+        FORWARD,  // Ask the upstream resolvers, which recurse for us
+        ITERATIVE // Walk the delegations from the root servers ourselves
+    }
+
+    int port = 8053;                  // Listening port for DNS queries, UDP and TCP
+    int ednsPayloadSize = 1232;       // Largest UDP message we send or accept with EDNS0 (DNS Flag Day 2020)
+    int udpShards = 1;                // UDP sockets sharing the port via SO_REUSEPORT, each with its own receive thread
+    int tcpIdleTimeoutMillis = 10_000; // Close TCP connections idle this long (RFC 7766)
+    int cacheCapacity = DNSCache.DEFAULT_CAPACITY; // Max entries in the cache
+    long cacheOffHeapBytes = 0;       // Keep cache entries in off-heap slabs of up to this size, 0 = on the heap
+    int workerThreads = 0;            // Miss-handling threads, 0 = one virtual thread per miss
+    int queueDepth = 1024;            // Max misses queued or in progress at once
+    OverloadPolicy overloadPolicy = OverloadPolicy.SERVFAIL;
+    ResolutionMode resolution = ResolutionMode.FORWARD;
+    List<InetSocketAddress> upstreams = List.of(new InetSocketAddress("8.8.8.8", DNS_PORT)); // Google DNS
+    List<InetSocketAddress> rootHints = parseAddresses( // a to m.root-servers.net (IANA root hints)
+            "198.41.0.4,170.247.170.2,192.33.4.12,199.7.91.13,192.203.230.10,192.5.5.241,192.112.36.4,"
+                    + "198.97.190.53,192.36.148.17,192.58.128.30,193.0.14.129,199.7.83.42,202.12.27.33");
+    int nameServerPort = DNS_PORT;    // Port of the name servers referrals point at, only changed for test setups
+    double hedgePercentile = 0.95;    // Hedge to the next upstream after this latency percentile, 0 = never
+    int upstreamChannels = 4;         // UDP channels per upstream, shared by all its queries
+    long upstreamTimeoutMillis = 1000; // Wait before the first retry, doubled each retry
+    int upstreamRetries = 2;          // Resends before an upstream query fails
+    long serveStaleMillis = 86_400_000; // How long past its TTL an answer may be served stale (RFC 8767)
+    long staleAnswerDeadlineMillis = 1800; // Wait this long for the upstream before answering stale
+    double refreshThreshold = 0.9;    // Refresh popular names once this share of their TTL has passed
+    int refreshMinHits = 2;           // Hits a name needs before it is refreshed ahead of expiry
+    boolean roundRobin = true;        // Rotate multi-record answers so clients spread their load
+    List<Path> localZoneFiles = List.of(); // Hosts and blocklist files answered before the cache
+    long localZonesReloadMillis = 10_000; // How often to check those files for changes, 0 = never
+    String snapshotFile = null;       // Where to save the cache for a warm restart, null = never
+    long snapshotIntervalMillis = 60_000; // How often the cache is saved
+    int statsPort = 0;                // Serve metrics at http://127.0.0.1:<port>/metrics, 0 = off
+    long statsIntervalMillis = 0;     // Print the metrics to stdout this often, 0 = never
+
+    /**
+     * Builds a config from command line arguments like --port=53 --workers=8.
+     * @param args The command line arguments.
+     * @return The parsed config, using defaults for anything not given.
+     */
+    public static DNSServerConfig fromArgs(String[] args) {
+        DNSServerConfig config = new DNSServerConfig();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "port" -> config.port = Integer.parseInt(value);
+                case "edns-payload" -> config.ednsPayloadSize = Integer.parseInt(value);
+                case "udp-shards" -> config.udpShards = Integer.parseInt(value);
+                case "tcp-idle-timeout" -> config.tcpIdleTimeoutMillis = Integer.parseInt(value);
+                case "cache-capacity" -> config.cacheCapacity = Integer.parseInt(value);
+                case "cache-offheap-mb" -> config.cacheOffHeapBytes = Long.parseLong(value) << 20;
+                case "workers" -> config.workerThreads = Integer.parseInt(value);
+                case "queue-depth" -> config.queueDepth = Integer.parseInt(value);
+                case "overload" -> config.overloadPolicy = OverloadPolicy.valueOf(value.toUpperCase());
+                case "resolution" -> config.resolution = ResolutionMode.valueOf(value.toUpperCase());
+                case "upstreams" -> config.upstreams = parseAddresses(value);
+                case "root-hints" -> config.rootHints = parseAddresses(value);
+                case "nameserver-port" -> config.nameServerPort = Integer.parseInt(value);
+                case "hedge-percentile" -> config.hedgePercentile = Double.parseDouble(value);
+                case "upstream-channels" -> config.upstreamChannels = Integer.parseInt(value);
+                case "upstream-timeout" -> config.upstreamTimeoutMillis = Long.parseLong(value);
+                case "upstream-retries" -> config.upstreamRetries = Integer.parseInt(value);
+                case "serve-stale" -> config.serveStaleMillis = Long.parseLong(value);
+                case "stale-deadline" -> config.staleAnswerDeadlineMillis = Long.parseLong(value);
+                case "refresh-threshold" -> config.refreshThreshold = Double.parseDouble(value);
+                case "refresh-min-hits" -> config.refreshMinHits = Integer.parseInt(value);
+                case "round-robin" -> config.roundRobin = Boolean.parseBoolean(value);
+                case "local-zones" -> config.localZoneFiles = parsePaths(value);
+                case "local-zones-reload" -> config.localZonesReloadMillis = Long.parseLong(value);
+                case "snapshot-file" -> config.snapshotFile = value;
+                case "snapshot-interval" -> config.snapshotIntervalMillis = Long.parseLong(value);
+                case "stats-port" -> config.statsPort = Integer.parseInt(value);
+                case "stats-interval" -> config.statsIntervalMillis = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parses a comma separated list of files.
+     * @param value The list.
+     * @return The paths, in order.
+     */
+    static List<Path> parsePaths(String value) {
+        List<Path> paths = new ArrayList<>();
+        for (String path : value.split(",")) {
+            paths.add(Path.of(path.trim()));
+        }
+        return paths;
+    }
+
+    /**
+     * Parses a comma separated list of resolvers such as 8.8.8.8,1.1.1.1:53,[2001:4860:4860::8888]:53.
+     * @param value The list.
+     * @return The addresses, port 53 where none is given.
+     */
+    static List<InetSocketAddress> parseAddresses(String value) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            address = address.trim();
+            String host = address;
+            int port = DNS_PORT;
+
+            int colon = address.lastIndexOf(':');
+            if (address.startsWith("[")) { // IPv6 literal, maybe with a port after the bracket
+                int bracket = address.indexOf(']');
+                host = address.substring(1, bracket);
+                if (colon > bracket) {
+                    port = Integer.parseInt(address.substring(colon + 1));
+                }
+            } else if (colon >= 0 && colon == address.indexOf(':')) { // host:port, not a bare IPv6 address
+                host = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            }
+            addresses.add(new InetSocketAddress(host, port));
+        }
+        return addresses;
+    }
+}
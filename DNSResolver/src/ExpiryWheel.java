@@ -0,0 +1,98 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel used to expire cache entries in the background.
+ * Each slot covers one tick; items further away than one full turn of the wheel
+ * simply stay in their slot until their expiry time is actually reached.
+ * Each slot is guarded by its own lock, which advance() holds while it drains the slot, so an item
+ * can never be added to a slot just after it was drained and wait a whole turn to be seen.
+ * @param <T> The type of item being scheduled.
+ */
+public class ExpiryWheel<T> {
+    private final List<ArrayDeque<Timer<T>>> slots;        // One queue of timers per tick, locked on itself
+    private final long tickMillis;                          // How much time each slot covers
+    private final AtomicLong lastTick;                      // Last tick that was fully processed
+
+    // A scheduled item together with the absolute time it expires
+    private record Timer<T>(T item, long expiresAt) { }
+
+    /**
+     * Creates a new timing wheel.
+     * @param slotCount The number of slots in the wheel.
+     * @param tickMillis The time each slot covers, in milliseconds.
+     */
+    public ExpiryWheel(int slotCount, long tickMillis) {
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        this.tickMillis = tickMillis;
+        this.lastTick = new AtomicLong(System.currentTimeMillis() / tickMillis - 1);
+    }
+
+    /**
+     * Schedules an item to be handed back once its expiry time has passed.
+     * Safe to call from any thread.
+     * @param item The item to schedule.
+     * @param expiresAt The absolute expiry time in milliseconds.
+     */
+    public void schedule(T item, long expiresAt) {
+        Timer<T> timer = new Timer<>(item, expiresAt);
+        while (true) {
+            long tick = Math.max(expiresAt / tickMillis, lastTick.get() + 1); // Never land in a slot already processed
+            ArrayDeque<Timer<T>> slot = slots.get((int) (tick % slots.size()));
+            synchronized (slot) {
+                if (tick > lastTick.get()) { // Still true under the lock: advance() has not drained this tick yet
+                    slot.add(timer);
+                    return;
+                }
+            }
+            // The sweeper got to this tick first, go round again for the next one
+        }
+    }
+
+    /**
+     * Processes every tick that has fully passed, handing expired items to the callback.
+     * Only one thread (the sweeper) should call this.
+     * @param now The current time in milliseconds.
+     * @param onExpired Called for every item whose expiry time has passed.
+     */
+    public void advance(long now, Consumer<T> onExpired) {
+        long lastFullTick = now / tickMillis - 1; // The current tick is still in progress
+        long tick = lastTick.get();
+
+        // If we fell behind by more than a turn, every slot needs one visit
+        long firstTick = Math.max(tick + 1, lastFullTick - slots.size() + 1);
+
+        List<Timer<T>> notYetDue = new ArrayList<>();
+        for (long t = firstTick; t <= lastFullTick; t++) {
+            ArrayDeque<Timer<T>> slot = slots.get((int) (t % slots.size()));
+            List<Timer<T>> expired;
+
+            synchronized (slot) {
+                expired = new ArrayList<>(slot.size());
+                Timer<T> timer;
+                while ((timer = slot.poll()) != null) {
+                    if (timer.expiresAt() <= now) {
+                        expired.add(timer);
+                    } else {
+                        notYetDue.add(timer); // Belongs to a later turn of the wheel
+                    }
+                }
+
+                // Put back anything that belongs to a later turn
+                slot.addAll(notYetDue);
+                notYetDue.clear();
+                lastTick.set(t);
+            }
+
+            for (Timer<T> timer : expired) { // Outside the lock, the callback may schedule again
+                onExpired.accept(timer.item());
+            }
+        }
+    }
+}
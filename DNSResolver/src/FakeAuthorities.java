@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in root, TLD and authoritative servers, so iterative resolution can be tried offline.
+ * All of them listen on the same port, on different loopback addresses:
+ *
+ *   127.0.0.1  the root: refers every TLD to ns.<tld>
+ *   127.0.0.2  ns.<tld>: refers every <name>.<tld> to ns1.<name>.<tld> and ns2.<name>.<tld>
+ *   127.0.0.3  ns1: answers authoritatively, as FakeUpstream does
+ *   127.0.0.4  ns2: the same, but four times slower, so the resolver should learn to prefer ns1
+ *
+ * Referrals carry glue, and every server adds the latency given. Point the resolver at it with
+ * java DNSServer --resolution=iterative --root-hints=127.0.0.1:5301 --nameserver-port=5301
+ *
+ * Run with: java FakeAuthorities [--port=5301] [--latency-ms=2] [--ttl=3600] [--nx=0]
+ */
+public class FakeAuthorities implements Closeable {
+    private static final int TYPE_A = 1;
+    private static final int NAME_POINTER = 0xC000; // High bits of a compression pointer
+
+    private final List<Closeable> servers = new ArrayList<>();
+    private final ScheduledExecutorService timer;
+
+    // A server that answers every query with a referral one label further down
+    private final class Referrer implements Closeable {
+        private final DatagramChannel channel;
+        private final int zoneLabels;  // Labels of the zone it refers to: 1 for the root, 2 for a TLD
+        private final String[] nameServers; // Labels put in front of the zone name to name its servers
+        private final byte[][] glue;   // Their addresses
+        private final long latencyNanos;
+        private final int ttl;
+
+        Referrer(InetAddress address, int port, int zoneLabels, String[] nameServers, byte[][] glue, double latencyMillis,
+                 int ttl) throws IOException {
+            this.zoneLabels = zoneLabels;
+            this.nameServers = nameServers;
+            this.glue = glue;
+            this.latencyNanos = (long) (latencyMillis * 1_000_000);
+            this.ttl = ttl;
+            this.channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(address, port));
+            Thread receiver = new Thread(this::receive, "fake-authority-" + address.getHostAddress());
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        private void receive() {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            DNSPacketReader reader = new DNSPacketReader();
+            while (channel.isOpen()) {
+                try {
+                    buffer.clear();
+                    SocketAddress client = channel.receive(buffer);
+                    buffer.flip();
+                    reader.wrap(buffer);
+                    byte[] reply = refer(reader);
+                    timer.schedule(() -> {
+                        try {
+                            channel.send(ByteBuffer.wrap(reply), client);
+                        } catch (IOException e) {
+                            System.err.println("Fake authority could not send: " + e.getMessage());
+                        }
+                    }, latencyNanos, TimeUnit.NANOSECONDS);
+                } catch (AsynchronousCloseException e) {
+                    return; // Closed
+                } catch (IOException e) {
+                    System.err.println("Fake authority could not answer: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Makes up the referral for a query: NS records for the zone made of the question name's
+         * last zoneLabels labels, with an A record for each server. Names point back into the question.
+         */
+        private byte[] refer(DNSPacketReader reader) {
+            int questionEnd = reader.questionSectionEnd();
+            ByteBuffer out = ByteBuffer.allocate(questionEnd + 512);
+            out.put(reader.getBuffer().array(), reader.getBase(), questionEnd);
+            out.putShort(2, (short) 0x8000); // A response, not authoritative: a referral
+            out.putInt(6, 0);
+            out.putShort(10, (short) 0);
+
+            // Where each label of the question name starts (the question name is never compressed)
+            ArrayList<Integer> labels = new ArrayList<>();
+            int nameOffset = reader.getQuestionNameOffset(0);
+            for (int at = nameOffset; reader.getUnsignedByte(at) != 0; at += reader.getUnsignedByte(at) + 1) {
+                labels.add(at);
+            }
+            if (reader.getQuestionCount() != 1 || labels.size() < zoneLabels) {
+                out.putShort(2, (short) 0x8400); // Nothing below to refer to: an authoritative empty answer
+                return Arrays.copyOf(out.array(), out.position());
+            }
+            int zone = labels.get(labels.size() - zoneLabels);
+
+            int[] nameServerAt = new int[nameServers.length];
+            for (int i = 0; i < nameServers.length; i++) {
+                out.putShort((short) (NAME_POINTER | zone)).putShort((short) DNSRecord.TYPE_NS).putShort((short) 1).putInt(ttl);
+                out.putShort((short) (nameServers[i].length() + 3));
+                nameServerAt[i] = out.position();
+                out.put((byte) nameServers[i].length()).put(nameServers[i].getBytes()).putShort((short) (NAME_POINTER | zone));
+            }
+            for (int i = 0; i < nameServers.length; i++) {
+                out.putShort((short) (NAME_POINTER | nameServerAt[i])).putShort((short) TYPE_A).putShort((short) 1).putInt(ttl);
+                out.putShort((short) 4).put(glue[i]);
+            }
+            out.putShort(8, (short) nameServers.length);
+            out.putShort(10, (short) nameServers.length);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts the four servers.
+     * @param port The UDP port all of them listen on.
+     * @param latencyMillis Delay before every reply; ns2 waits four times as long.
+     * @param ttl TTL of the delegations, glue and answers.
+     * @param nxShare Share of names (0-1) the authoritative servers say do not exist.
+     * @throws IOException If a port cannot be bound.
+     */
+    public FakeAuthorities(int port, double latencyMillis, int ttl, double nxShare) throws IOException {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-authority-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        servers.add(new Referrer(address(1), port, 1, new String[]{"ns"}, new byte[][]{{127, 0, 0, 2}}, latencyMillis, ttl));
+        servers.add(new Referrer(address(2), port, 2, new String[]{"ns1", "ns2"}, new byte[][]{{127, 0, 0, 3}, {127, 0, 0, 4}},
+                latencyMillis, ttl));
+        servers.add(new FakeUpstream(address(3), port, latencyMillis, 0, 0, ttl, nxShare, true));
+        servers.add(new FakeUpstream(address(4), port, latencyMillis * 4, 0, 0, ttl, nxShare, true));
+    }
+
+    private static InetAddress address(int last) throws IOException {
+        return InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) last});
+    }
+
+    /**
+     * @return How many queries each of ns1 and ns2 got, to see which one the resolver prefers.
+     */
+    public long[] getAuthoritativeCounts() {
+        return new long[]{((FakeUpstream) servers.get(2)).getReceivedCount(), ((FakeUpstream) servers.get(3)).getReceivedCount()};
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Closeable server : servers) {
+            server.close();
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * Runs the servers until killed, printing how the authoritative queries split every few seconds.
+     * @param args Settings as --name=value, see the class comment.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 5301;
+        double latencyMillis = 2;
+        int ttl = 3600;
+        double nxShare = 0;
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "port" -> port = Integer.parseInt(value);
+                case "latency-ms" -> latencyMillis = Double.parseDouble(value);
+                case "ttl" -> ttl = Integer.parseInt(value);
+                case "nx" -> nxShare = Double.parseDouble(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+
+        FakeAuthorities authorities = new FakeAuthorities(port, latencyMillis, ttl, nxShare);
+        System.out.println("Fake root on 127.0.0.1:" + port + ", TLD servers on 127.0.0.2, authoritative on 127.0.0.3 and .4");
+        while (true) {
+            Thread.sleep(5000);
+            long[] counts = authorities.getAuthoritativeCounts();
+            System.out.println("Authoritative queries: ns1 " + counts[0] + ", ns2 " + counts[1]);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in for the upstream resolvers, so DNSServer can be load tested offline.
+ * Every name exists and gets made-up records (A, AAAA, MX and TXT; NODATA for other types),
+ * except a configurable share of names that are NXDOMAIN. Answers are the same for a name every time,
+ * so a cache in front of this behaves as it would in front of a real resolver.
+ * Each reply is delayed by a fixed latency plus uniform jitter, and a share of queries is dropped.
+ *
+ * Run with: java FakeUpstream [--port=5300] [--latency-ms=20] [--jitter-ms=10] [--loss=0.01] [--ttl=300] [--nx=0.05]
+ */
+public final class FakeUpstream implements Closeable {
+    private static final int MAX_QUERY_SIZE = 4096;
+    private static final int NAME_POINTER = 0xC00C; // Compression pointer to the question name
+    private static final int RCODE_FORMERR = 1;
+    private static final int FLAG_AA = 0x0400; // Authoritative answer
+
+    private final DatagramChannel channel;
+    private final Thread receiver;
+    private final ScheduledExecutorService timer; // Sends the delayed replies
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private volatile double loss;
+    private final int ttl;
+    private final double nxShare;
+    private final int flags; // Header flags of every reply, before the RCODE
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Starts answering on the loopback interface.
+     * @param port The UDP port, 0 for any free one.
+     * @param latencyMillis Fixed delay before every reply.
+     * @param jitterMillis Extra delay, uniform between 0 and this, added to each reply.
+     * @param loss Share of queries (0-1) that get no reply at all.
+     * @param ttl TTL of every record, and the negative TTL of NXDOMAIN and NODATA answers.
+     * @param nxShare Share of names (0-1) that do not exist.
+     * @throws IOException If the port cannot be bound.
+     */
+    public FakeUpstream(int port, double latencyMillis, double jitterMillis, double loss, int ttl, double nxShare)
+            throws IOException {
+        this(InetAddress.getLoopbackAddress(), port, latencyMillis, jitterMillis, loss, ttl, nxShare, false);
+    }
+
+    /**
+     * Starts answering on a given address, e.g. as the authoritative server of a FakeAuthorities setup.
+     * @param address The address to bind, a loopback one.
+     * @param authoritative Set the AA bit on replies, as an authoritative server does.
+     * @see #FakeUpstream(int, double, double, double, int, double) for the other parameters.
+     */
+    public FakeUpstream(InetAddress address, int port, double latencyMillis, double jitterMillis, double loss, int ttl,
+                        double nxShare, boolean authoritative) throws IOException {
+        this.flags = DNSHeader.RESPONSE_FLAGS | (authoritative ? FLAG_AA : 0);
+        this.latencyNanos = (long) (latencyMillis * 1_000_000);
+        this.jitterNanos = (long) (jitterMillis * 1_000_000);
+        this.loss = loss;
+        this.ttl = ttl;
+        this.nxShare = nxShare;
+
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(address, port));
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-upstream-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        receiver = new Thread(this::receive, "fake-upstream");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_QUERY_SIZE);
+        DNSPacketReader reader = new DNSPacketReader();
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                buffer.flip();
+                received.increment();
+                if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+                    dropped.increment();
+                    continue;
+                }
+
+                byte[] reply = answer(reader, buffer);
+                long delay = latencyNanos + ((jitterNanos > 0) ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+                if (delay > 0) {
+                    timer.schedule(() -> send(reply, client), delay, TimeUnit.NANOSECONDS);
+                } else {
+                    send(reply, client);
+                }
+            } catch (AsynchronousCloseException e) {
+                return; // Closed
+            } catch (IOException e) {
+                System.err.println("Fake upstream could not answer: " + e.getMessage());
+            }
+        }
+    }
+
+    private void send(byte[] reply, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(reply), client);
+        } catch (IOException e) {
+            System.err.println("Fake upstream could not send: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes up the reply to a query: the question, then the answer for its name and type.
+     * @param reader Reader to parse the query with.
+     * @param query The query.
+     * @return The encoded reply.
+     */
+    byte[] answer(DNSPacketReader reader, ByteBuffer query) throws IOException {
+        reader.wrap(query);
+        int questionEnd = reader.questionSectionEnd();
+        ByteBuffer out = ByteBuffer.allocate(questionEnd + 128);
+        out.put(query.array(), 0, questionEnd);
+        out.putShort(2, (short) flags);
+        out.putInt(6, 0);  // No answers or authority records yet
+        out.putShort(10, (short) 0); // No additional records: the query's OPT record is not echoed
+        if (reader.getQuestionCount() != 1) {
+            out.putShort(2, (short) (flags | RCODE_FORMERR));
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        int hash = nameHash(reader, reader.getQuestionNameOffset(0));
+        if ((hash >>> 1) % 10_000 < nxShare * 10_000) {
+            out.putShort(2, (short) (flags | DNSHeader.RCODE_NXDOMAIN));
+            writeSoa(out);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        int type = reader.getQuestionType(0);
+        switch (type) {
+            case 1 -> { // A: 10.x.y.z from the name's hash
+                recordHeader(out, type, 4);
+                out.putInt(0x0A000000 | (hash & 0xFFFFFF));
+            }
+            case 28 -> { // AAAA: in the documentation prefix 2001:db8::/32
+                recordHeader(out, type, 16);
+                out.putInt(0x20010DB8).putInt(0).putInt(0).putInt(hash);
+            }
+            case DNSRecord.TYPE_MX -> { // MX 10 mail.<name>
+                recordHeader(out, type, 2 + 5 + 2);
+                out.putShort((short) 10).put(new byte[]{4, 'm', 'a', 'i', 'l'}).putShort((short) NAME_POINTER);
+            }
+            case 16 -> { // TXT "fake"
+                recordHeader(out, type, 5);
+                out.put(new byte[]{4, 'f', 'a', 'k', 'e'});
+            }
+            default -> { // NODATA
+                writeSoa(out);
+                return Arrays.copyOf(out.array(), out.position());
+            }
+        }
+        out.putShort(6, (short) 1);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    // The owner (a pointer to the question name), type, class, TTL and data length of an answer record
+    private void recordHeader(ByteBuffer out, int type, int dataLength) {
+        out.putShort((short) NAME_POINTER).putShort((short) type).putShort((short) 1).putInt(ttl).putShort((short) dataLength);
+    }
+
+    // An SOA in the authority section, so the negative answer can be cached for the TTL (RFC 2308)
+    private void writeSoa(ByteBuffer out) {
+        out.putShort((short) NAME_POINTER).putShort((short) DNSRecord.TYPE_SOA).putShort((short) 1).putInt(ttl);
+        int lengthAt = out.position();
+        out.putShort((short) 0);
+        out.put(new byte[]{2, 'n', 's', 4, 'f', 'a', 'k', 'e', 0});
+        out.put(new byte[]{10, 'h', 'o', 's', 't', 'm', 'a', 's', 't', 'e', 'r', 4, 'f', 'a', 'k', 'e', 0});
+        out.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(ttl); // Serial, refresh, retry, expire, minimum
+        out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+        out.putShort(8, (short) 1);
+    }
+
+    // FNV-1a over the name's labels, ignoring case (the question name is never compressed)
+    private static int nameHash(DNSPacketReader reader, int offset) {
+        int hash = 0x811C9DC5;
+        int end = reader.getLength();
+        for (int i = offset; i < end; i++) {
+            int b = reader.getUnsignedByte(i);
+            if (b == 0) {
+                break;
+            }
+            hash = (hash ^ Character.toLowerCase(b)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @return The address replies come from.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * @return How many queries arrived, dropped ones included.
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * @return How many queries were dropped on purpose.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Changes the share of queries dropped from now on, e.g. 1.0 to take the resolver down and 0 to bring it back.
+     * @param loss Share of queries (0-1) that get no reply at all.
+     */
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Runs a fake upstream until killed.
+     * @param args Settings as --name=value, see the class comment.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = 5300;
+        double latencyMillis = 20;
+        double jitterMillis = 10;
+        double loss = 0;
+        int ttl = 300;
+        double nxShare = 0;
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "port" -> port = Integer.parseInt(value);
+                case "latency-ms" -> latencyMillis = Double.parseDouble(value);
+                case "jitter-ms" -> jitterMillis = Double.parseDouble(value);
+                case "loss" -> loss = Double.parseDouble(value);
+                case "ttl" -> ttl = Integer.parseInt(value);
+                case "nx" -> nxShare = Double.parseDouble(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+
+        FakeUpstream upstream = new FakeUpstream(port, latencyMillis, jitterMillis, loss, ttl, nxShare);
+        System.out.println("Fake upstream on " + upstream.getAddress());
+        upstream.receiver.join();
+    }
+}
@@ -0,0 +1,599 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves names itself instead of forwarding them: starting at the root servers it follows
+ * referrals down to a server that is authoritative for the name (RFC 1034 section 5.3.3).
+ *
+ * Delegations are cached apart from answers: the NS set of every zone a referral named, and the
+ * addresses of those name servers from glue, each for its own TTL. A later query under a known zone
+ * starts at that zone's servers instead of the root. Every name server's round-trip time is tracked,
+ * and each step asks the fastest server of the zone first, moving on to the next one on a timeout or
+ * an error. Servers nothing is known about yet count as fastest, so each gets tried early.
+ *
+ * Queries go out over one shared UDP channel with random transaction IDs, and a reply is only taken
+ * from the address that was asked and only if it repeats the question. Truncated replies are asked
+ * again over TCP. Name servers are only reached over IPv4.
+ */
+public class IterativeResolver implements Closeable {
+    private static final int MAX_REFERRALS = 16;  // Referrals followed for one name before giving up
+    private static final int MAX_CNAMES = 8;      // CNAMEs followed for one question
+    private static final int MAX_DEPTH = 3;       // Nesting of lookups for name servers that came without glue
+    private static final int MAX_ATTEMPTS = 4;    // Servers asked at one step before the step fails
+    private static final int MAX_ZONES = 100_000; // Delegations cached; past this only expired ones make room
+    private static final long MAX_TTL_SECONDS = 172_800; // Cap on delegation and glue TTLs, two days as TLDs use
+    private static final double RTT_WEIGHT = 0.2;        // EWMA weight of each new RTT sample
+    private static final long MIN_TIMEOUT_MILLIS = 50;   // Shortest wait on a server, however fast it has been
+    private static final long SERVER_STATS_MILLIS = 600_000; // RTTs older than this are forgotten, so slow servers get retried
+    private static final int FLAG_AA = 0x0400; // Authoritative answer
+    private static final int FLAG_RD = 0x0100; // Recursion desired
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+
+    private final Delegation root;
+    private final int nameServerPort;  // Port of every name server found through a referral
+    private final long timeoutMillis;  // Longest wait on one server
+    private final int udpPayloadSize;  // EDNS0 payload size we advertise
+    private final DatagramChannel channel;
+    private final Thread readerThread;
+    private final ExecutorService resolvers = Executors.newVirtualThreadPerTaskExecutor(); // One thread per lookup, blocking is cheap
+
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>(); // Transaction ID -> waiting query
+    private final ConcurrentHashMap<DNSName, Delegation> zones = new ConcurrentHashMap<>(); // Zone -> its name servers
+    private final ConcurrentHashMap<DNSName, Glue> glue = new ConcurrentHashMap<>();        // Name server -> its addresses
+    private final ConcurrentHashMap<InetSocketAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder referrals = new LongAdder();
+    private final LongAdder zoneHits = new LongAdder(); // Lookups that started below the root thanks to the cache
+
+    private volatile boolean closed;
+
+    // A zone's name servers: by name, with addresses looked up in the glue cache, or as fixed hints for the root
+    private static final class Delegation {
+        final DNSName zone;
+        final DNSName[] nameServers;
+        final InetSocketAddress[] hints;
+        final long expiresAt;
+
+        Delegation(DNSName zone, DNSName[] nameServers, InetSocketAddress[] hints, long expiresAt) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+            this.hints = hints;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // The addresses of one name server
+    private static final class Glue {
+        final InetSocketAddress[] addresses;
+        final long expiresAt;
+
+        Glue(InetSocketAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // What has been seen of one name server. 0 RTT until the first sample, so new servers go first.
+    private static final class ServerStats {
+        double ewmaRttMillis;
+        long updatedAt;
+
+        synchronized void recordRtt(long rttMillis) {
+            ewmaRttMillis = (ewmaRttMillis == 0) ? rttMillis : ewmaRttMillis + RTT_WEIGHT * (rttMillis - ewmaRttMillis);
+            updatedAt = System.currentTimeMillis();
+        }
+
+        // A timeout counts as at least the full wait, and doubles what was known
+        synchronized void recordTimeout(long waitedMillis) {
+            ewmaRttMillis = Math.max(ewmaRttMillis * 2, waitedMillis);
+            updatedAt = System.currentTimeMillis();
+        }
+
+        synchronized double rtt(long now) {
+            return (now - updatedAt > SERVER_STATS_MILLIS) ? 0 : ewmaRttMillis;
+        }
+    }
+
+    // A query waiting for its reply from one server
+    private static final class Pending {
+        final SocketAddress server;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        Pending(SocketAddress server) {
+            this.server = server;
+        }
+    }
+
+    // The outcome of resolving one question
+    private static final class Answer {
+        final DNSRecord[] records;   // CNAME chain first, then the records asked for
+        final DNSRecord[] authority; // The zone's SOA for negative answers
+        final int rcode;
+
+        Answer(List<DNSRecord> records, DNSRecord[] authority, int rcode) {
+            this.records = records.toArray(new DNSRecord[0]);
+            this.authority = authority;
+            this.rcode = rcode;
+        }
+    }
+
+    /**
+     * Opens the query channel and starts the reader thread.
+     * @param rootHints Addresses of the root servers.
+     * @param nameServerPort The port name servers found through referrals listen on, 53 outside of tests.
+     * @param timeoutMillis The longest wait for one server before asking the next.
+     * @param udpPayloadSize The EDNS0 payload size to advertise, or 0 for none.
+     */
+    public IterativeResolver(List<InetSocketAddress> rootHints, int nameServerPort, long timeoutMillis, int udpPayloadSize)
+            throws IOException {
+        if (rootHints.isEmpty()) {
+            throw new IllegalArgumentException("At least one root server is needed");
+        }
+        this.root = new Delegation(DNSName.fromLabels(new String[0]), new DNSName[0],
+                rootHints.toArray(new InetSocketAddress[0]), Long.MAX_VALUE);
+        this.nameServerPort = nameServerPort;
+        this.timeoutMillis = timeoutMillis;
+        this.udpPayloadSize = udpPayloadSize;
+
+        this.channel = DatagramChannel.open();
+        channel.bind(null); // Any free port
+        this.readerThread = new Thread(this::readLoop, "dns-iterative-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Resolves the question of a query without blocking the caller.
+     * @param requestData A DNS query with one question; not modified.
+     * @return A future completed with the reply bytes, carrying the query's ID, or completed exceptionally
+     *         if no server could be reached for some step.
+     */
+    public CompletableFuture<byte[]> query(byte[] requestData) {
+        DNSMessage request;
+        try {
+            request = DNSMessage.decodeMessage(requestData);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (request.getQuestions().length != 1) {
+            return CompletableFuture.failedFuture(new IOException("Iterative queries take exactly one question"));
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            DNSQuestion question = request.getQuestions()[0];
+            try {
+                Answer answer = resolve(question.getName(), question.getQtype(), question.getQclass(), 0);
+                return DNSMessage.buildResponse(request, answer.records, answer.authority, answer.rcode).toBytes();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, resolvers);
+    }
+
+    /**
+     * Follows referrals from the closest known zone until some server answers the question,
+     * then follows CNAMEs the same way.
+     * @param name The name to resolve.
+     * @param depth How many lookups for name servers this one is nested in.
+     * @return The answer, negative ones included.
+     * @throws IOException If a step found no server that answered.
+     */
+    private Answer resolve(DNSName name, int qtype, int qclass, int depth) throws IOException {
+        ArrayList<DNSRecord> records = new ArrayList<>(); // CNAMEs followed so far, then the answer
+        DNSName target = name;
+        Delegation zone = closestZone(target);
+
+        for (int steps = 0; steps <= MAX_REFERRALS + MAX_CNAMES; steps++) {
+            DNSMessage reply = ask(zone, target, qtype, qclass, depth);
+            if (reply.getHeader().getRcode() == DNSHeader.RCODE_NXDOMAIN) {
+                return new Answer(records, soaOf(reply), DNSHeader.RCODE_NXDOMAIN);
+            }
+
+            // Take what the answer section says about the target, following CNAMEs within it
+            DNSName followed = target;
+            boolean answered = false;
+            for (int hops = 0; hops <= MAX_CNAMES && !answered; hops++) {
+                DNSName cname = null;
+                for (DNSRecord record : reply.getAnswers()) {
+                    if (!record.getName().equals(followed) || !record.getName().isSubdomainOf(zone.zone)) {
+                        continue; // Not what we asked, or out of the zone's bailiwick
+                    }
+                    if (record.getType() == qtype || qtype == 255) {
+                        records.add(record);
+                        answered = true;
+                    } else if (record.getType() == DNSRecord.TYPE_CNAME && cname == null) {
+                        records.add(record);
+                        cname = record.getTargetName();
+                    }
+                }
+                if (answered || cname == null) {
+                    break;
+                }
+                followed = cname;
+            }
+            if (answered) {
+                return new Answer(records, new DNSRecord[0], DNSHeader.RCODE_NOERROR);
+            }
+            if (!followed.equals(target)) { // A CNAME to somewhere else: start over from the closest zone for it
+                if (records.size() > MAX_CNAMES) {
+                    throw new IOException("CNAME chain too long for " + name);
+                }
+                target = followed;
+                zone = closestZone(target);
+                continue;
+            }
+
+            Delegation child = referral(reply, zone, target);
+            if (child == null) { // The authoritative server has nothing of this type: NODATA
+                return new Answer(records, soaOf(reply), DNSHeader.RCODE_NOERROR);
+            }
+            referrals.increment();
+            zone = child;
+        }
+        throw new IOException("Too many referrals resolving " + name);
+    }
+
+    /**
+     * Finds the deepest cached zone the name is in.
+     * @return Its delegation, or the root's.
+     */
+    private Delegation closestZone(DNSName name) {
+        long now = System.currentTimeMillis();
+        for (DNSName zone = name; zone != null && zone.wireLength() > 1; zone = zone.parent()) {
+            Delegation delegation = zones.get(zone);
+            if (delegation != null) {
+                if (delegation.expiresAt > now) {
+                    zoneHits.increment();
+                    return delegation;
+                }
+                zones.remove(zone, delegation);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Reads a referral out of a reply and caches it: NS records in the authority section for a zone
+     * below the one asked and above the target, and the addresses of those servers from the additional
+     * section. Glue is only believed for names inside the zone that was asked, since that server could
+     * not speak for anything else.
+     * @param reply The reply from a server of the parent zone.
+     * @param parent The zone that was asked.
+     * @param target The name being resolved.
+     * @return The child zone's delegation, or null if the reply is not a referral.
+     */
+    private Delegation referral(DNSMessage reply, Delegation parent, DNSName target) {
+        if ((reply.getHeader().getFlags() & FLAG_AA) != 0) {
+            return null;
+        }
+        DNSName child = null;
+        ArrayList<DNSName> nameServers = new ArrayList<>();
+        long ttl = MAX_TTL_SECONDS;
+        for (DNSRecord record : reply.getAuthorityRecords()) {
+            if (record.getType() != DNSRecord.TYPE_NS || record.getName().equals(parent.zone)
+                    || !record.getName().isSubdomainOf(parent.zone) || !target.isSubdomainOf(record.getName())) {
+                continue;
+            }
+            if (child == null) {
+                child = record.getName();
+            }
+            if (record.getName().equals(child)) {
+                nameServers.add(record.getTargetName());
+                ttl = Math.min(ttl, record.getTtl());
+            }
+        }
+        if (child == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        for (DNSName nameServer : nameServers) {
+            if (!nameServer.isSubdomainOf(parent.zone)) {
+                continue;
+            }
+            ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+            long glueTtl = MAX_TTL_SECONDS;
+            for (DNSRecord record : reply.getAdditionalRecords()) {
+                if (record.getType() == TYPE_A && record.getName().equals(nameServer) && record.getData().length == 4) {
+                    addresses.add(socketAddress(record.getData()));
+                    glueTtl = Math.min(glueTtl, record.getTtl());
+                }
+            }
+            if (!addresses.isEmpty()) {
+                glue.put(nameServer, new Glue(addresses.toArray(new InetSocketAddress[0]), now + glueTtl * 1000));
+            }
+        }
+
+        Delegation delegation = new Delegation(child, nameServers.toArray(new DNSName[0]), null, now + Math.max(0, ttl) * 1000);
+        if (zones.size() >= MAX_ZONES) {
+            zones.values().removeIf(cached -> cached.expiresAt <= now);
+            glue.values().removeIf(cached -> cached.expiresAt <= now);
+        }
+        if (zones.size() < MAX_ZONES) {
+            zones.put(child, delegation);
+        }
+        return delegation;
+    }
+
+    /**
+     * Works out where a zone's name servers are: the hints for the root, otherwise the glue cache,
+     * looking up the addresses of name servers that came without glue if there are none.
+     * @return The addresses, possibly none.
+     */
+    private List<InetSocketAddress> addressesOf(Delegation zone, int depth) throws IOException {
+        if (zone.hints != null) {
+            return Arrays.asList(zone.hints);
+        }
+        long now = System.currentTimeMillis();
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        for (DNSName nameServer : zone.nameServers) {
+            Glue known = glue.get(nameServer);
+            if (known != null && known.expiresAt > now) {
+                Collections.addAll(addresses, known.addresses);
+            }
+        }
+        if (!addresses.isEmpty() || depth >= MAX_DEPTH) {
+            return addresses;
+        }
+
+        // No glue: resolve the name servers' own names, the first one that works is enough
+        IOException failure = null;
+        for (DNSName nameServer : zone.nameServers) {
+            try {
+                Answer answer = resolve(nameServer, TYPE_A, CLASS_IN, depth + 1);
+                long ttl = MAX_TTL_SECONDS;
+                for (DNSRecord record : answer.records) {
+                    if (record.getType() == TYPE_A && record.getData().length == 4) {
+                        addresses.add(socketAddress(record.getData()));
+                        ttl = Math.min(ttl, record.getTtl());
+                    }
+                }
+                if (!addresses.isEmpty()) {
+                    glue.put(nameServer, new Glue(addresses.toArray(new InetSocketAddress[0]), now + ttl * 1000));
+                    return addresses;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return addresses;
+    }
+
+    /**
+     * Asks a zone's servers one question, fastest first, until one gives a usable reply.
+     * @return The first usable reply.
+     * @throws IOException If every server asked timed out, failed or gave an error.
+     */
+    private DNSMessage ask(Delegation zone, DNSName name, int qtype, int qclass, int depth) throws IOException {
+        List<InetSocketAddress> addresses = addressesOf(zone, depth);
+        if (addresses.isEmpty()) {
+            zones.remove(zone.zone, zone); // Start from the parent next time, it may know better
+            throw new IOException("No name server addresses for zone " + zone.zone);
+        }
+
+        InetSocketAddress[] ranked = rank(addresses);
+        IOException failure = null;
+        for (int i = 0; i < Math.min(ranked.length, MAX_ATTEMPTS); i++) {
+            try {
+                DNSMessage reply = exchange(ranked[i], name, qtype, qclass);
+                int rcode = reply.getHeader().getRcode();
+                if (rcode == DNSHeader.RCODE_NOERROR || rcode == DNSHeader.RCODE_NXDOMAIN) {
+                    return reply;
+                }
+                failure = new IOException(ranked[i] + " answered " + name + " with RCODE " + rcode);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Orders a zone's server addresses by smoothed RTT, ties broken at random so load spreads over equals.
+     */
+    private InetSocketAddress[] rank(List<InetSocketAddress> addresses) {
+        long now = System.currentTimeMillis();
+        InetSocketAddress[] ranked = addresses.toArray(new InetSocketAddress[0]);
+        for (int i = ranked.length - 1; i > 0; i--) { // Shuffle, the sort below is stable
+            int j = ThreadLocalRandom.current().nextInt(i + 1);
+            InetSocketAddress swap = ranked[i];
+            ranked[i] = ranked[j];
+            ranked[j] = swap;
+        }
+        double[] rtt = new double[ranked.length];
+        for (int i = 0; i < ranked.length; i++) { // Snapshot first, the stats move while sorting
+            rtt[i] = stats(ranked[i]).rtt(now);
+        }
+        Integer[] order = new Integer[ranked.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> rtt[i]));
+        InetSocketAddress[] sorted = new InetSocketAddress[ranked.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = ranked[order[i]];
+        }
+        return sorted;
+    }
+
+    private ServerStats stats(InetSocketAddress server) {
+        return servers.computeIfAbsent(server, address -> new ServerStats());
+    }
+
+    /**
+     * Sends one non-recursive query to one server and waits for its reply, over TCP if the UDP reply was truncated.
+     * The wait is a few times the server's usual RTT, so a dead server is left quickly.
+     * @return The decoded reply, checked to be for this question.
+     * @throws IOException If the server did not answer in time or sent something else.
+     */
+    private DNSMessage exchange(InetSocketAddress server, DNSName name, int qtype, int qclass) throws IOException {
+        if (closed) {
+            throw new IOException("Iterative resolver is closed");
+        }
+        byte[] query = DNSMessage.buildQuery(new DNSQuestion(name, qtype, qclass), udpPayloadSize).toBytes();
+        query[2] &= (byte) ~(FLAG_RD >> 8); // RD=0: we want referrals, not the server's own recursion
+
+        ServerStats stats = stats(server);
+        double rtt = stats.rtt(System.currentTimeMillis());
+        long timeout = (rtt == 0) ? timeoutMillis : Math.max(MIN_TIMEOUT_MILLIS, Math.min(timeoutMillis, (long) (rtt * 4)));
+
+        Pending waiting = new Pending(server);
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000); // Random IDs, harder to spoof a reply
+        } while (pending.putIfAbsent(id, waiting) != null);
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+
+        long start = System.nanoTime();
+        byte[] replyData;
+        try {
+            queriesSent.increment();
+            channel.send(ByteBuffer.wrap(query), server);
+            replyData = waiting.reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            stats.recordTimeout(timeout);
+            throw new SocketTimeoutException("No reply from " + server + " for " + name + " in " + timeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + server, e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pending.remove(id, waiting);
+        }
+        stats.recordRtt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if ((((replyData[2] & 0xFF) << 8) & DNSHeader.FLAG_TC) != 0) {
+            replyData = queryOverTcp(server, query, timeout);
+        }
+
+        DNSPacketReader reader = new DNSPacketReader();
+        reader.wrap(ByteBuffer.wrap(replyData));
+        if (reader.getId() != id || reader.getQuestionCount() != 1 || reader.getQuestionType(0) != qtype
+                || !DNSName.fromPacket(reader, reader.getQuestionNameOffset(0)).equals(name)) {
+            throw new IOException(server + " replied to a different question than " + name);
+        }
+        return DNSMessage.decodeMessage(reader);
+    }
+
+    /**
+     * Asks a query again over a fresh TCP connection, with the 2-byte length prefix of RFC 1035 section 4.2.2.
+     */
+    private static byte[] queryOverTcp(InetSocketAddress server, byte[] query, long timeoutMillis) throws IOException {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMillis);
+        try (Socket socket = new Socket()) {
+            socket.connect(server, timeout);
+            socket.setSoTimeout(timeout);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.length);
+            out.write(query);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] replyData = new byte[in.readUnsignedShort()];
+            in.readFully(replyData);
+            return replyData;
+        }
+    }
+
+    /**
+     * Reader thread: hands each reply to the query waiting on its ID, if it came from the server that was asked.
+     */
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+        while (!closed) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < DNSPacketReader.HEADER_SIZE) {
+                    continue;
+                }
+                Pending waiting = pending.get(buffer.getShort(0) & 0xFFFF);
+                if (waiting != null && waiting.server.equals(from)) { // Anything else is late or spoofed
+                    byte[] replyData = new byte[buffer.remaining()];
+                    buffer.get(replyData);
+                    waiting.reply.complete(replyData);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Iterative resolver reader: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // The SOA records of a negative reply, which say how long it may be cached (RFC 2308)
+    private static DNSRecord[] soaOf(DNSMessage reply) {
+        return Arrays.stream(reply.getAuthorityRecords())
+                .filter(record -> record.getType() == DNSRecord.TYPE_SOA)
+                .toArray(DNSRecord[]::new);
+    }
+
+    private InetSocketAddress socketAddress(byte[] ipv4) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ipv4), nameServerPort);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e); // Cannot happen for 4 bytes
+        }
+    }
+
+    /**
+     * Writes the resolver's counters and cache sizes as metric lines (Prometheus text format).
+     * @param out Where to append them.
+     */
+    public void appendMetrics(StringBuilder out) {
+        out.append("dns_iterative_queries_total ").append(queriesSent.sum()).append('\n');
+        out.append("dns_iterative_timeouts_total ").append(timeouts.sum()).append('\n');
+        out.append("dns_iterative_referrals_total ").append(referrals.sum()).append('\n');
+        out.append("dns_delegation_cache_hits_total ").append(zoneHits.sum()).append('\n');
+        out.append("dns_delegation_cache_entries ").append(zones.size()).append('\n');
+        out.append("dns_nameservers_tracked ").append(servers.size()).append('\n');
+    }
+
+    /**
+     * Stops the reader thread; lookups still running fail.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+        resolvers.shutdownNow();
+        for (Pending waiting : pending.values()) {
+            waiting.reply.completeExceptionally(new IOException("Iterative resolver closed"));
+        }
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Load test for DNSServer that needs nothing but this machine. It sends queries over UDP at a
+ * target rate and reports the achieved rate, the cache hit ratio and latency percentiles.
+ *
+ * Queries are either synthesized, with names host0.example.com, host1.example.com, ... picked by
+ * Zipf popularity and types picked from a weighted mix, or replayed in order from a file with one
+ * "name [qtype]" per line. The load is open-loop: each query has a scheduled send time and its
+ * latency is measured from then, so a server that falls behind is not hidden by the generator
+ * slowing down with it.
+ *
+ * By default a FakeUpstream and a DNSServer using it are started in this JVM, and options this tool
+ * does not know are passed on to that server (e.g. --cache-capacity=50000). With --target the
+ * queries go to a server started separately instead, which gives cleaner numbers since the two do not
+ * share CPUs; start that server with --upstreams=127.0.0.1:5300 to use this tool's fake upstream.
+ *
+ * Run with: java LoadGenerator [--qps=20000] [--duration=30] [--warmup=5] [--names=100000] [--zipf=1.0]
+ *           [--qtypes=A:70,AAAA:25,MX:5] [--replay=queries.txt] [--target=127.0.0.1:8053] [--sockets=4]
+ *           [--upstream-port=5300] [--upstream-latency-ms=20] [--upstream-jitter-ms=10] [--upstream-loss=0]
+ *           [--upstream-ttl=300] [--upstream-nx=0] [server options]
+ */
+public class LoadGenerator {
+    private static final int IDS = 1 << 16; // Transaction IDs per socket, each socket matches its own replies
+    private static final int EDNS_PAYLOAD = 1232; // Queries carry an OPT record like modern stub resolvers
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    // Settings, see the class comment
+    private double qps = 20_000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int socketCount = 4;
+    private long timeoutMillis = 2000;
+    private int nameCount = 100_000;
+    private double zipfExponent = 1.0;
+    private String qtypeMix = "A:70,AAAA:25,MX:5";
+    private Path replayFile = null;
+    private InetSocketAddress target = null; // null = start a server in this JVM
+    private int upstreamPort = 5300;         // 0 = no fake upstream
+    private double upstreamLatencyMillis = 20;
+    private double upstreamJitterMillis = 10;
+    private double upstreamLoss = 0;
+    private int upstreamTtl = 300;
+    private double upstreamNxShare = 0;
+    private final List<String> serverArgs = new ArrayList<>();
+
+    // The query stream: replayed queries in order, or Zipf-ranked names with types from the mix
+    private byte[][] names;      // Wire format name of each replayed query or ranked name
+    private int[] replayTypes;   // Type of each replayed query, null when synthesizing
+    private Zipf popularity;     // Picks a ranked name
+    private int[] mixTypes;      // Types to synthesize ...
+    private double[] mixCdf;     // ... and their cumulative weights
+
+    // Every query counts toward the phase it was scheduled in, wherever its answer arrives
+    private final Stats warmup = new Stats();
+    private final Stats measured = new Stats();
+    private long measureFrom; // When the measured phase starts, System.nanoTime
+
+    /**
+     * What was sent and received in one phase (warmup, then measurement).
+     */
+    private static final class Stats {
+        final LongAdder sent = new LongAdder();
+        final LongAdder answered = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+        final LongAdder noError = new LongAdder();
+        final LongAdder nxDomain = new LongAdder();
+        final LongAdder servFail = new LongAdder();
+        final LongAdder truncated = new LongAdder();
+        final ServerMetrics.Histogram latency = new ServerMetrics.Histogram();
+    }
+
+    /**
+     * @param due When a query was scheduled to be sent, System.nanoTime.
+     * @return The phase it belongs to.
+     */
+    private Stats phase(long due) {
+        return (due - measureFrom >= 0) ? measured : warmup;
+    }
+
+    /**
+     * One UDP socket with its own sender and receiver thread and its own transaction IDs.
+     */
+    private final class Client {
+        private final DatagramChannel channel;
+        private final AtomicLongArray sentAt = new AtomicLongArray(IDS); // Scheduled send time by ID, 0 = answered
+        private final double rate;    // Queries per nanosecond
+        private final int replayStart; // Where in the replay file this client starts
+        private final SplittableRandom random;
+
+        Client(int index) throws IOException {
+            channel = DatagramChannel.open();
+            channel.connect(target);
+            rate = qps / socketCount / 1e9;
+            replayStart = (int) ((long) names.length * index / socketCount); // Spread out, not all sending the same query
+            random = new SplittableRandom(index);
+        }
+
+        /**
+         * Sends at this client's share of the target rate until the deadline. A client that falls behind
+         * sends the queries that are due in a burst rather than skipping them.
+         */
+        void send(long startNanos, long endNanos) {
+            ByteBuffer query = ByteBuffer.allocate(DNSMessage.MAX_PLAIN_UDP_SIZE);
+            int id = 0;
+            try {
+                for (long count = 0; ; count++) {
+                    long due = startNanos + (long) (count / rate);
+                    if (due >= endNanos) {
+                        return;
+                    }
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    encodeQuery(query, id, (int) ((replayStart + count) % names.length), random);
+                    long unanswered = sentAt.getAndSet(id, due);
+                    if (unanswered != 0) {
+                        phase(unanswered).timedOut.increment(); // The last query with this ID never got an answer
+                    }
+                    channel.write(query);
+                    phase(due).sent.increment();
+                    id = (id + 1) & (IDS - 1);
+                }
+            } catch (IOException e) {
+                System.err.println("Load generator could not send: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Matches replies to their queries' scheduled send times by ID, until the channel is closed.
+         */
+        void receive() {
+            ByteBuffer response = ByteBuffer.allocate(DNSMessage.MAX_MESSAGE_SIZE);
+            while (true) {
+                try {
+                    response.clear();
+                    channel.read(response);
+                    long now = System.nanoTime();
+                    if (response.position() < DNSPacketReader.HEADER_SIZE) {
+                        continue;
+                    }
+                    long due = sentAt.getAndSet(response.getShort(0) & 0xFFFF, 0);
+                    if (due == 0) {
+                        continue; // Duplicate, or its ID was already reused
+                    }
+
+                    Stats current = phase(due);
+                    current.answered.increment();
+                    current.latency.record(now - due);
+                    int flags = response.getShort(2) & 0xFFFF;
+                    if ((flags & DNSHeader.FLAG_TC) != 0) {
+                        current.truncated.increment();
+                    }
+                    switch (flags & 0xF) {
+                        case DNSHeader.RCODE_NOERROR -> current.noError.increment();
+                        case DNSHeader.RCODE_NXDOMAIN -> current.nxDomain.increment();
+                        case DNSHeader.RCODE_SERVFAIL -> current.servFail.increment();
+                        default -> { }
+                    }
+                } catch (AsynchronousCloseException e) {
+                    return;
+                } catch (IOException e) {
+                    // Port unreachable while the server is not up yet, keep listening
+                }
+            }
+        }
+
+        /**
+         * Counts the queries still unanswered as timed out, then closes the socket.
+         */
+        void finish() throws IOException {
+            for (int id = 0; id < IDS; id++) {
+                long unanswered = sentAt.getAndSet(id, 0);
+                if (unanswered != 0) {
+                    phase(unanswered).timedOut.increment();
+                }
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a query, ready to send.
+     * @param query Buffer to write it to.
+     * @param id Transaction ID.
+     * @param replayIndex Which replayed query to send, when replaying.
+     * @param random The sending client's random source, when synthesizing.
+     */
+    private void encodeQuery(ByteBuffer query, int id, int replayIndex, SplittableRandom random) {
+        byte[] name;
+        int type;
+        if (replayTypes != null) {
+            name = names[replayIndex];
+            type = replayTypes[replayIndex];
+        } else {
+            name = names[popularity.sample(random.nextDouble())];
+            type = mixTypes[Zipf.sample(mixCdf, random.nextDouble())];
+        }
+
+        query.clear();
+        query.putShort((short) id).putShort((short) 0x0100) // RD
+                .putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 1); // One question, one OPT
+        query.put(name).putShort((short) type).putShort((short) 1);
+        query.put((byte) 0).putShort((short) DNSRecord.TYPE_OPT).putShort((short) EDNS_PAYLOAD).putInt(0).putShort((short) 0);
+        query.flip();
+    }
+
+    /**
+     * Builds the query stream: reads the replay file, or ranks the synthetic names and parses the type mix.
+     */
+    private void prepareQueries() throws IOException {
+        if (replayFile != null) {
+            List<byte[]> replayNames = new ArrayList<>();
+            List<Integer> types = new ArrayList<>();
+            for (String line : Files.readAllLines(replayFile)) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = WHITESPACE.split(line);
+                replayNames.add(wire(fields[0]));
+                types.add((fields.length > 1) ? parseType(fields[1]) : 1);
+            }
+            if (replayNames.isEmpty()) {
+                throw new IOException("No queries in " + replayFile);
+            }
+            names = replayNames.toArray(new byte[0][]);
+            replayTypes = types.stream().mapToInt(Integer::intValue).toArray();
+            return;
+        }
+
+        names = new byte[nameCount][];
+        for (int rank = 0; rank < nameCount; rank++) {
+            names[rank] = wire("host" + rank + ".example.com");
+        }
+        popularity = new Zipf(nameCount, zipfExponent);
+
+        String[] weights = qtypeMix.split(",");
+        mixTypes = new int[weights.length];
+        mixCdf = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            String[] typeAndWeight = weights[i].trim().split(":");
+            mixTypes[i] = parseType(typeAndWeight[0]);
+            total += (typeAndWeight.length > 1) ? Double.parseDouble(typeAndWeight[1]) : 1;
+            mixCdf[i] = total;
+        }
+        for (int i = 0; i < mixCdf.length; i++) {
+            mixCdf[i] /= total;
+        }
+    }
+
+    // A name such as www.example.com. in wire format
+    private static byte[] wire(String name) {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return DNSName.fromLabels(name.split("\\.")).wire();
+    }
+
+    /**
+     * Parses a query type given by name (A, AAAA, MX, ...) or number.
+     * @param type The type.
+     * @return Its number.
+     */
+    static int parseType(String type) {
+        if (Character.isDigit(type.charAt(0))) {
+            return Integer.parseInt(type);
+        }
+        for (int qtype = 1; qtype < 256; qtype++) {
+            if (ServerMetrics.typeName(qtype).equalsIgnoreCase(type)) {
+                return qtype;
+            }
+        }
+        throw new IllegalArgumentException("Unknown query type: " + type);
+    }
+
+    /**
+     * Runs the load test: starts the fake upstream and server as configured, sends for the warmup
+     * and measurement periods, and prints a line every second and a summary of the measurement at the end.
+     */
+    public void run() throws IOException, InterruptedException {
+        prepareQueries();
+
+        FakeUpstream upstream = null;
+        if (upstreamPort > 0) {
+            upstream = new FakeUpstream(upstreamPort, upstreamLatencyMillis, upstreamJitterMillis, upstreamLoss,
+                    upstreamTtl, upstreamNxShare);
+            System.out.println("Fake upstream on " + upstream.getAddress());
+        }
+
+        DNSServer server = null;
+        if (target == null) {
+            DNSServerConfig config = DNSServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+            if (upstream != null && serverArgs.stream().noneMatch(arg -> arg.startsWith("--upstreams="))) {
+                config.upstreams = List.of(upstream.getAddress());
+            }
+            server = new DNSServer(config);
+            server.open();
+            DNSServer running = server;
+            Thread receiver = new Thread(() -> {
+                try {
+                    running.serve();
+                } catch (IOException e) {
+                    System.err.println("Server stopped: " + e.getMessage());
+                }
+            }, "dns-server");
+            receiver.setDaemon(true);
+            receiver.start();
+            target = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        } else if (!serverArgs.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options with --target: " + serverArgs);
+        }
+
+        System.out.printf("Sending %.0f queries/s to %s for %d s after %d s of warmup, %s%n", qps, target,
+                durationSeconds, warmupSeconds, (replayTypes != null) ? "replaying " + names.length + " queries from " + replayFile
+                        : nameCount + " names, Zipf exponent " + zipfExponent + ", types " + qtypeMix);
+
+        List<Client> clients = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        for (int i = 0; i < socketCount; i++) {
+            Client client = new Client(i);
+            clients.add(client);
+            Thread receiver = new Thread(client::receive, "load-receiver-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+            Thread sender = new Thread(() -> client.send(start, end), "load-sender-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+
+        // One line per second, with the counters of the phase that second belongs to
+        long upstreamAtStart = 0;
+        long hitsAtStart = 0;
+        long missesAtStart = 0;
+        for (long tick = start; tick < end; tick += TimeUnit.SECONDS.toNanos(1)) {
+            if (tick == measureFrom) { // The server's counters are only read here, so take them as they are now
+                upstreamAtStart = (upstream != null) ? upstream.getReceivedCount() : 0;
+                if (server != null) {
+                    hitsAtStart = server.getMetrics().cacheHits.sum();
+                    missesAtStart = server.getMetrics().cacheMisses.sum();
+                }
+            }
+            Stats current = phase(tick);
+            long previousSent = current.sent.sum();
+            long previousAnswered = current.answered.sum();
+            LockSupport.parkNanos(tick + TimeUnit.SECONDS.toNanos(1) - System.nanoTime());
+            System.out.printf("%s %3d s  sent %8d/s  answered %8d/s  timed out %6d  p99 %8.3f ms%n",
+                    (current == measured) ? "measure" : "warmup ", TimeUnit.NANOSECONDS.toSeconds(tick - start) + 1,
+                    current.sent.sum() - previousSent, current.answered.sum() - previousAnswered,
+                    current.timedOut.sum(), current.latency.percentile(0.99) / 1e6);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(timeoutMillis); // Give the last queries their full timeout
+        for (Client client : clients) {
+            client.finish();
+        }
+
+        Stats result = measured;
+        double seconds = durationSeconds; // Sends are scheduled, so this is exact unless the senders fell behind
+        long sent = result.sent.sum();
+        long answered = result.answered.sum();
+        System.out.println();
+        System.out.printf("Achieved   %.0f queries/s sent, %.0f answered/s (target %.0f/s)%n",
+                sent / seconds, answered / seconds, qps);
+        System.out.printf("Answers    %d of %d (%.2f%%), %d timed out; NOERROR %d, NXDOMAIN %d, SERVFAIL %d, truncated %d%n",
+                answered, sent, 100.0 * answered / Math.max(1, sent), result.timedOut.sum(), result.noError.sum(),
+                result.nxDomain.sum(), result.servFail.sum(), result.truncated.sum());
+        if (server != null) {
+            long hits = server.getMetrics().cacheHits.sum() - hitsAtStart;
+            long misses = server.getMetrics().cacheMisses.sum() - missesAtStart;
+            System.out.printf("Cache      %.2f%% hits (%d hits, %d misses)%n", 100.0 * hits / Math.max(1, hits + misses), hits, misses);
+        }
+        if (upstream != null) {
+            long upstreamQueries = upstream.getReceivedCount() - upstreamAtStart;
+            System.out.printf("Upstream   %d queries, %.2f%% of answered queries went upstream%n",
+                    upstreamQueries, 100.0 * upstreamQueries / Math.max(1, answered));
+        }
+        System.out.printf("Latency    p50 %.3f ms  p90 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms%n",
+                result.latency.percentile(0.5) / 1e6, result.latency.percentile(0.9) / 1e6, result.latency.percentile(0.99) / 1e6,
+                result.latency.percentile(0.999) / 1e6, result.latency.percentile(1) / 1e6);
+
+        if (upstream != null) {
+            upstream.close();
+        }
+    }
+
+    /**
+     * Parses the command line and runs the load test.
+     * @param args Settings as --name=value, see the class comment. Unknown ones go to the in-process server.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "qps" -> generator.qps = Double.parseDouble(value);
+                case "duration" -> generator.durationSeconds = Integer.parseInt(value);
+                case "warmup" -> generator.warmupSeconds = Integer.parseInt(value);
+                case "sockets" -> generator.socketCount = Integer.parseInt(value);
+                case "timeout" -> generator.timeoutMillis = Long.parseLong(value);
+                case "names" -> generator.nameCount = Integer.parseInt(value);
+                case "zipf" -> generator.zipfExponent = Double.parseDouble(value);
+                case "qtypes" -> generator.qtypeMix = value;
+                case "replay" -> generator.replayFile = Path.of(value);
+                case "target" -> generator.target = DNSServerConfig.parseAddresses(value).get(0);
+                case "upstream-port" -> generator.upstreamPort = Integer.parseInt(value);
+                case "upstream-latency-ms" -> generator.upstreamLatencyMillis = Double.parseDouble(value);
+                case "upstream-jitter-ms" -> generator.upstreamJitterMillis = Double.parseDouble(value);
+                case "upstream-loss" -> generator.upstreamLoss = Double.parseDouble(value);
+                case "upstream-ttl" -> generator.upstreamTtl = Integer.parseInt(value);
+                case "upstream-nx" -> generator.upstreamNxShare = Double.parseDouble(value);
+                default -> generator.serverArgs.add(arg); // A server setting
+            }
+        }
+        generator.run();
+        System.exit(0); // The in-process server has no way to stop
+    }
+}
@@ -0,0 +1,624 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Names this server answers itself, before the cache: internal hosts it is authoritative for,
+ * and blocked domains it sinkholes with NXDOMAIN.
+ *
+ * Rules come from text files, one per line, '#' starting a comment:
+ *   192.168.1.10 nas.home.arpa nas.lan   hosts format: exact names with local addresses
+ *   0.0.0.0 ads.example.com              hosts format with 0.0.0.0 or ::, the exact name is blocked
+ *   tracker.example.com                  a bare name blocks that domain and everything under it
+ *   *.example.net                        a wildcard matches everything under the domain, not the domain itself
+ * Wildcards work with addresses too ("10.0.0.5 *.dev.lan"). The most specific rule wins:
+ * an exact match first, then the longest matching suffix or wildcard.
+ *
+ * Names are stored in a radix trie on reversed labels (com, example, ads), so every suffix
+ * of a name is a path from the root. The trie is built once per load into flat arrays
+ * and never changed, which keeps millions of names to a handful of objects.
+ * A Bloom filter over every rule's name sits in front: a question is only looked up in
+ * the trie if one of its suffixes might be there, so most names cost a hash per label.
+ *
+ * Files are reloaded on a background thread when they change, and the new rules are
+ * swapped in with one volatile write, so queries never wait for a load.
+ */
+public class LocalZones {
+    private static final int LOCAL_TTL_SECONDS = 60; // Short, so edits to the files are seen quickly
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int NAME_POINTER = 0xC000 | DNSPacketReader.HEADER_SIZE; // Points at the question name
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final List<Path> files;
+    private volatile Zone zone = Zone.EMPTY; // Swapped whole on every reload
+    private long loadedVersion;             // The files' modification times when last loaded, hashed together
+
+    /**
+     * What a matching rule says to do with a name: block it, or answer with its addresses.
+     */
+    public static final class LocalAnswer {
+        static final LocalAnswer BLOCKED = new LocalAnswer(new byte[0][], new byte[0][]);
+
+        final byte[][] ipv4; // 4 bytes each
+        final byte[][] ipv6; // 16 bytes each
+
+        private LocalAnswer(byte[][] ipv4, byte[][] ipv6) {
+            this.ipv4 = ipv4;
+            this.ipv6 = ipv6;
+        }
+
+        public boolean isBlocked() {
+            return this == BLOCKED;
+        }
+    }
+
+    /**
+     * One loaded set of rules: the trie, the Bloom filter in front of it, and the answers.
+     * Nothing in here changes after it is built.
+     */
+    private static final class Zone {
+        static final Zone EMPTY = new Zone(0);
+
+        // Trie nodes. A node's edge is one or more reversed labels in wire format, stored in `edges`.
+        // Children sit next to each other, ordered by their first label.
+        byte[] edges;
+        int[] edgeStart;
+        int[] edgeLength;
+        int[] firstChild;
+        int[] childCount;
+        int[] exact;     // Answer for the node's name itself, -1 if none
+        int[] suffix;    // Answer for the node's name and every name under it, -1 if none
+        int[] wildcard;  // Answer for every name under the node's name, -1 if none
+        int nodeCount;
+        int edgeBytes;
+
+        LocalAnswer[] answers;
+        long[] bloom;    // Bit set of 512-bit blocks, a power of two of them
+        int bloomMask;   // Picks a block
+        int ruleCount;
+
+        Zone(int initialNodes) {
+            int nodes = Math.max(1, initialNodes);
+            edges = new byte[256];
+            edgeStart = new int[nodes];
+            edgeLength = new int[nodes];
+            firstChild = new int[nodes];
+            childCount = new int[nodes];
+            exact = new int[nodes];
+            suffix = new int[nodes];
+            wildcard = new int[nodes];
+            answers = new LocalAnswer[0];
+            bloom = new long[BLOOM_BLOCK_LONGS];
+            bloomMask = 0;
+            nodeCount = 1; // The root: empty edge, no rules
+            exact[0] = suffix[0] = wildcard[0] = -1;
+        }
+
+        // Makes room for more nodes while building
+        void ensureNodes(int count) {
+            if (count <= edgeStart.length) {
+                return;
+            }
+            int length = Math.max(count, edgeStart.length * 3 / 2);
+            edgeStart = Arrays.copyOf(edgeStart, length);
+            edgeLength = Arrays.copyOf(edgeLength, length);
+            firstChild = Arrays.copyOf(firstChild, length);
+            childCount = Arrays.copyOf(childCount, length);
+            exact = Arrays.copyOf(exact, length);
+            suffix = Arrays.copyOf(suffix, length);
+            wildcard = Arrays.copyOf(wildcard, length);
+        }
+
+        // Drops the spare room left over from building
+        void trim() {
+            edges = Arrays.copyOf(edges, edgeBytes);
+            edgeStart = Arrays.copyOf(edgeStart, nodeCount);
+            edgeLength = Arrays.copyOf(edgeLength, nodeCount);
+            firstChild = Arrays.copyOf(firstChild, nodeCount);
+            childCount = Arrays.copyOf(childCount, nodeCount);
+            exact = Arrays.copyOf(exact, nodeCount);
+            suffix = Arrays.copyOf(suffix, nodeCount);
+            wildcard = Arrays.copyOf(wildcard, nodeCount);
+        }
+    }
+
+    // A rule read from a file, only kept while a zone is being built
+    private record Rule(byte[] key, int kind, int answer) { }
+
+    private static final int EXACT = 0;
+    private static final int SUFFIX = 1;
+    private static final int WILDCARD = 2;
+
+    /**
+     * Creates an engine for the given rule files. Nothing is loaded until load or start is called.
+     * @param files The hosts and blocklist files, read in order; later rules for the same name win.
+     */
+    public LocalZones(List<Path> files) {
+        this.files = files;
+    }
+
+    /**
+     * Loads the files now, then checks them for changes every interval on a background thread.
+     * @param reloadIntervalMillis How often to check the files, 0 to never reload.
+     * @throws IOException If the first load fails.
+     */
+    public void start(long reloadIntervalMillis) throws IOException {
+        load();
+        if (reloadIntervalMillis <= 0) {
+            return;
+        }
+        ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-local-zones");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(() -> {
+            try {
+                if (version() != loadedVersion) {
+                    load();
+                }
+            } catch (IOException e) { // Keep answering with the rules already loaded
+                System.err.println("Failed to reload local zones: " + e.getMessage());
+            }
+        }, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads every file, builds a new zone and swaps it in. Queries keep using the old
+     * zone until the new one is complete.
+     * @return The number of rules loaded.
+     * @throws IOException If a file cannot be read.
+     */
+    public int load() throws IOException {
+        long start = System.nanoTime();
+        long version = version();
+        ArrayList<Rule> rules = new ArrayList<>();
+        ArrayList<LocalAnswer> answers = new ArrayList<>();
+        answers.add(LocalAnswer.BLOCKED);
+        for (Path file : files) {
+            readRules(file, rules, answers);
+        }
+
+        Zone zone = build(rules, answers.toArray(new LocalAnswer[0]));
+        this.zone = zone;
+        this.loadedVersion = version;
+        System.out.println("Loaded " + zone.ruleCount + " local zone rules from " + files + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return zone.ruleCount;
+    }
+
+    // Changes whenever one of the files is modified
+    private long version() throws IOException {
+        long version = 0;
+        for (Path file : files) {
+            version = 31 * version + Files.getLastModifiedTime(file).toMillis();
+        }
+        return version;
+    }
+
+    /**
+     * Parses one file into rules. Addresses for the same name in hosts lines are merged,
+     * so a name can have both IPv4 and IPv6 addresses.
+     */
+    private static void readRules(Path file, List<Rule> rules, List<LocalAnswer> answers) throws IOException {
+        Map<String, Integer> answerFor = new HashMap<>(); // Host name -> its answer in `answers`
+        int lineNumber = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                String[] tokens = WHITESPACE.split(((comment >= 0) ? line.substring(0, comment) : line).trim());
+                if (tokens[0].isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    if (!isAddress(tokens[0])) { // Blocklist line: every token is a domain to block
+                        for (String name : tokens) {
+                            rules.add(rule(name, SUFFIX, 0));
+                        }
+                        continue;
+                    }
+
+                    // Hosts line: an address, then the names that have it
+                    byte[] address = InetAddress.getByName(tokens[0]).getAddress(); // A literal, never looked up
+                    boolean blocked = Arrays.equals(address, new byte[address.length]); // 0.0.0.0 or ::
+                    for (int i = 1; i < tokens.length; i++) {
+                        String name = tokens[i].toLowerCase();
+                        int answer = 0;
+                        if (!blocked) {
+                            Integer existing = answerFor.get(name);
+                            answer = (existing != null) ? existing : answers.size();
+                            LocalAnswer previous = (existing != null) ? answers.get(existing) : new LocalAnswer(new byte[0][], new byte[0][]);
+                            LocalAnswer merged = (address.length == 4)
+                                    ? new LocalAnswer(append(previous.ipv4, address), previous.ipv6)
+                                    : new LocalAnswer(previous.ipv4, append(previous.ipv6, address));
+                            if (existing != null) {
+                                answers.set(answer, merged);
+                            } else {
+                                answers.add(merged);
+                                answerFor.put(name, answer);
+                            }
+                        }
+                        rules.add(rule(name, EXACT, answer));
+                    }
+                } catch (IllegalArgumentException | IOException e) {
+                    throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // IPv4 literals are digits and dots, anything with a colon is taken as IPv6
+    private static boolean isAddress(String token) {
+        return token.indexOf(':') >= 0 || token.chars().allMatch(c -> (c >= '0' && c <= '9') || c == '.');
+    }
+
+    private static byte[][] append(byte[][] addresses, byte[] address) {
+        byte[][] longer = Arrays.copyOf(addresses, addresses.length + 1);
+        longer[addresses.length] = address;
+        return longer;
+    }
+
+    /**
+     * Turns a name from a file into a rule. A leading "*." makes a bare or hosts name a wildcard.
+     */
+    private static Rule rule(String name, int kind, int answer) {
+        if (name.startsWith("*.")) {
+            name = name.substring(2);
+            kind = WILDCARD;
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Rules for the root name are not supported");
+        }
+        return new Rule(reversedKey(DNSName.fromLabels(name.split("\\."))), kind, answer);
+    }
+
+    /**
+     * Reverses a name's labels, keeping each in wire format: 3www7example3com becomes 3com7example3www.
+     * The root's terminating zero is left off.
+     */
+    private static byte[] reversedKey(DNSName name) {
+        byte[] wire = name.wire();
+        byte[] key = new byte[wire.length - 1];
+        int out = key.length;
+        for (int at = 0; wire[at] != 0; at += (wire[at] & 0xFF) + 1) {
+            int labelLength = (wire[at] & 0xFF) + 1;
+            out -= labelLength;
+            System.arraycopy(wire, at, key, out, labelLength);
+        }
+        return key;
+    }
+
+    // ---- Building ----
+
+    /**
+     * Builds the trie and Bloom filter. Rules are sorted on their reversed names, which puts
+     * names sharing a suffix next to each other, and the trie is laid out from that order.
+     */
+    private static Zone build(ArrayList<Rule> rules, LocalAnswer[] answers) {
+        rules.sort((a, b) -> Arrays.compareUnsigned(a.key, b.key));
+
+        Zone zone = new Zone(rules.size() + 1); // Grows if the trie needs branch nodes of its own
+        zone.answers = answers;
+        zone.ruleCount = rules.size();
+        int blocks = Integer.highestOneBit((int) Math.max(1, Math.min(1 << 24, rules.size() * 10L / 512)) * 2 - 1);
+        zone.bloom = new long[blocks * BLOOM_BLOCK_LONGS];
+        zone.bloomMask = blocks - 1;
+
+        for (Rule rule : rules) {
+            long hash = 0;
+            for (byte b : rule.key) {
+                hash = hashByte(hash, b);
+            }
+            bloomAdd(zone, hash);
+        }
+        buildChildren(zone, 0, rules, 0, rules.size(), 0);
+        zone.trim();
+        return zone;
+    }
+
+    /**
+     * Builds the children of a node from the rules in [lo, hi), which all share `depth` bytes
+     * of key that the node's path already covers. Children get consecutive node numbers.
+     */
+    private static void buildChildren(Zone zone, int node, List<Rule> rules, int lo, int hi, int depth) {
+        // Group the rules by their next label
+        ArrayList<int[]> groups = new ArrayList<>();
+        for (int start = lo; start < hi; ) {
+            int end = start + 1;
+            while (end < hi && sameLabel(rules.get(start).key, rules.get(end).key, depth)) {
+                end++;
+            }
+            groups.add(new int[]{start, end});
+            start = end;
+        }
+
+        zone.ensureNodes(zone.nodeCount + groups.size());
+        zone.firstChild[node] = zone.nodeCount;
+        zone.childCount[node] = groups.size();
+        zone.nodeCount += groups.size();
+
+        for (int g = 0; g < groups.size(); g++) {
+            int child = zone.firstChild[node] + g;
+            int start = groups.get(g)[0];
+            int end = groups.get(g)[1];
+            byte[] first = rules.get(start).key;
+            byte[] last = rules.get(end - 1).key;
+
+            // The edge runs as far as every rule in the group agrees, label by label (sorted, so first and last decide)
+            int edgeEnd = depth;
+            while (edgeEnd < first.length && sameLabel(first, last, edgeEnd)) {
+                edgeEnd += (first[edgeEnd] & 0xFF) + 1;
+            }
+            addEdge(zone, child, first, depth, edgeEnd - depth);
+            zone.exact[child] = zone.suffix[child] = zone.wildcard[child] = -1;
+
+            // Rules for exactly this name end here; later ones win
+            while (start < end && rules.get(start).key.length == edgeEnd) {
+                Rule rule = rules.get(start++);
+                switch (rule.kind) {
+                    case EXACT -> zone.exact[child] = rule.answer;
+                    case SUFFIX -> zone.suffix[child] = rule.answer;
+                    default -> zone.wildcard[child] = rule.answer;
+                }
+            }
+            buildChildren(zone, child, rules, start, end, edgeEnd);
+        }
+    }
+
+    private static boolean sameLabel(byte[] a, byte[] b, int at) {
+        if (at >= a.length || at >= b.length || a[at] != b[at]) {
+            return false;
+        }
+        return Arrays.equals(a, at + 1, at + 1 + (a[at] & 0xFF), b, at + 1, at + 1 + (b[at] & 0xFF));
+    }
+
+    private static void addEdge(Zone zone, int node, byte[] key, int from, int length) {
+        if (zone.edgeBytes + length > zone.edges.length) {
+            zone.edges = Arrays.copyOf(zone.edges, Math.max(zone.edges.length * 2, zone.edgeBytes + length));
+        }
+        System.arraycopy(key, from, zone.edges, zone.edgeBytes, length);
+        zone.edgeStart[node] = zone.edgeBytes;
+        zone.edgeLength[node] = length;
+        zone.edgeBytes += length;
+    }
+
+    // ---- Bloom filter ----
+
+    // FNV-1a over the reversed wire bytes; a name's suffixes hash as prefixes of it
+    private static long hashByte(long hash, byte b) {
+        return (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+
+    // Final mix so the two probe hashes are independent enough (MurmurHash3 fmix64)
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    // Blocked Bloom filter: all of a name's bits fall in one 64-byte block, so a probe touches one cache line.
+    // About 1.5% false positives at 10 bits per rule.
+    private static final int BLOOM_PROBES = 7;
+    private static final int BLOOM_BLOCK_LONGS = 8; // 512 bits, so each probe takes 9 bits of the hash
+
+    private static void bloomAdd(Zone zone, long hash) {
+        long h = mix(hash);
+        int block = (int) (h >>> 40) & zone.bloomMask;
+        long bits = mix(h);
+        for (int i = 0; i < BLOOM_PROBES; i++, bits >>>= 9) {
+            int bit = (int) bits & 511;
+            zone.bloom[block * BLOOM_BLOCK_LONGS + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean bloomMightContain(Zone zone, long hash) {
+        long h = mix(hash);
+        int block = (int) (h >>> 40) & zone.bloomMask;
+        long bits = mix(h);
+        for (int i = 0; i < BLOOM_PROBES; i++, bits >>>= 9) {
+            int bit = (int) bits & 511;
+            if ((zone.bloom[block * BLOOM_BLOCK_LONGS + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---- Lookup ----
+
+    /**
+     * Finds the rule for a name.
+     * @param name The name being asked for.
+     * @return What to answer, or null if no rule matches and the name should be resolved normally.
+     */
+    public LocalAnswer find(DNSName name) {
+        Zone zone = this.zone; // One read, a reload may swap it meanwhile
+        if (zone.ruleCount == 0) {
+            return null;
+        }
+
+        byte[] wire = name.wire();
+        int labelCount = 0;
+        for (int at = 0; wire[at] != 0; at += (wire[at] & 0xFF) + 1) {
+            labelCount++;
+        }
+        int[] labels = new int[labelCount]; // Label offsets, last label first
+        int next = labelCount;
+        for (int at = 0; wire[at] != 0; at += (wire[at] & 0xFF) + 1) {
+            labels[--next] = at;
+        }
+
+        // Bloom filter: is any suffix of the name (a prefix of its reversed form) a rule?
+        long hash = 0;
+        boolean maybe = false;
+        for (int i = 0; i < labelCount && !maybe; i++) {
+            for (int at = labels[i]; at <= labels[i] + (wire[labels[i]] & 0xFF); at++) {
+                hash = hashByte(hash, wire[at]);
+            }
+            maybe = bloomMightContain(zone, hash);
+        }
+        if (!maybe) {
+            return null;
+        }
+
+        // Walk the trie, remembering the deepest suffix or wildcard rule on the way
+        int best = -1;
+        int node = 0;
+        int label = 0; // Next label of the name to match
+        while (true) {
+            int childAt = findChild(zone, node, wire, (label < labelCount) ? labels[label] : -1);
+            if (childAt < 0) {
+                break;
+            }
+            node = childAt;
+
+            // Match the rest of the edge, label by label
+            int edgeAt = zone.edgeStart[node];
+            int edgeEnd = edgeAt + zone.edgeLength[node];
+            while (edgeAt < edgeEnd && label < labelCount && labelEquals(zone.edges, edgeAt, wire, labels[label])) {
+                edgeAt += (zone.edges[edgeAt] & 0xFF) + 1;
+                label++;
+            }
+            if (edgeAt < edgeEnd) {
+                break; // The name leaves the trie inside this edge
+            }
+
+            if (label == labelCount) { // The whole name matched this node
+                if (zone.exact[node] >= 0) {
+                    return zone.answers[zone.exact[node]];
+                }
+                if (zone.suffix[node] >= 0) {
+                    best = zone.suffix[node];
+                }
+                break;
+            }
+            if (zone.suffix[node] >= 0) {
+                best = zone.suffix[node];
+            }
+            if (zone.wildcard[node] >= 0) {
+                best = zone.wildcard[node];
+            }
+        }
+        return (best >= 0) ? zone.answers[best] : null;
+    }
+
+    /**
+     * Binary search of a node's children for the one whose edge starts with the given label.
+     * @return The child's node number, or -1 if there is none.
+     */
+    private static int findChild(Zone zone, int node, byte[] wire, int labelAt) {
+        if (labelAt < 0) {
+            return -1;
+        }
+        int lo = zone.firstChild[node];
+        int hi = lo + zone.childCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareLabel(zone.edges, zone.edgeStart[mid], wire, labelAt);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Orders labels the way the sorted keys are: length byte first, then the bytes, unsigned
+    private static int compareLabel(byte[] a, int aAt, byte[] b, int bAt) {
+        int length = (a[aAt] & 0xFF) + 1;
+        return Arrays.compareUnsigned(a, aAt, aAt + length, b, bAt, bAt + (b[bAt] & 0xFF) + 1);
+    }
+
+    private static boolean labelEquals(byte[] a, int aAt, byte[] b, int bAt) {
+        return a[aAt] == b[bAt] && Arrays.equals(a, aAt + 1, aAt + 1 + (a[aAt] & 0xFF), b, bAt + 1, bAt + 1 + (b[bAt] & 0xFF));
+    }
+
+    // ---- Answering ----
+
+    /**
+     * Writes the answer to a single-question request that matched a rule: NXDOMAIN for a blocked
+     * name, otherwise the local addresses of the asked type, or none (NODATA) for other types.
+     * The answer is authoritative, and the question is copied as the client sent it.
+     * @param answer The matching rule's answer, from find.
+     * @param request A reader wrapped around the client's request.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @return The number of bytes written.
+     * @throws IOException If the answer does not fit in the buffer.
+     */
+    public static int writeResponse(LocalAnswer answer, DNSPacketReader request, ByteBuffer out) throws IOException {
+        int qtype = request.getQuestionType(0);
+        byte[][] addresses = (qtype == TYPE_A) ? answer.ipv4 : (qtype == TYPE_AAAA) ? answer.ipv6 : new byte[0][];
+        int questionLength = request.questionSectionEnd() - DNSPacketReader.HEADER_SIZE;
+        if (out.remaining() < responseSize(answer, request)) {
+            throw new IOException("Local answer does not fit");
+        }
+
+        int start = out.position();
+        int rcode = answer.isBlocked() ? DNSHeader.RCODE_NXDOMAIN : DNSHeader.RCODE_NOERROR;
+        out.putShort((short) request.getId());
+        out.putShort((short) (0x8000 | 0x0400 | 0x0080 | (request.getFlags() & 0x7900) | rcode)); // QR, AA, RA, client's opcode and RD
+        out.putShort((short) 1);
+        out.putShort((short) addresses.length);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.put(out.position(), request.getBuffer(), request.getBase() + DNSPacketReader.HEADER_SIZE, questionLength);
+        out.position(out.position() + questionLength);
+
+        for (byte[] address : addresses) {
+            out.putShort((short) NAME_POINTER);
+            out.putShort((short) qtype);
+            out.putShort((short) CLASS_IN);
+            out.putInt(LOCAL_TTL_SECONDS);
+            out.putShort((short) address.length);
+            out.put(address);
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * @return How many bytes writeResponse will write for this request.
+     */
+    public static int responseSize(LocalAnswer answer, DNSPacketReader request) {
+        int qtype = request.getQuestionType(0);
+        int size = request.questionSectionEnd();
+        if (qtype == TYPE_A) {
+            size += answer.ipv4.length * (12 + 4);
+        } else if (qtype == TYPE_AAAA) {
+            size += answer.ipv6.length * (12 + 16);
+        }
+        return size;
+    }
+
+    /**
+     * Checks if a question is one the rules apply to: local data is all class IN.
+     * @param question The question being asked.
+     * @return true if find should be consulted.
+     */
+    public static boolean applies(DNSQuestion question) {
+        return question.getQclass() == CLASS_IN;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Single-flight coalescing for upstream lookups.
+ * The first caller for a key starts the fetch, and every caller that asks for the
+ * same key while it is still running gets the same pending result.
+ * @param <K> The lookup key, e.g. a DNSQuestion.
+ * @param <V> The fetched value.
+ */
+public class QueryCoalescer<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder(); // Callers that piggybacked on someone else's fetch
+
+    /**
+     * Returns the pending result for a key, starting the fetch if nobody else has.
+     * @param key The key being looked up.
+     * @param fetcher Starts the real fetch; only called by the first caller.
+     * @return A future completed with the fetched value.
+     */
+    public CompletableFuture<V> fetch(K key, Function<K, CompletableFuture<V>> fetcher) {
+        CompletableFuture<V> result = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+
+        CompletableFuture<V> fetch;
+        try {
+            fetch = fetcher.apply(key);
+        } catch (RuntimeException e) {
+            fetch = CompletableFuture.failedFuture(e);
+        }
+
+        fetch.whenComplete((value, error) -> {
+            inFlight.remove(key, result); // Later callers go to the cache (or start a new fetch)
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return How many callers were attached to an already running fetch.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return How many fetches are running right now.
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
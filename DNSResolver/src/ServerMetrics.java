@@ -0,0 +1,200 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for DNSServer, cheap enough to leave on:
+ * every update is a LongAdder increment or one atomic add on a histogram bucket,
+ * with no locks and no allocation. Reading them (format) is the slow part,
+ * and only happens when someone asks for the stats.
+ *
+ * The text format is the Prometheus exposition format, so the stats endpoint can be scraped as is.
+ */
+public class ServerMetrics {
+    private static final int MAX_QTYPE = 256; // Types above this are counted as "other"
+
+    final LongAdder udpQueries = new LongAdder();
+    final LongAdder tcpQueries = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();      // Answered from the cache, fresh
+    final LongAdder cacheMisses = new LongAdder();    // Needed the upstream (or joined a fetch already going)
+    final LongAdder staleAnswers = new LongAdder();   // Answered with expired data (RFC 8767)
+    final LongAdder localAnswers = new LongAdder();   // Answered from the local zones
+    final LongAdder blockedAnswers = new LongAdder(); // Local answers that were blocked names
+    final LongAdder malformed = new LongAdder();      // Requests that could not be parsed or handled
+    final LongAdder servfails = new LongAdder();      // SERVFAIL answers sent
+    final LongAdder dropped = new LongAdder();        // Misses dropped because the worker stage was full
+    final LongAdder upstreamFailures = new LongAdder(); // Upstream fetches that failed or timed out
+    final LongAdder sendErrors = new LongAdder();     // Answers that could not be sent
+    private final LongAdder[] qtypes = new LongAdder[MAX_QTYPE + 1];
+
+    final Histogram requestLatency = new Histogram();  // Request received to answer sent
+    final Histogram upstreamLatency = new Histogram(); // Upstream fetch, hedges and retries included
+
+    /**
+     * A lock-free latency histogram with log-linear buckets: each power of two is split in
+     * four, so any recorded value is within 25% of its bucket's bound. Covers 1 ns to hours.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records one sample.
+         * @param nanos The latency in nanoseconds; negative values count as 0.
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        // Values below SUB_BUCKETS get a bucket each, then every power of two gets SUB_BUCKETS of them
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // The largest value that falls in a bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        /**
+         * Works out a percentile from the buckets. Samples recorded meanwhile may or may not be seen.
+         * @param percentile The percentile, 0-1.
+         * @return The upper bound of the bucket holding it, in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long percentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+    }
+
+    public ServerMetrics() {
+        for (int i = 0; i < qtypes.length; i++) {
+            qtypes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a question by its type.
+     * @param qtype The question type.
+     */
+    public void countQuestion(int qtype) {
+        qtypes[Math.min(qtype, MAX_QTYPE)].increment();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     * @param cache The cache, for its size and expired lookups.
+     * @param upstream The upstream pool, for its per-resolver numbers; may be null before it is started.
+     * @param coalesced How many misses joined a fetch already in flight.
+     * @return The metrics, one per line.
+     */
+    public String format(DNSCache cache, UpstreamPool upstream, long coalesced) {
+        StringBuilder out = new StringBuilder();
+        counter(out, "dns_queries_total{transport=\"udp\"}", udpQueries.sum());
+        counter(out, "dns_queries_total{transport=\"tcp\"}", tcpQueries.sum());
+        counter(out, "dns_cache_hits_total", cacheHits.sum());
+        counter(out, "dns_cache_misses_total", cacheMisses.sum());
+        counter(out, "dns_cache_expired_total", cache.getExpiredCount());
+        counter(out, "dns_cache_coalesced_total", coalesced);
+        counter(out, "dns_stale_answers_total", staleAnswers.sum());
+        counter(out, "dns_local_answers_total", localAnswers.sum());
+        counter(out, "dns_blocked_answers_total", blockedAnswers.sum());
+        counter(out, "dns_cache_entries", cache.size());
+
+        counter(out, "dns_errors_total{kind=\"malformed\"}", malformed.sum());
+        counter(out, "dns_errors_total{kind=\"servfail\"}", servfails.sum());
+        counter(out, "dns_errors_total{kind=\"dropped\"}", dropped.sum());
+        counter(out, "dns_errors_total{kind=\"upstream\"}", upstreamFailures.sum());
+        counter(out, "dns_errors_total{kind=\"send\"}", sendErrors.sum());
+
+        for (int qtype = 0; qtype < qtypes.length; qtype++) {
+            long count = qtypes[qtype].sum();
+            if (count > 0) {
+                counter(out, "dns_questions_total{qtype=\"" + typeName(qtype) + "\"}", count);
+            }
+        }
+
+        histogram(out, "dns_request_latency_seconds", requestLatency);
+        histogram(out, "dns_upstream_latency_seconds", upstreamLatency);
+        if (upstream != null) {
+            counter(out, "dns_upstream_in_flight", upstream.inFlight());
+            counter(out, "dns_upstream_hedged_total", upstream.getHedgedCount());
+            upstream.appendMetrics(out);
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, Histogram histogram) {
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    // Common type names (RFC 1035, 3596, 6891), numbers for the rest
+    static String typeName(int qtype) {
+        return switch (qtype) {
+            case 1 -> "A";
+            case 2 -> "NS";
+            case 5 -> "CNAME";
+            case 6 -> "SOA";
+            case 12 -> "PTR";
+            case 15 -> "MX";
+            case 16 -> "TXT";
+            case 28 -> "AAAA";
+            case 33 -> "SRV";
+            case 64 -> "SVCB";
+            case 65 -> "HTTPS";
+            case 255 -> "ANY";
+            case MAX_QTYPE -> "other";
+            default -> "TYPE" + qtype;
+        };
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Off-heap storage for DNSCache. Each entry is a question key and a flattened CachedResponse,
+ * kept as bytes in direct ByteBuffer slabs, so the heap holds a few flat arrays however
+ * many names are cached and the garbage collector never has to trace the entries.
+ *
+ * Slabs are filled append-only. A primitive open-addressing index (linear probing,
+ * backward-shift deletion, so no tombstones) maps a question's hash to where its entry is.
+ * Replacing or dropping an entry only unlinks it from the index; its bytes are reclaimed
+ * when its slab is cleaned.
+ *
+ * Cleaning is how this store evicts and compacts at once: when it runs out of free slabs,
+ * or of index room, the oldest full slab is walked. Live entries that were hit since the
+ * last pass get copied to the slab being filled with their counter decremented, like the
+ * second chance of the heap cache's CLOCK; expired and unpopular entries are dropped.
+ * One free slab is always held back so cleaning has somewhere to copy to.
+ *
+ * Lookups take an optimistic read of a StampedLock and retry under the read lock only if
+ * an insert or cleaning ran meanwhile, so hits do not contend with each other. Hits are counted
+ * after the read has been validated, with plain array updates; a lost update only makes an entry
+ * look a bit less popular.
+ */
+public class SlabStore {
+    private static final int SLAB_SIZE = 1 << 20; // 1 MB, room for the largest (64 KB) response with its key
+    private static final int MIN_SLABS = 3;   // One being filled, one held back for cleaning, one to clean
+    private static final int ALIGN_SHIFT = 3; // Entries start on 8-byte boundaries
+    private static final int OFFSET_BITS = 20 - ALIGN_SHIFT; // Location = slab << OFFSET_BITS | offset >> ALIGN_SHIFT
+    private static final int EMPTY = -1;      // Location of an unused index slot
+    private static final int MAX_HITS = 3;    // Cap on the hit counter, as in the heap cache
+    private static final double MAX_LOAD = 0.75; // Index slots per entry, so probe runs stay short
+
+    // Entry layout in a slab: header, key (name wire format, qtype, qclass), then the flattened response
+    private static final int ENTRY_LENGTH = 0;  // int, bytes before alignment
+    private static final int ENTRY_HASH = 4;    // int, the question's hash
+    private static final int EXPIRES_AT = 8;    // long, when the shortest TTL runs out
+    private static final int REFRESH_AT = 16;   // long, when a popular entry should be fetched again
+    private static final int KEY_LENGTH = 24;   // unsigned short, length of the name in the key
+    private static final int KEY = 26;
+
+    private final StampedLock lock = new StampedLock();
+    private final int capacity;             // Max entries
+    private final long maxStaleMillis;      // Kept past expiry this long for serve-stale
+    private final int refreshMinHits;       // Hits an entry needs before it is worth refreshing
+    private final Consumer<DNSQuestion> refresher; // Starts a refresh-ahead fetch
+    private final LongAdder expiredLookups = new LongAdder(); // Fresh lookups that found only an expired entry
+
+    // Index, one slot per array position
+    private final int[] hashes;
+    private final int[] locations;          // EMPTY or where the entry is
+    private final byte[] hits;              // Hit counter for cleaning, capped at MAX_HITS
+    private final int[] uses;               // Hits since insert; also turns the RRset, negative once a refresh started
+    private final int hashShift;            // Takes the top bits of the mixed hash as the home slot
+    private int size;
+
+    // Slabs
+    private final ByteBuffer[] slabs;       // Allocated the first time each is used
+    private final int[] slabEnds;           // Bytes used in each slab
+    private final int[] freeSlabs;          // Stack of slabs with nothing in them
+    private int freeCount;
+    private final int[] fullSlabs;          // Ring of full slabs, oldest first, the cleaning order
+    private int fullHead;
+    private int fullCount;
+    private int current = -1;               // Slab being filled, -1 if none
+
+    /**
+     * Creates an empty store. No slab memory is taken until it is needed.
+     * @param capacity The maximum number of entries.
+     * @param maxBytes The most slab memory to use; rounded up to whole slabs, at least MIN_SLABS of them.
+     * @param maxStaleMillis How long past its TTL an entry is kept for serve-stale.
+     * @param refreshMinHits How many hits make an entry popular enough to refresh.
+     * @param refresher Called once per entry that is popular and past its refresh time.
+     */
+    public SlabStore(int capacity, long maxBytes, long maxStaleMillis, int refreshMinHits, Consumer<DNSQuestion> refresher) {
+        long slabCount = Math.max(MIN_SLABS, (maxBytes + SLAB_SIZE - 1) / SLAB_SIZE);
+        if (slabCount > Integer.MAX_VALUE >>> OFFSET_BITS) {
+            throw new IllegalArgumentException("Off-heap cache too large: " + maxBytes + " bytes");
+        }
+        this.capacity = capacity;
+        this.maxStaleMillis = maxStaleMillis;
+        this.refreshMinHits = refreshMinHits;
+        this.refresher = refresher;
+
+        int slots = Integer.highestOneBit((int) Math.min(1 << 30, (long) (capacity / MAX_LOAD) + 1) * 2 - 1); // Power of two
+        this.hashShift = 32 - Integer.numberOfTrailingZeros(slots);
+        this.hashes = new int[slots];
+        this.locations = new int[slots];
+        this.hits = new byte[slots];
+        this.uses = new int[slots];
+        Arrays.fill(locations, EMPTY);
+
+        this.slabs = new ByteBuffer[(int) slabCount];
+        this.slabEnds = new int[slabs.length];
+        this.freeSlabs = new int[slabs.length];
+        this.fullSlabs = new int[slabs.length];
+        for (int i = slabs.length - 1; i >= 0; i--) {
+            freeSlabs[freeCount++] = i;
+        }
+    }
+
+    /**
+     * Serves a fresh entry straight from its slab, see CachedResponse.writeEntryTo.
+     * The read runs under an optimistic stamp and again under the read lock if a writer got in the way;
+     * the hit is only counted once a read is known to be consistent. Written out here rather than
+     * through a shared helper taking a lambda, so the hit path allocates nothing.
+     * @param question The question being asked.
+     * @param out The buffer to write into, starting at its position; the position is advanced.
+     * @param request A reader wrapped around the client's request.
+     * @param now The current time in milliseconds.
+     * @return The number of bytes written, or -1 if there is no fresh entry.
+     * @throws IOException If the response does not fit in the output buffer.
+     */
+    public int writeResponse(DNSQuestion question, ByteBuffer out, DNSPacketReader request, long now) throws IOException {
+        int base = out.position();
+        long stamp = lock.tryOptimisticRead();
+        for (boolean locked = (stamp == 0); ; locked = true) {
+            if (locked) {
+                stamp = lock.readLock();
+            }
+            int slot;
+            int location = EMPTY;
+            long expiresAt = 0;
+            long refreshAt = 0;
+            int written = -1;
+            try {
+                slot = find(question);
+                if (slot >= 0) {
+                    location = locations[slot];
+                    expiresAt = slab(location).getLong(offset(location) + EXPIRES_AT);
+                    refreshAt = slab(location).getLong(offset(location) + REFRESH_AT);
+                    if (now <= expiresAt) {
+                        written = CachedResponse.writeEntryTo(slab(location), responseAt(location), out, request, now, uses[slot]);
+                    }
+                }
+            } catch (IOException | RuntimeException e) { // Maybe a torn read of an entry being moved
+                if (locked || lock.validate(stamp)) {
+                    throw e;
+                }
+                out.position(base);
+                continue;
+            } finally {
+                if (locked) {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (locked || lock.validate(stamp)) {
+                countLookup(question, slot, location, expiresAt, refreshAt, now);
+                return written;
+            }
+            out.position(base); // Start over, a writer got in the way
+        }
+    }
+
+    /**
+     * Rebuilds an entry as a CachedResponse on the heap. Reads like writeResponse.
+     * @param question The question being asked.
+     * @param now The current time in milliseconds.
+     * @param stale Whether an entry past its TTL but inside the serve-stale window will do.
+     *              Stale lookups do not count as hits.
+     * @return The response, or null if there is none.
+     */
+    public CachedResponse get(DNSQuestion question, long now, boolean stale) {
+        long stamp = lock.tryOptimisticRead();
+        for (boolean locked = (stamp == 0); ; locked = true) {
+            if (locked) {
+                stamp = lock.readLock();
+            }
+            int slot;
+            int location = EMPTY;
+            long expiresAt = 0;
+            long refreshAt = 0;
+            CachedResponse response = null;
+            try {
+                slot = find(question);
+                if (slot >= 0) {
+                    location = locations[slot];
+                    expiresAt = slab(location).getLong(offset(location) + EXPIRES_AT);
+                    refreshAt = slab(location).getLong(offset(location) + REFRESH_AT);
+                    if (now <= expiresAt + (stale ? maxStaleMillis : 0)) {
+                        response = CachedResponse.readEntry(slab(location), responseAt(location), uses[slot]);
+                    }
+                }
+            } catch (RuntimeException e) { // Maybe a torn read of an entry being moved
+                if (locked || lock.validate(stamp)) {
+                    throw e;
+                }
+                continue;
+            } finally {
+                if (locked) {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (locked || lock.validate(stamp)) {
+                if (!stale) {
+                    countLookup(question, slot, location, expiresAt, refreshAt, now);
+                }
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Counts a fresh lookup, once the read that found the entry is known to be consistent: a hit bumps the
+     * entry's counters and starts a refresh if one is due, an expired entry counts as an expired lookup.
+     * The counters are updated without the lock, so the entry is checked to still be in the slot it was
+     * found in; a writer racing past that check only costs a miscounted hit.
+     * @param slot The index slot the entry was found in, or -1 if there was none.
+     * @param location Where the entry was.
+     * @param expiresAt When the entry expires, as read with it.
+     * @param refreshAt When the entry is due for a refresh, as read with it.
+     */
+    private void countLookup(DNSQuestion question, int slot, int location, long expiresAt, long refreshAt, long now) {
+        if (slot < 0) {
+            return;
+        }
+        if (now > expiresAt) {
+            expiredLookups.increment();
+            return; // Dropped when its slab is cleaned
+        }
+        if (locations[slot] != location) {
+            return; // Replaced, moved or dropped since
+        }
+
+        if (hits[slot] < MAX_HITS) {
+            hits[slot]++;
+        }
+        if (++uses[slot] >= refreshMinHits && now >= refreshAt) {
+            uses[slot] = Integer.MIN_VALUE; // Once per entry, until a fresh one replaces it
+            refresher.accept(question);
+        }
+    }
+
+    /**
+     * Lets a popular entry be refreshed again once its refresh is over, if the refresh did not
+     * replace it (it failed, or the reply was not cacheable). A replacement starts fresh anyway.
+     * @param question The question whose refresh is over.
+     */
+    public void refreshDone(DNSQuestion question) {
+        long stamp = lock.readLock();
+        try {
+            int slot = find(question);
+            if (slot >= 0 && uses[slot] < 0) {
+                uses[slot] = 0;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Stores the response for a question, replacing any earlier one, whose popularity carries over.
+     * Cleans the oldest slabs first if there is no room.
+     * @param question The question being stored.
+     * @param response The encoded response.
+     * @param refreshAt When the entry should be refreshed if it is popular, in milliseconds since the epoch.
+     * @throws IllegalArgumentException If the entry does not fit in a slab.
+     */
+    public void put(DNSQuestion question, CachedResponse response, long refreshAt) {
+        int keyLength = question.getName().wireLength();
+        int length = KEY + keyLength + 4 + response.entrySize();
+        if (aligned(length) > SLAB_SIZE) {
+            throw new IllegalArgumentException("Response too large for the off-heap cache: " + length + " bytes");
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            // Make room first, so an entry that does not fit leaves the one it would replace in place.
+            // Cleaning may drop or move that one, so it is looked up again each time.
+            while (size >= capacity && find(question) < 0 && clean()) {
+                // Keep cleaning until there is index room; a replacement reuses its entry's
+            }
+            while (!hasRoom(length, false) && clean()) {
+                // Keep cleaning until there is slab room
+            }
+            int previous = find(question);
+            if ((size >= capacity && previous < 0) || !hasRoom(length, false)) {
+                return; // Nothing left to clean, which only happens if one slab cannot hold `capacity` entries
+            }
+            byte previousHits = 0;
+            if (previous >= 0) {
+                previousHits = hits[previous];
+                remove(previous);
+            }
+
+            int location = append(length);
+            ByteBuffer slab = slab(location);
+            int at = offset(location);
+            slab.putInt(at + ENTRY_LENGTH, length);
+            slab.putInt(at + ENTRY_HASH, question.hashCode());
+            slab.putLong(at + EXPIRES_AT, response.getExpirationTime());
+            slab.putLong(at + REFRESH_AT, refreshAt);
+            slab.putShort(at + KEY_LENGTH, (short) keyLength);
+            question.getName().putWire(slab, at + KEY);
+            slab.putShort(at + KEY + keyLength, (short) question.getQtype());
+            slab.putShort(at + KEY + keyLength + 2, (short) question.getQclass());
+            response.writeEntry(slab, at + KEY + keyLength + 4);
+
+            int slot = insertSlot(question.hashCode());
+            hashes[slot] = question.hashCode();
+            locations[slot] = location;
+            hits[slot] = previousHits;
+            uses[slot] = 0;
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Receives each entry during forEach.
+     */
+    public interface Visitor {
+        void visit(DNSQuestion question, CachedResponse response, long expiresAt) throws IOException;
+    }
+
+    /**
+     * Visits every entry that has not expired, rebuilt on the heap one at a time.
+     * The read lock is taken for a batch of index slots at a time so inserts are not held up for long;
+     * entries changed meanwhile may or may not be seen.
+     * @param visitor Gets each entry.
+     * @throws IOException If the visitor fails; the walk stops there.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        final int batch = 1024;
+        DNSQuestion[] questions = new DNSQuestion[batch];
+        CachedResponse[] responses = new CachedResponse[batch];
+        long[] expiries = new long[batch];
+
+        for (int start = 0; start < locations.length; start += batch) {
+            long now = System.currentTimeMillis();
+            int count = 0;
+            long stamp = lock.readLock();
+            try {
+                for (int slot = start; slot < Math.min(start + batch, locations.length); slot++) {
+                    int location = locations[slot];
+                    if (location == EMPTY) {
+                        continue;
+                    }
+                    ByteBuffer slab = slab(location);
+                    int at = offset(location);
+                    long expiresAt = slab.getLong(at + EXPIRES_AT);
+                    if (now > expiresAt) {
+                        continue;
+                    }
+                    questions[count] = readKey(slab, at);
+                    responses[count] = CachedResponse.readEntry(slab, responseAt(location), 0);
+                    expiries[count++] = expiresAt;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            // Visit outside the lock, the visitor may be slow (e.g. writing a file)
+            for (int i = 0; i < count; i++) {
+                visitor.visit(questions[i], responses[i], expiries[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of entries, including expired ones not cleaned yet.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return How many fresh lookups found only an expired entry.
+     */
+    public long getExpiredCount() {
+        return expiredLookups.sum();
+    }
+
+    /**
+     * @return The slab memory allocated so far, in bytes.
+     */
+    public long allocatedBytes() {
+        long stamp = lock.readLock();
+        try {
+            long total = 0;
+            for (ByteBuffer slab : slabs) {
+                total += (slab != null) ? slab.capacity() : 0;
+            }
+            return total;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ---- Index ----
+
+    // Fibonacci hashing: similar hashes land far apart, so probe runs stay short
+    private int home(int hash) {
+        return (hash * 0x9E3779B9) >>> hashShift;
+    }
+
+    private int find(DNSQuestion question) {
+        int hash = question.hashCode();
+        int mask = locations.length - 1;
+        for (int slot = home(hash); locations[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keyMatches(locations[slot], question)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insertSlot(int hash) {
+        int mask = locations.length - 1;
+        int slot = home(hash);
+        while (locations[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean keyMatches(int location, DNSQuestion question) {
+        ByteBuffer slab = slab(location);
+        int at = offset(location);
+        int keyLength = slab.getShort(at + KEY_LENGTH) & 0xFFFF;
+        return question.getName().equalsWire(slab, at + KEY, keyLength)
+                && (slab.getShort(at + KEY + keyLength) & 0xFFFF) == question.getQtype()
+                && (slab.getShort(at + KEY + keyLength + 2) & 0xFFFF) == question.getQclass();
+    }
+
+    private DNSQuestion readKey(ByteBuffer slab, int at) throws IOException {
+        int keyLength = slab.getShort(at + KEY_LENGTH) & 0xFFFF;
+        byte[] wire = new byte[keyLength];
+        slab.get(at + KEY, wire);
+        return new DNSQuestion(DNSName.fromWire(wire),
+                slab.getShort(at + KEY + keyLength) & 0xFFFF, slab.getShort(at + KEY + keyLength + 2) & 0xFFFF);
+    }
+
+    /**
+     * Empties a slot, shifting later entries of the same probe run back into the gap.
+     */
+    private void remove(int slot) {
+        int mask = locations.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; locations[next] != EMPTY; next = (next + 1) & mask) {
+            // Move the entry back if its home is not between the hole and where it is now
+            if (((next - home(hashes[next])) & mask) >= ((next - hole) & mask)) {
+                hashes[hole] = hashes[next];
+                locations[hole] = locations[next];
+                hits[hole] = hits[next];
+                uses[hole] = uses[next];
+                hole = next;
+            }
+        }
+        locations[hole] = EMPTY;
+        size--;
+    }
+
+    // ---- Slabs ----
+
+    private ByteBuffer slab(int location) {
+        return slabs[location >>> OFFSET_BITS];
+    }
+
+    private static int offset(int location) {
+        return (location & ((1 << OFFSET_BITS) - 1)) << ALIGN_SHIFT;
+    }
+
+    private int responseAt(int location) {
+        int at = offset(location);
+        return at + KEY + (slab(location).getShort(at + KEY_LENGTH) & 0xFFFF) + 4;
+    }
+
+    private static int aligned(int length) {
+        return (length + (1 << ALIGN_SHIFT) - 1) & -(1 << ALIGN_SHIFT);
+    }
+
+    /**
+     * Checks if an entry fits in the slab being filled or a free one.
+     * Only cleaning may take the last free slab.
+     */
+    private boolean hasRoom(int length, boolean cleaning) {
+        return (current >= 0 && slabEnds[current] + aligned(length) <= SLAB_SIZE) || freeCount > (cleaning ? 0 : 1);
+    }
+
+    /**
+     * Reserves room for an entry, moving on to a free slab if the current one is full.
+     * @return The entry's location. The caller has checked there is room.
+     */
+    private int append(int length) {
+        if (current < 0 || slabEnds[current] + aligned(length) > SLAB_SIZE) {
+            if (current >= 0) {
+                fullSlabs[(fullHead + fullCount++) % fullSlabs.length] = current;
+            }
+            current = freeSlabs[--freeCount];
+            if (slabs[current] == null) {
+                slabs[current] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            slabEnds[current] = 0;
+        }
+        int at = slabEnds[current];
+        slabEnds[current] += aligned(length);
+        return current << OFFSET_BITS | at >>> ALIGN_SHIFT;
+    }
+
+    /**
+     * Cleans the oldest full slab: live entries that were hit since the last pass move to the
+     * slab being filled, the rest are dropped, and the slab goes back on the free list.
+     * If no slab is full yet, the one being filled is cleaned instead.
+     * @return false if there was nothing to clean.
+     */
+    private boolean clean() {
+        if (fullCount == 0) {
+            if (current < 0 || slabEnds[current] == 0) {
+                return false;
+            }
+            fullSlabs[(fullHead + fullCount++) % fullSlabs.length] = current;
+            current = -1;
+        }
+        int victim = fullSlabs[fullHead];
+        fullHead = (fullHead + 1) % fullSlabs.length;
+        fullCount--;
+
+        ByteBuffer slab = slabs[victim];
+        long now = System.currentTimeMillis();
+        for (int at = 0; at < slabEnds[victim]; ) {
+            int length = slab.getInt(at + ENTRY_LENGTH);
+            int location = victim << OFFSET_BITS | at >>> ALIGN_SHIFT;
+            int slot = slotOf(slab.getInt(at + ENTRY_HASH), location);
+            if (slot >= 0) { // Still live, not replaced or dropped since
+                if (now > slab.getLong(at + EXPIRES_AT) + maxStaleMillis || hits[slot] == 0 || !hasRoom(length, true)) {
+                    remove(slot);
+                } else {
+                    hits[slot]--;
+                    int moved = append(length);
+                    slab(moved).put(offset(moved), slab, at, length);
+                    locations[slot] = moved;
+                }
+            }
+            at += aligned(length);
+        }
+
+        slabEnds[victim] = 0;
+        freeSlabs[freeCount++] = victim;
+        return true;
+    }
+
+    /**
+     * Finds the index slot pointing at a location, or -1 if none does.
+     */
+    private int slotOf(int hash, int location) {
+        int mask = locations.length - 1;
+        for (int slot = home(hash); locations[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (locations[slot] == location) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A multiplexed, asynchronous client for one upstream DNS resolver.
+ * A small pool of long-lived non-blocking DatagramChannels is shared by every query.
+ * Each outgoing query gets a fresh random transaction ID, and replies are matched back to
+ * the waiting future through a pending-request table keyed by that ID. The channels keep
+ * their source ports for life, so the ID is the only thing an off-path attacker has to guess:
+ * it comes from a SecureRandom, and a reply whose question differs from the query is dropped.
+ * Lost packets are retried with exponential backoff.
+ * A reply with the TC bit set is thrown away and the query is asked again over TCP.
+ */
+public class UpstreamClient implements Closeable {
+    private static final int MAX_RESPONSE_SIZE = DNSMessage.MAX_MESSAGE_SIZE; // EDNS0 allows UDP replies up to 64 KB
+
+    private final InetSocketAddress upstream;
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final Thread readerThread;
+    private final ScheduledExecutorService timer;
+    private final long timeoutMillis; // Timeout for the first attempt, doubled on every retry
+    private final int maxRetries;
+
+    private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>(); // Rewritten ID -> waiting query
+    private final SecureRandom random = new SecureRandom(); // Source of rewritten IDs, unpredictable to spoofers
+    private final AtomicInteger nextChannel = new AtomicInteger(); // Round-robin over the channel pool
+
+    private volatile boolean closed;
+
+    // A query that was sent upstream and is waiting for its reply
+    private static final class Pending {
+        final byte[] packet;        // Query bytes with the rewritten ID
+        final int originalId;       // ID the caller used, restored on the reply
+        final int questionEnd;      // Offset just past the question section, which the reply must echo
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        int attempt;                // Only touched by the timer thread after the first send
+
+        Pending(byte[] packet, int originalId, int questionEnd) {
+            this.packet = packet;
+            this.originalId = originalId;
+            this.questionEnd = questionEnd;
+        }
+    }
+
+    /**
+     * Opens the channel pool and starts the reader thread.
+     * @param upstream The address of the upstream resolver.
+     * @param channelCount How many UDP channels to spread queries over.
+     * @param timeoutMillis How long to wait for the first reply before retrying.
+     * @param maxRetries How many times to resend a query before giving up.
+     */
+    public UpstreamClient(InetSocketAddress upstream, int channelCount, long timeoutMillis, int maxRetries) throws IOException {
+        this.upstream = upstream;
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = maxRetries;
+        this.selector = Selector.open();
+
+        this.channels = new DatagramChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].configureBlocking(false);
+            channels[i].connect(upstream); // Only accept replies from the upstream
+            channels[i].register(selector, SelectionKey.OP_READ);
+        }
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-upstream-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.readerThread = new Thread(this::readLoop, "dns-upstream-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Sends a query upstream without blocking.
+     * @param requestData The DNS query bytes; not modified.
+     * @return A future completed with the reply bytes (carrying the caller's original ID),
+     *         or completed exceptionally if every attempt timed out.
+     */
+    public CompletableFuture<byte[]> query(byte[] requestData) {
+        if (requestData.length < 12) {
+            return CompletableFuture.failedFuture(new IOException("DNS query shorter than a header"));
+        }
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Upstream client is closed"));
+        }
+
+        int questionEnd = questionEnd(requestData);
+        if (questionEnd < 0) {
+            return CompletableFuture.failedFuture(new IOException("Malformed question section"));
+        }
+
+        byte[] packet = requestData.clone();
+        Pending query = new Pending(packet, ((packet[0] & 0xFF) << 8) | (packet[1] & 0xFF), questionEnd);
+
+        int id = registerPending(query);
+        if (id < 0) {
+            return CompletableFuture.failedFuture(new IOException("Too many upstream queries in flight"));
+        }
+        packet[0] = (byte) (id >> 8);
+        packet[1] = (byte) id;
+
+        send(query);
+        scheduleTimeout(id, query, 0);
+        return query.future;
+    }
+
+    /**
+     * @return The number of queries currently waiting for a reply.
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the reader thread and fails every query still waiting.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        timer.shutdownNow();
+        selector.close();
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        for (Pending query : pending.values()) {
+            query.future.completeExceptionally(new IOException("Upstream client closed"));
+        }
+        pending.clear();
+    }
+
+    /**
+     * Picks a free random 16-bit transaction ID and records the query under it.
+     * @return The chosen ID, or -1 if (nearly) all 65536 IDs are in use.
+     */
+    private int registerPending(Pending query) {
+        for (int tries = 0; tries < 0x10000; tries++) {
+            int id = random.nextInt(0x10000);
+            if (pending.putIfAbsent(id, query) == null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of a message's question section.
+     * @param packet A DNS message.
+     * @return The offset just past the last question, or -1 if the section runs past the end of the message.
+     */
+    private static int questionEnd(byte[] packet) {
+        int count = ((packet[4] & 0xFF) << 8) | (packet[5] & 0xFF);
+        int offset = DNSPacketReader.HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            while (true) {
+                if (offset >= packet.length) {
+                    return -1;
+                }
+                int length = packet[offset] & 0xFF;
+                if ((length & 0xC0) != 0) { // A pointer ends the name
+                    offset += 2;
+                    break;
+                }
+                offset += 1 + length;
+                if (length == 0) {
+                    break;
+                }
+            }
+            offset += 4; // QTYPE and QCLASS
+        }
+        return (offset <= packet.length) ? offset : -1;
+    }
+
+    /**
+     * Checks that a reply answers the question that was asked: same question count, and the same
+     * QNAME (ignoring ASCII case), QTYPE and QCLASS, byte for byte.
+     */
+    private static boolean sameQuestion(Pending query, ByteBuffer reply) {
+        if (reply.remaining() < query.questionEnd || reply.get(4) != query.packet[4] || reply.get(5) != query.packet[5]) {
+            return false;
+        }
+        for (int i = DNSPacketReader.HEADER_SIZE; i < query.questionEnd; i++) {
+            if (toLower(reply.get(i)) != toLower(query.packet[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Writes a query to the next channel in the pool. A full socket buffer is treated
+     * like a lost packet, the retry timer will send it again.
+     */
+    private void send(Pending query) {
+        DatagramChannel channel = channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+        try {
+            channel.write(ByteBuffer.wrap(query.packet));
+        } catch (IOException e) {
+            System.err.println("Failed to send query to " + upstream + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Arms the timeout for one attempt. When it fires and the query is still pending,
+     * it is resent with a doubled timeout or failed once the retries run out.
+     */
+    private void scheduleTimeout(int id, Pending query, int attempt) {
+        long delay = timeoutMillis << attempt; // Exponential backoff
+        timer.schedule(() -> {
+            if (pending.get(id) != query || query.attempt != attempt) {
+                return; // Already answered
+            }
+            if (attempt >= maxRetries) {
+                if (pending.remove(id, query)) {
+                    query.future.completeExceptionally(new SocketTimeoutException("No reply from " + upstream + " after " + (attempt + 1) + " attempts"));
+                }
+                return;
+            }
+            query.attempt = attempt + 1;
+            send(query);
+            scheduleTimeout(id, query, attempt + 1);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reader thread: waits for replies on every channel and completes the matching futures.
+     */
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RESPONSE_SIZE);
+
+        try {
+            while (!closed) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+
+                    // Drain everything that is waiting on this channel
+                    while (true) {
+                        buffer.clear();
+                        try {
+                            if (channel.receive(buffer) == null) {
+                                break;
+                            }
+                        } catch (IOException e) { // e.g. ICMP port unreachable, retries will cover it
+                            break;
+                        }
+                        buffer.flip();
+                        completeQuery(buffer);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                System.err.println("Upstream reader stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Matches one reply to its pending query, restores the caller's ID and completes the future.
+     */
+    private void completeQuery(ByteBuffer reply) {
+        if (reply.remaining() < 12) {
+            return; // Not even a header, ignore it
+        }
+
+        int id = reply.getShort(0) & 0xFFFF;
+        Pending query = pending.get(id);
+        if (query == null) {
+            return; // Late duplicate of a reply we already handled
+        }
+        if (!sameQuestion(query, reply) || !pending.remove(id, query)) {
+            return; // A guessed ID with the wrong question is spoofed; keep waiting for the real reply
+        }
+
+        // Truncated: the full answer only fits over TCP
+        if ((reply.getShort(2) & DNSHeader.FLAG_TC) != 0) {
+            Thread.ofVirtual().name("dns-upstream-tcp").start(() -> queryOverTcp(query));
+            return;
+        }
+
+        byte[] responseData = new byte[reply.remaining()];
+        reply.get(responseData);
+        responseData[0] = (byte) (query.originalId >> 8);
+        responseData[1] = (byte) query.originalId;
+        query.future.complete(responseData);
+    }
+
+    /**
+     * Asks a query again over a fresh TCP connection, with the 2-byte length prefix of RFC 1035 section 4.2.2.
+     * Runs on its own virtual thread, so the blocking socket only holds up this query.
+     */
+    private void queryOverTcp(Pending query) {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMillis << maxRetries); // As long as the last UDP attempt
+        try (Socket socket = new Socket()) {
+            socket.connect(upstream, timeout);
+            socket.setSoTimeout(timeout);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.packet.length);
+            out.write(query.packet);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] responseData = new byte[in.readUnsignedShort()];
+            in.readFully(responseData);
+            if (responseData.length < 12) {
+                throw new IOException("TCP reply shorter than a header");
+            }
+            responseData[0] = (byte) (query.originalId >> 8);
+            responseData[1] = (byte) query.originalId;
+            query.future.complete(responseData);
+        } catch (IOException e) {
+            query.future.completeExceptionally(new IOException("TCP retry to " + upstream + " failed: " + e.getMessage(), e));
+        }
+    }
+}
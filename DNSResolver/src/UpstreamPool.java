@@ -0,0 +1,281 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spreads upstream queries over several resolvers, preferring the fastest healthy one.
+ * Every resolver keeps an EWMA of its round-trip time and of its failure rate.
+ * A query goes to the best resolver first; if no reply has come back by a percentile
+ * of that resolver's recent latency, a hedged copy goes to the next best and the first
+ * reply wins. If a resolver fails outright, the query fails over to the next one.
+ * Every so often the runner-up goes first instead, so its numbers stay current.
+ */
+public class UpstreamPool implements Closeable {
+    private static final double RTT_WEIGHT = 0.2;       // EWMA weight of each new RTT sample
+    private static final double FAILURE_WEIGHT = 0.1;   // EWMA weight of each success/failure
+    private static final double UNHEALTHY_FAILURE_RATE = 0.5; // Above this a resolver is skipped
+    private static final long PROBE_INTERVAL_MILLIS = 5000;   // An unhealthy resolver gets tried again after this
+    private static final int LATENCY_SAMPLES = 64;      // Recent RTTs kept for the hedge percentile
+    private static final int MIN_LATENCY_SAMPLES = 8;   // Fewer than this and the hedge waits the full timeout
+    private static final long MIN_HEDGE_DELAY_MILLIS = 1;
+    private static final int PROBE_EVERY = 64;          // One query in this many tries the runner-up first
+
+    private final Upstream[] upstreams;
+    private final long timeoutMillis;      // Hedge delay before there are enough samples, and its upper bound
+    private final double hedgePercentile;  // Latency percentile (0-1) after which to hedge, 0 to never hedge
+    private final long probeIntervalMillis; // An unhealthy resolver gets tried again after this
+    private final ScheduledExecutorService timer;
+    private final LongAdder hedged = new LongAdder(); // Queries that sent a hedged copy
+    private final AtomicInteger queryCount = new AtomicInteger(); // Picks which queries probe
+
+    // One resolver and what has been seen of it. Updates only happen on upstream replies, off the hit path.
+    private static final class Upstream {
+        final UpstreamClient client;
+        final InetSocketAddress address;
+        final int index;           // Position in the pool, for the ranking snapshot
+        final int[] latencies = new int[LATENCY_SAMPLES]; // Ring of recent RTTs in milliseconds
+        int latencyCount;          // Samples taken so far
+        double ewmaRttMillis;      // 0 until the first reply, so a new resolver is tried early
+        double failureRate;        // EWMA of 1 per failure and 0 per success
+        long lastFailureAt;
+        int cachedPercentileAt = -1; // latencyCount when cachedPercentile was worked out
+        long cachedPercentile;
+
+        Upstream(UpstreamClient client, InetSocketAddress address, int index) {
+            this.client = client;
+            this.address = address;
+            this.index = index;
+        }
+
+        synchronized void recordSuccess(long rttMillis) {
+            ewmaRttMillis = (latencyCount == 0) ? rttMillis : ewmaRttMillis + RTT_WEIGHT * (rttMillis - ewmaRttMillis);
+            failureRate -= FAILURE_WEIGHT * failureRate;
+            latencies[latencyCount++ % LATENCY_SAMPLES] = (int) Math.min(rttMillis, Integer.MAX_VALUE);
+        }
+
+        synchronized void recordFailure() {
+            failureRate += FAILURE_WEIGHT * (1 - failureRate);
+            lastFailureAt = System.currentTimeMillis();
+        }
+
+        synchronized boolean isHealthy(long now, long probeIntervalMillis) {
+            return failureRate < UNHEALTHY_FAILURE_RATE || now - lastFailureAt > probeIntervalMillis;
+        }
+
+        synchronized double rtt() {
+            return ewmaRttMillis;
+        }
+
+        // The given percentile of recent RTTs, or -1 if there are too few samples
+        synchronized long latencyPercentile(double percentile) {
+            if (latencyCount < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            if (cachedPercentileAt != latencyCount) {
+                int[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+                Arrays.sort(sorted);
+                cachedPercentile = sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))];
+                cachedPercentileAt = latencyCount;
+            }
+            return cachedPercentile;
+        }
+    }
+
+    // One query working its way through the ranked resolvers
+    private final class PendingQuery {
+        final byte[] request;
+        final Upstream[] ranked;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        final AtomicInteger next = new AtomicInteger();    // Index of the next resolver to try
+        final AtomicInteger running = new AtomicInteger(); // Attempts still waiting for a reply
+
+        PendingQuery(byte[] request, Upstream[] ranked) {
+            this.request = request;
+            this.ranked = ranked;
+        }
+
+        /**
+         * Sends the query to the next resolver in the ranking.
+         * @return false if every resolver has been tried already.
+         */
+        boolean sendNext() {
+            int index = next.getAndIncrement();
+            if (index >= ranked.length) {
+                return false;
+            }
+            Upstream upstream = ranked[index];
+            running.incrementAndGet();
+            long start = System.nanoTime();
+
+            upstream.client.query(request).whenComplete((reply, error) -> {
+                running.decrementAndGet();
+                if (error == null) {
+                    upstream.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    result.complete(reply); // The first reply wins, later ones are ignored
+                    return;
+                }
+                upstream.recordFailure();
+
+                // Fail over if nothing else is still on its way
+                if (running.get() == 0 && !result.isDone() && !sendNext()) {
+                    result.completeExceptionally(error);
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * Opens a client for each resolver.
+     * @param addresses The upstream resolvers, in order of preference before anything is measured.
+     * @param channelCount How many UDP channels each client spreads queries over.
+     * @param timeoutMillis How long each client waits before retrying, also the longest hedge delay.
+     * @param maxRetries How many times each client resends a query before giving up.
+     * @param hedgePercentile Latency percentile (0-1) after which a hedged copy is sent, 0 to never hedge.
+     */
+    public UpstreamPool(List<InetSocketAddress> addresses, int channelCount, long timeoutMillis, int maxRetries,
+                        double hedgePercentile) throws IOException {
+        this(addresses, channelCount, timeoutMillis, maxRetries, hedgePercentile, PROBE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens a client for each resolver, with a different wait before an unhealthy resolver is tried again,
+     * so tests do not have to sit through the default one.
+     * @param probeIntervalMillis How long an unhealthy resolver is skipped after its last failure.
+     * @see #UpstreamPool(List, int, long, int, double) for the other parameters.
+     */
+    UpstreamPool(List<InetSocketAddress> addresses, int channelCount, long timeoutMillis, int maxRetries,
+                 double hedgePercentile, long probeIntervalMillis) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream resolver is needed");
+        }
+        if (hedgePercentile < 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("Hedge percentile must be in [0, 1]: " + hedgePercentile);
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.hedgePercentile = hedgePercentile;
+        this.probeIntervalMillis = probeIntervalMillis;
+
+        this.upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            InetSocketAddress address = addresses.get(i);
+            upstreams[i] = new Upstream(new UpstreamClient(address, channelCount, timeoutMillis, maxRetries), address, i);
+        }
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-upstream-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a query to the best resolver, hedging to the next best if it is slow.
+     * @param requestData The DNS query bytes; not modified.
+     * @return A future completed with the first reply, or completed exceptionally if every resolver failed.
+     */
+    public CompletableFuture<byte[]> query(byte[] requestData) {
+        PendingQuery query = new PendingQuery(requestData, rank());
+        query.sendNext();
+
+        if (hedgePercentile > 0 && query.ranked.length > 1) {
+            long delay = hedgeDelayMillis(query.ranked[0]);
+            timer.schedule(() -> {
+                if (!query.result.isDone() && query.sendNext()) {
+                    hedged.increment();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        return query.result;
+    }
+
+    /**
+     * Orders the resolvers: healthy ones first, then by smoothed RTT.
+     */
+    private Upstream[] rank() {
+        if (upstreams.length == 1) {
+            return upstreams;
+        }
+        long now = System.currentTimeMillis();
+        Upstream[] ranked = upstreams.clone();
+        boolean[] healthy = new boolean[ranked.length];
+        double[] rtt = new double[ranked.length];
+        for (int i = 0; i < ranked.length; i++) { // Snapshot first, the stats move while sorting
+            healthy[i] = upstreams[i].isHealthy(now, probeIntervalMillis);
+            rtt[i] = upstreams[i].rtt();
+        }
+        Arrays.sort(ranked, Comparator.comparing((Upstream upstream) -> !healthy[upstream.index])
+                .thenComparingDouble(upstream -> rtt[upstream.index]));
+
+        // Probe: let the runner-up go first now and then, the hedge still covers the query if it is slow
+        if (queryCount.incrementAndGet() % PROBE_EVERY == 0 && healthy[ranked[1].index]) {
+            Upstream best = ranked[0];
+            ranked[0] = ranked[1];
+            ranked[1] = best;
+        }
+        return ranked;
+    }
+
+    /**
+     * How long to wait on a resolver before hedging: the configured percentile of its recent latency.
+     */
+    private long hedgeDelayMillis(Upstream upstream) {
+        long percentile = upstream.latencyPercentile(hedgePercentile);
+        if (percentile < 0) {
+            return timeoutMillis; // Not enough samples yet, hedge when the first retry would go out
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(timeoutMillis, percentile));
+    }
+
+    /**
+     * @return How many queries sent a hedged copy to a second resolver.
+     */
+    public long getHedgedCount() {
+        return hedged.sum();
+    }
+
+    /**
+     * @return The number of queries currently waiting for a reply, over every resolver.
+     */
+    public int inFlight() {
+        int total = 0;
+        for (Upstream upstream : upstreams) {
+            total += upstream.client.inFlight();
+        }
+        return total;
+    }
+
+    /**
+     * Writes every resolver's smoothed RTT and failure rate as metric lines (Prometheus text format).
+     * @param out Where to append them.
+     */
+    public void appendMetrics(StringBuilder out) {
+        for (Upstream upstream : upstreams) {
+            String label = "{upstream=\"" + upstream.address.getHostString() + ":" + upstream.address.getPort() + "\"}";
+            synchronized (upstream) {
+                out.append("dns_upstream_rtt_seconds").append(label).append(' ').append(upstream.ewmaRttMillis / 1000).append('\n');
+                out.append("dns_upstream_failure_rate").append(label).append(' ').append(upstream.failureRate).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Closes every client, failing the queries still waiting.
+     */
+    @Override
+    public void close() throws IOException {
+        timer.shutdownNow();
+        for (Upstream upstream : upstreams) {
+            upstream.client.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.Arrays;
+
+/**
+ * Draws ranks 0 to n-1 by Zipf popularity: rank r comes up in proportion to 1/(r+1)^exponent,
+ * so a few names get most of the queries, as they do at a real resolver.
+ * Used by LoadGenerator and the cache benchmarks.
+ */
+public final class Zipf {
+    private final double[] cdf; // Cumulative probability of each rank
+
+    /**
+     * @param n How many ranks there are.
+     * @param exponent How steeply popularity falls off with rank; 1.0 is typical of DNS traffic.
+     */
+    public Zipf(int n, double exponent) {
+        cdf = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cdf[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cdf[rank] /= sum;
+        }
+    }
+
+    /**
+     * @param uniform A random number between 0 and 1, from whatever random source the caller uses.
+     * @return The rank it picks.
+     */
+    public int sample(double uniform) {
+        return sample(cdf, uniform);
+    }
+
+    /**
+     * Picks from any cumulative distribution, e.g. a weighted mix.
+     * @param cdf Cumulative weights, ending at 1.
+     * @param uniform A random number between 0 and 1.
+     * @return The index of the first entry at or above the number.
+     */
+    public static int sample(double[] cdf, double uniform) {
+        int index = Arrays.binarySearch(cdf, uniform);
+        return (index >= 0) ? index : Math.min(-index - 1, cdf.length - 1);
+    }
+}
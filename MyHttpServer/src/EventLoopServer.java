@@ -0,0 +1,474 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves connections from a few selector threads instead of a thread per connection (see HTTPServer).
+ * The acceptor hands each new connection to one of N event loops in turn; a loop owns its connections
+ * for their whole life, so nothing about a connection is shared between threads.
+ *
+ * A loop reads whatever a socket has into a pooled buffer and parses requests once their headers are
+ * complete (HTTPRequest.parse), so a slow client never blocks anyone. A connection only holds a buffer
+ * while it has a partial request or a response in progress: a kept-alive connection waiting for its
+ * next request costs a selection key and a small object, which is what lets tens of thousands of them
+ * sit on a handful of threads. Responses are written as far as the socket takes them; the rest waits
+ * for write interest, and the connection stops reading until it is written, which also keeps pipelined
+ * responses in order. Headers and in-memory bodies (mapped files, see FileCache) queued back to back go
+ * out in one gathering write; larger files are sent with transferTo, so no body is copied through a buffer.
+ *
+ * Keep-alive, timeouts, the connection cap and graceful shutdown behave as in HTTPServer.
+ */
+public class EventLoopServer {
+    private static final int BUFFER_SIZE = 16 * 1024; // Pooled read buffer size, also the largest request head accepted
+    private static final int MAX_POOLED = 256;        // Free buffers a loop keeps for reuse
+    private static final int MAX_QUEUED = 32;         // Pending response pieces before a connection stops parsing pipelined requests
+    private static final long SWEEP_INTERVAL_MILLIS = 1_000; // How often a loop looks for timed-out connections
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private final Semaphore connectionSlots; // Bounds the connections being served
+    private final FileCache fileCache;       // Small files mapped once for every loop
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private volatile boolean forceClose; // Shutdown timed out: loops close whatever they still have
+
+    /**
+     * Creates a server with the given settings.
+     * @param config The server settings.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public EventLoopServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.connectionSlots = new Semaphore(config.maxConnections);
+        this.fileCache = new FileCache(config.mappedFileMaxBytes, config.mappedCacheBytes);
+        this.loops = new EventLoop[Math.max(1, config.eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Binds the port, starts the event loops and runs the accept loop until shutdown() is called.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port), config.backlog);
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("Server started on port " + config.port + " (" + loops.length
+                + " event loops, up to " + config.maxConnections + " connections)");
+
+        int next = 0;
+        while (running) {
+            try {
+                connectionSlots.acquire(); // Wait for a free slot before taking another connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept(); // Blocking: the acceptor has a thread to itself
+            } catch (IOException e) {
+                connectionSlots.release();
+                if (running) {
+                    System.err.println("Error accepting client: " + e.getMessage());
+                    continue;
+                }
+                break; // Closed by shutdown()
+            }
+
+            loops[next].add(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Stops accepting and drains: connections waiting between requests are closed, responses in progress
+     * get up to the shutdown timeout to finish, then their connections are closed.
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverChannel);
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup(); // Close idle connections now rather than at the next sweep
+        }
+
+        long deadline = System.currentTimeMillis() + config.shutdownTimeoutMillis;
+        try {
+            for (EventLoop loop : loops) {
+                loop.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            forceClose = true;
+            for (EventLoop loop : loops) {
+                if (loop.thread.isAlive()) {
+                    System.err.println("Closing " + loop.connections + " connections still open after the shutdown timeout");
+                    loop.selector.wakeup();
+                    loop.thread.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Server stopped");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One selector thread and the connections assigned to it.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>(); // Handed over by the acceptor
+        private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>(); // Free buffers, only touched by this loop
+        private volatile int connections; // Open connections, written by this loop only
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "http-loop-" + index);
+        }
+
+        /**
+         * Hands a newly accepted connection to this loop. Called from the acceptor thread.
+         */
+        void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                } catch (IOException e) {
+                    System.err.println("Selector failed: " + e.getMessage());
+                    break;
+                }
+                registerAccepted();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("I/O Error: " + e.getMessage());
+                        connection.close();
+                    } catch (RuntimeException e) { // Only this connection is lost, not the loop and every other one on it
+                        System.err.println("Error handling client: " + e);
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (!running) {
+                    for (SelectionKey key : selector.keys()) { // Nothing in flight on idle ones, no need to wait for them
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && (forceClose || connection.isIdle())) {
+                            connection.close();
+                        }
+                    }
+                    if (connections == 0) {
+                        break;
+                    }
+                } else if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL_MILLIS;
+                }
+            }
+            closeQuietly(selector);
+        }
+
+        private void registerAccepted() {
+            for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Responses are written whole, don't hold back the tail
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connections++;
+                } catch (IOException e) {
+                    System.err.println("Error handling client: " + e.getMessage());
+                    closeQuietly(channel);
+                    connectionSlots.release();
+                }
+            }
+        }
+
+        /**
+         * Closes connections that have waited longer than their timeout: the keep-alive timeout between
+         * requests, the read timeout while a request arrives or a response is stuck behind a client that
+         * stopped reading.
+         */
+        private void sweep(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                long timeout = connection.isIdle() && connection.served > 0
+                        ? config.keepAliveTimeoutMillis : config.readTimeoutMillis;
+                if (now - connection.lastActive >= timeout) {
+                    connection.close();
+                }
+            }
+        }
+
+        ByteBuffer borrow() {
+            ByteBuffer buffer = pool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (pool.size() < MAX_POOLED) {
+                pool.push(buffer.clear());
+            }
+        }
+    }
+
+    /**
+     * One piece of a response waiting to be written: bytes in memory, or a file sent with transferTo.
+     */
+    private static final class Chunk {
+        final ByteBuffer bytes; // null for a file
+        final FileChannel file;
+        long position;          // Next byte of the file to send
+        final long end;
+
+        Chunk(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.file = null;
+            this.end = 0;
+        }
+
+        Chunk(FileChannel file, long length) {
+            this.bytes = null;
+            this.file = file;
+            this.end = length;
+        }
+    }
+
+    /**
+     * The state of one connection, only ever touched by its loop.
+     */
+    private final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer in;        // Received bytes not parsed yet, ready to read from; null when there are none
+        private long bodyToSkip;      // Bytes of a request body still to discard
+        private final ArrayDeque<Chunk> out = new ArrayDeque<>(); // Responses in request order
+        private boolean closeAfterWrite; // The last response queued was not kept alive
+        private boolean closed;
+        int served;                   // Requests answered so far
+        long lastActive = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * @return true between requests: nothing received, nothing left to send.
+         */
+        boolean isIdle() {
+            return in == null && out.isEmpty();
+        }
+
+        void onReadable() throws IOException {
+            if (in == null) {
+                in = loop.borrow().flip(); // Empty and ready to read from
+            }
+            in.compact();
+            int read = channel.read(in);
+            in.flip();
+            if (read < 0) {
+                close(); // The client is done
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            advance();
+        }
+
+        void onWritable() throws IOException {
+            advance();
+        }
+
+        /**
+         * Parses what has arrived and writes what can be written, until the connection either
+         * has to wait for the client (more input, or room to write) or is finished.
+         */
+        private void advance() throws IOException {
+            while (true) {
+                boolean more = parseRequests();
+                if (!flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE); // Stop reading until the client takes what we have
+                    return;
+                }
+                if (closeAfterWrite) {
+                    close();
+                    return;
+                }
+                if (!more) {
+                    break;
+                }
+            }
+            if (in != null && !in.hasRemaining()) {
+                loop.release(in); // Idle connections hold no buffer
+                in = null;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Turns every complete request in the input into queued responses.
+         * @return true if it stopped with complete requests left over, to carry on once the output drains.
+         */
+        private boolean parseRequests() throws IOException {
+            while (in != null && !closeAfterWrite) {
+                if (bodyToSkip > 0) {
+                    int skipped = (int) Math.min(bodyToSkip, in.remaining());
+                    in.position(in.position() + skipped);
+                    bodyToSkip -= skipped;
+                    if (bodyToSkip > 0) {
+                        return false;
+                    }
+                }
+                if (out.size() >= MAX_QUEUED) {
+                    return true;
+                }
+
+                HTTPRequest request = HTTPRequest.parse(in);
+                if (request == null) {
+                    if (in.position() == 0 && in.limit() == in.capacity()) {
+                        throw new IOException("Request headers too large");
+                    }
+                    return false;
+                }
+                if (config.logRequests) {
+                    System.out.println("Request: " + request.getRequestLine());
+                }
+                served++;
+                boolean keepAlive = request.isKeepAlive() && served < config.maxRequestsPerConnection && running;
+                bodyToSkip = request.getContentLength();
+                queue(new HTTPResponse(request, keepAlive, fileCache));
+                closeAfterWrite = !keepAlive;
+            }
+            return false;
+        }
+
+        private void queue(HTTPResponse response) throws IOException {
+            out.add(new Chunk(ByteBuffer.wrap(response.getHeaders())));
+            if (response.getBody() != null) {
+                out.add(new Chunk(response.getBody()));
+            } else {
+                out.add(new Chunk(FileChannel.open(response.getFile().toPath()), response.getContentLength()));
+            }
+        }
+
+        /**
+         * Writes queued output until it is all sent or the socket will take no more.
+         * @return true if everything queued has been written.
+         */
+        private boolean flush() throws IOException {
+            while (!out.isEmpty()) {
+                Chunk head = out.peek();
+                if (head.file != null) {
+                    while (head.position < head.end) {
+                        long sent = head.file.transferTo(head.position, head.end - head.position, channel);
+                        if (sent == 0) {
+                            if (head.position >= head.file.size()) {
+                                throw new IOException("File shrank while being sent");
+                            }
+                            return false; // Socket full
+                        }
+                        head.position += sent;
+                        lastActive = System.currentTimeMillis();
+                    }
+                    closeQuietly(head.file);
+                    out.poll();
+                    continue;
+                }
+
+                // Everything in memory up to the next file, often several pipelined responses, in one write
+                ByteBuffer[] parts = new ByteBuffer[out.size()];
+                int count = 0;
+                for (Chunk chunk : out) {
+                    if (chunk.bytes == null) {
+                        break;
+                    }
+                    parts[count++] = chunk.bytes;
+                }
+                if (channel.write(parts, 0, count) > 0) {
+                    lastActive = System.currentTimeMillis();
+                }
+                while (!out.isEmpty() && out.peek().bytes != null && !out.peek().bytes.hasRemaining()) {
+                    out.poll();
+                }
+                if (!out.isEmpty() && out.peek().bytes != null) {
+                    return false; // Socket full
+                }
+            }
+            return true;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            for (Chunk chunk : out) {
+                if (chunk.file != null) {
+                    closeQuietly(chunk.file);
+                }
+            }
+            out.clear();
+            if (in != null) {
+                loop.release(in);
+                in = null;
+            }
+            loop.connections--;
+            connectionSlots.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory-maps small static files and shares each mapping across requests and connections, so serving
+ * a hot file is a write straight from the page cache: no read, no copy into a heap buffer.
+ * Least recently used files are dropped once the mappings add up to the capacity; a dropped mapping is
+ * unmapped when the garbage collector gets to it. A file whose size or modification time changes is
+ * mapped again. Files are expected to be replaced rather than truncated in place while being served.
+ *
+ * Hits take no lock, so event loops serving the same files never wait for each other. A miss maps the
+ * file before locking; only the size bookkeeping and eviction happen under the lock, so a slow mapping
+ * holds up nobody but the connection that asked for it.
+ */
+public class FileCache {
+    private final long maxFileSize; // Larger files are not mapped, they are sent with transferTo
+    private final long capacity;    // Total bytes mapped at once
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private long mappedBytes;       // Guarded by this
+
+    private static final class Entry {
+        final MappedByteBuffer buffer;
+        final long length;
+        final long lastModified;
+        volatile long lastUsed; // System.nanoTime of the last hit, for eviction
+
+        Entry(MappedByteBuffer buffer, long length, long lastModified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.lastUsed = System.nanoTime();
+        }
+
+        boolean matches(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * @param maxFileSize Largest file to map, in bytes.
+     * @param capacity Most bytes to keep mapped at once.
+     */
+    public FileCache(long maxFileSize, long capacity) {
+        this.maxFileSize = maxFileSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Finds a file's contents, mapping it on first use.
+     * @param file The file to serve.
+     * @return A read-only buffer over the whole file with its own position, or null if the file is too large to map.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public ByteBuffer get(File file) throws IOException {
+        long length = file.length();
+        if (length > maxFileSize || length > capacity) {
+            return null;
+        }
+        long lastModified = file.lastModified();
+        String key = file.getPath();
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.matches(length, lastModified)) {
+            entry.lastUsed = System.nanoTime();
+            return entry.buffer.duplicate(); // Shared contents, private position and limit
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length); // Stays valid after the channel closes
+        }
+        Entry mapped = new Entry(buffer, length, lastModified);
+
+        synchronized (this) {
+            Entry current = entries.get(key);
+            if (current != null && current.matches(length, lastModified)) {
+                return current.buffer.duplicate(); // Mapped by another connection meanwhile, ours is dropped
+            }
+            if (current != null) { // Changed on disk since it was mapped
+                mappedBytes -= current.length;
+            }
+            entries.put(key, mapped);
+            mappedBytes += length;
+            if (mappedBytes > capacity) {
+                evict(mapped);
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Drops the least recently used mappings until the rest fit in the capacity. Called with the lock held.
+     * @param keep The mapping just added, which stays.
+     */
+    private void evict(Entry keep) {
+        List<Candidate> byLastUse = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) { // Hits keep moving lastUsed, so sort a snapshot
+            byLastUse.add(new Candidate(entry.getKey(), entry.getValue(), entry.getValue().lastUsed));
+        }
+        byLastUse.sort(Comparator.comparingLong(Candidate::lastUsed));
+        for (Candidate eldest : byLastUse) {
+            if (mappedBytes <= capacity) {
+                break;
+            }
+            if (eldest.entry != keep && entries.remove(eldest.key, eldest.entry)) {
+                mappedBytes -= eldest.entry.length;
+            }
+        }
+    }
+
+    private record Candidate(String key, Entry entry, long lastUsed) {
+    }
+}
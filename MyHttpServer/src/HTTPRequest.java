@@ -1,32 +1,109 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
-public class HTTPRequest {
+public final class HTTPRequest {
+    private static final int MAX_LINE_LENGTH = 8192; // Longest request or header line accepted
+    private static final int MAX_HEADERS = 100;
+
+    private String requestLine;
     private String method;
     private String path;
+    private String version;
+    private final Map<String, String> headers = new HashMap<>(); // Lowercase name -> value
+
+    /**
+     * Reads one request from a connection, leaving anything after it (a pipelined request) in the stream.
+     * @param in The connection's buffered input, shared by every request on it.
+     * @throws EOFException If the client closed the connection before sending anything.
+     * @throws IOException If the request is malformed or too large.
+     */
+    public HTTPRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        while (requestLine != null && requestLine.isEmpty()) { // Empty lines before a request are ignored (RFC 7230 section 3.5)
+            requestLine = readLine(in);
+        }
+        if (requestLine == null) {
+            throw new EOFException("Connection closed"); //nothing to process, the client is done
+        }
+        parseRequestLine(requestLine);
+
+        // Headers, up to the blank line that ends them
+        for (String line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+            parseHeader(line);
+        }
+
+        // Skip any body, so the next request on the connection starts in the right place
+        in.skipNBytes(getContentLength());
+    }
 
-    public HTTPRequest(Socket clientSocket) throws IOException {
-        parseRequest(clientSocket);
+    private HTTPRequest() {
     }
 
-    private void parseRequest(Socket clientSocket) throws IOException {
-        Scanner scanner = new Scanner(clientSocket.getInputStream()); //scanner to read input stream
-        if (!scanner.hasNextLine()) {
-            throw new IOException("Empty request"); //nothing to process if line is empty
+    /**
+     * Parses one request from the start of a buffer once all of its headers have arrived, for the event loop,
+     * which reads whatever the socket has and cannot wait for more in the middle of a request.
+     * Any body is left in the buffer for the caller to skip, see getContentLength.
+     * @param buffer Bytes received on a connection, between position and limit. On success the position
+     *               moves past the headers, otherwise only past any empty lines before the request.
+     * @return The request, or null if the blank line ending the headers has not arrived yet.
+     * @throws IOException If the request is malformed.
+     */
+    public static HTTPRequest parse(ByteBuffer buffer) throws IOException {
+        // Empty lines before a request are ignored (RFC 7230 section 3.5), e.g. a CRLF sent after the last body
+        while (buffer.hasRemaining() && (buffer.get(buffer.position()) == '\r' || buffer.get(buffer.position()) == '\n')) {
+            buffer.get();
+        }
+        int start = buffer.position();
+        int end = -1; // Just past the blank line
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n' && i > start) {
+                if (buffer.get(i - 1) == '\n') {
+                    end = i + 1;
+                    break;
+                }
+                if (buffer.get(i - 1) == '\r' && i - 2 >= start && buffer.get(i - 2) == '\n') {
+                    end = i + 1;
+                    break;
+                }
+            }
+        }
+        if (end < 0) {
+            return null;
         }
 
-        String requestLine = scanner.nextLine(); //read first line like: "GET /index.html HTTP/1.1"
-        System.out.println("Request: " + requestLine); //see what client is requesting
+        byte[] head = new byte[end - start];
+        buffer.get(head);
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r?\n");
+        if (lines.length == 0) {
+            throw new IOException("Invalid HTTP request");
+        }
+        HTTPRequest request = new HTTPRequest();
+        request.parseRequestLine(lines[0]);
+        for (int i = 1; i < lines.length && !lines[i].isEmpty(); i++) {
+            if (lines[i].length() > MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            request.parseHeader(lines[i]);
+        }
+        return request;
+    }
 
+    private void parseRequestLine(String requestLine) throws IOException {
+        this.requestLine = requestLine;
         String[] requestParts = requestLine.split(" ");
 
-        if (requestParts.length < 2) { // if less than 2 request may be not formed correctly
+        if (requestParts.length < 2 || !requestParts[1].startsWith("/")) { // No target, or not a path
             throw new IOException("Invalid HTTP request");
         }
 
         this.method = requestParts[0]; //extra HTTP method "GET"
-
+        this.version = (requestParts.length > 2) ? requestParts[2] : "HTTP/1.0"; // No version: HTTP/0.9 style, treat as 1.0
 
         if (requestParts[1].equals("/")) {
             this.path = "index.html"; //set default index.html
@@ -35,7 +112,100 @@ public class HTTPRequest {
         }
     }
 
+    private void parseHeader(String line) throws IOException {
+        if (headers.size() == MAX_HEADERS) {
+            throw new IOException("Too many headers");
+        }
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+    }
+
+    /**
+     * Reads a line ending in CRLF (or a bare LF) as ISO-8859-1.
+     * @return The line without its ending, or null at the end of the stream before any byte.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed in the middle of a line");
+            }
+            if (line.size() == MAX_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.ISO_8859_1);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Works out whether the client wants the connection kept open after this request:
+     * by default in HTTP/1.1 unless it says Connection: close, only on request in HTTP/1.0.
+     * A chunked request body cannot be skipped here, so those connections are always closed.
+     * @return true if another request may follow on this connection.
+     */
+    public boolean isKeepAlive() {
+        if (headers.containsKey("transfer-encoding")) {
+            return false;
+        }
+        String connection = headers.getOrDefault("connection", "").toLowerCase();
+        if (version.equals("HTTP/1.1")) {
+            return !connection.contains("close");
+        }
+        return connection.contains("keep-alive");
+    }
+
+    /**
+     * @return The request line as the client sent it, e.g. for logging.
+     */
+    public String getRequestLine() {
+        return requestLine;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
     public String getPath() {
         return path;
     }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The length of the request body, 0 if there is none.
+     * @throws IOException If the Content-Length header is not a number.
+     */
+    public long getContentLength() throws IOException {
+        String contentLength = headers.get("content-length");
+        if (contentLength == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(contentLength);
+            if (length < 0) {
+                throw new NumberFormatException();
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + contentLength);
+        }
+    }
+
+    /**
+     * @param name The header name, any case.
+     * @return The header's value, or null if the request did not have it.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
 }
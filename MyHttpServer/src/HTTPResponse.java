@@ -1,28 +1,107 @@
 import java.io.*;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 public class HTTPResponse {
-    private Socket clientSocket;
-    private HTTPRequest request; //parsed HTTP request
+    private static final byte[] NOT_FOUND_BODY = "<h1>404 Not Found</h1>\r\n".getBytes(StandardCharsets.ISO_8859_1);
 
-    public HTTPResponse(Socket clientSocket, HTTPRequest request) { //constructor
-        this.clientSocket = clientSocket;
-        this.request = request;
-    }
+    private final boolean keepAlive; // Whether the connection stays open after this response
+    private final File file;         // The file to send, or null if it was not found
+    private final ByteBuffer body;   // The body if it is in memory (a mapped file or the 404 page), null to send the file
+    private final long contentLength;
+    private final byte[] headers;    // Status line and headers, ready to write
 
-    public void sendResponse() throws IOException {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        File file = new File("src/" + request.getPath()); // Find the requested file in the "src" directory
+    /**
+     * Works out the response to a request. Writing it is separate, so both the blocking engine
+     * (sendResponse) and the event loop (getHeaders, getBody, getFile) can send it.
+     * @param request The parsed request.
+     * @param keepAlive Whether the connection stays open after this response.
+     * @param fileCache Where small files are mapped, shared by every connection.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public HTTPResponse(HTTPRequest request, boolean keepAlive, FileCache fileCache) throws IOException { //constructor
+        this.keepAlive = keepAlive;
+        File requested = new File("src/" + request.getPath()); // Find the requested file in the "src" directory
 
-        if (file.exists()) {
-            String contentType = determineContentType(file.getName());
-            sendHeaders(out, contentType, file.length()); //calls function to send HTTP headers (status, content type, etc.)
-            sendFile(file);
+        if (requested.isFile()) {
+            this.file = requested;
+            this.body = fileCache.get(requested); // null if too large to map
+            this.contentLength = body != null ? body.remaining() : requested.length();
+            this.headers = buildHeaders("200 OK", determineContentType(requested.getName()), contentLength);
         } else {
-            send404(out);
+            this.file = null;
+            this.body = ByteBuffer.wrap(NOT_FOUND_BODY);
+            this.contentLength = NOT_FOUND_BODY.length;
+            this.headers = buildHeaders("404 Not Found", "text/html", contentLength);
+        }
+    }
+
+    /**
+     * Writes the whole response. With a channel, an in-memory body goes out together with the headers
+     * in one gathering write, and a file too large to map is sent with transferTo (sendfile on Linux),
+     * so file contents never pass through a user-space buffer.
+     * @param out The connection's buffered output, flushed first so earlier output stays in order.
+     * @param channel The connection's channel, or null if it has none: then everything goes through out.
+     */
+    public void sendResponse(OutputStream out, SocketChannel channel) throws IOException {
+        if (channel == null) {
+            out.write(headers); //HTTP headers (status, content type, etc.)
+            if (body != null) {
+                Channels.newChannel(out).write(body);
+            } else {
+                sendFile(file, out);
+            }
+            return;
+        }
+
+        out.flush();
+        ByteBuffer head = ByteBuffer.wrap(headers);
+        if (body != null) {
+            ByteBuffer[] parts = {head, body};
+            while (head.hasRemaining() || body.hasRemaining()) {
+                channel.write(parts);
+            }
+            return;
+        }
+        while (head.hasRemaining()) {
+            channel.write(head);
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+            for (long position = 0; position < contentLength; ) {
+                long sent = fileChannel.transferTo(position, contentLength - position, channel);
+                if (sent == 0 && position >= fileChannel.size()) {
+                    throw new EOFException("File shrank while being sent");
+                }
+                position += sent;
+            }
         }
     }
 
+    byte[] getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return The body if it is in memory, to be written after the headers, otherwise null (see getFile).
+     */
+    ByteBuffer getBody() {
+        return body;
+    }
+
+    /**
+     * @return The file to send with transferTo when there is no in-memory body, otherwise unused.
+     */
+    File getFile() {
+        return file;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
     private String determineContentType(String fileName) {
         if (fileName.endsWith(".css")) {
             return "text/css";
@@ -31,26 +110,20 @@ public class HTTPResponse {
         return "text/html";
     }
 
-    private void sendHeaders(PrintWriter out, String contentType, long contentLength) {
-        out.println("HTTP/1.1 200 OK");
-        out.println("Content-Type: " + contentType); //text/html
-        out.println("Content-Length: " + contentLength); //file size in bytes
-        out.println(); //blank line to indicate end of headers
-        out.flush(); //push headers to client
+    // Every response carries its length, so the client knows where it ends on a kept-alive connection
+    private byte[] buildHeaders(String status, String contentType, long contentLength) {
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n" //text/html
+                + "Content-Length: " + contentLength + "\r\n" //file size in bytes
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n"; //blank line to indicate end of headers
+        return headers.getBytes(StandardCharsets.ISO_8859_1);
     }
-    //sends requested files content to client
-    private void sendFile( File file) throws IOException {
+    //sends requested files content to client when there is no channel to transfer to
+    private void sendFile(File file, OutputStream out) throws IOException {
         try (FileInputStream fileInputStream = new FileInputStream(file)) {
             //makes sure file is closed when operation/block of code is done (try with resource)
-            fileInputStream.transferTo(clientSocket.getOutputStream());
+            fileInputStream.transferTo(out);
         }
     }
-    //send 404 not found if file not found
-    private void send404(PrintWriter out) {
-        out.println("HTTP/1.1 404 Not Found");
-        out.println("Content-Type: text/html");
-        out.println();
-        out.println("<h1>404 Not Found</h1>");
-        out.flush();
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts connections and serves each one on its own thread, so a slow client or a large
+ * file only holds up its own connection. Threads are virtual by default, or come from a
+ * fixed pool (see ServerConfig). A semaphore caps how many connections are served at once;
+ * past the cap the acceptor waits and new clients queue in the listen backlog. In pool mode the cap is
+ * also the pool size, as a connection holds its thread even while idle between requests: accepting more
+ * would only park them in the executor's queue, unserved, until the client gives up.
+ *
+ * Connections stay open between requests (HTTP/1.1 keep-alive, see client) and keep their slot meanwhile.
+ * shutdown() stops accepting, closes connections that are idle between requests, lets requests
+ * already being served finish for up to the shutdown timeout, then closes whatever is left.
+ */
+public class HTTPServer {
+    private final ServerConfig config;
+    private final ExecutorService connections; // Runs client.handleClient, one task per connection
+    private final Semaphore connectionSlots;   // Bounds the connections being served
+    private final int maxConnections;          // Permits in connectionSlots
+    private final FileCache fileCache;          // Small files mapped once for every connection
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet(); // For closing stragglers on shutdown
+    private final Set<Socket> idle = ConcurrentHashMap.newKeySet(); // Kept-alive connections waiting for a request
+
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    /**
+     * Creates a server with the given settings.
+     * @param config The server settings.
+     */
+    public HTTPServer(ServerConfig config) {
+        this.config = config;
+        this.fileCache = new FileCache(config.mappedFileMaxBytes, config.mappedCacheBytes);
+        if (config.threading == ServerConfig.ThreadingMode.POOL) {
+            this.connections = Executors.newFixedThreadPool(config.poolThreads);
+            this.maxConnections = Math.min(config.maxConnections, config.poolThreads);
+        } else {
+            this.connections = Executors.newVirtualThreadPerTaskExecutor();
+            this.maxConnections = config.maxConnections;
+        }
+        this.connectionSlots = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Binds the port and runs the accept loop until shutdown() is called.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start() throws IOException {
+        serverSocket = ServerSocketChannel.open().socket(); // Accepted sockets then have channels, for zero-copy sends
+        serverSocket.bind(new InetSocketAddress(config.port), config.backlog);
+        running = true;
+        System.out.println("Server started on port " + config.port + " (" + config.threading.name().toLowerCase()
+                + " threads, up to " + maxConnections + " connections)");
+
+        while (running) {
+            try {
+                connectionSlots.acquire(); // Wait for a free slot before taking another connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept(); //returns server object
+            } catch (IOException e) {
+                connectionSlots.release();
+                if (running) {
+                    System.err.println("Error accepting client: " + e.getMessage());
+                    continue;
+                }
+                break; // Closed by shutdown()
+            }
+
+            open.add(clientSocket);
+            try {
+                connections.execute(() -> serve(clientSocket));
+            } catch (RuntimeException e) { // Rejected: shutting down
+                open.remove(clientSocket);
+                connectionSlots.release();
+                closeQuietly(clientSocket);
+            }
+        }
+    }
+
+    /**
+     * Serves one connection on a connection thread, then closes it and gives its slot back,
+     * whatever went wrong on the way.
+     */
+    private void serve(Socket clientSocket) {
+        try {
+            clientSocket.setSoTimeout(config.readTimeoutMillis); // A client that stops sending cannot hold the thread forever
+            client.handleClient(clientSocket, this); //communication with client
+        } catch (SocketException | RuntimeException e) {
+            System.err.println("Error handling client: " + e);
+        } finally {
+            closeQuietly(clientSocket); // Already closed unless handleClient failed
+            open.remove(clientSocket);
+            idle.remove(clientSocket);
+            connectionSlots.release();
+        }
+    }
+
+    /**
+     * Marks a connection as waiting between requests, when shutdown may close it right away, or as busy again.
+     * @param clientSocket The connection.
+     * @param waiting true while it waits for the next request.
+     */
+    void setIdle(Socket clientSocket, boolean waiting) {
+        if (waiting) {
+            idle.add(clientSocket);
+            if (!running) { // Shutdown already swept the idle set
+                closeQuietly(clientSocket);
+            }
+        } else {
+            idle.remove(clientSocket);
+        }
+    }
+
+    /**
+     * @return false once shutdown has started, so connections stop taking new requests.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Stops accepting and drains: requests in progress get up to the shutdown timeout to finish,
+     * then their connections are closed.
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverSocket);
+        for (Socket socket : idle) { // Nothing in flight on these, no need to wait for them
+            closeQuietly(socket);
+        }
+        connections.shutdown();
+        try {
+            if (!connections.awaitTermination(config.shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                System.err.println("Closing " + open.size() + " connections still open after the shutdown timeout");
+                for (Socket socket : open) {
+                    closeQuietly(socket);
+                }
+                connections.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Server stopped");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close socket: " + e.getMessage());
+        }
+    }
+}
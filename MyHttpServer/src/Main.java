@@ -1,23 +1,26 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 public class Main {
+    /**
+     * Starts the server and serves until the process is stopped, then drains in-flight requests.
+     * @param args Optional settings as --name=value, see ServerConfig.
+     */
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(8080)) {
-            System.out.println("Server started on port 8080");
+        ServerConfig config = ServerConfig.fromArgs(args);
 
-            while (true) {
-                try {
-                    Socket clientSocket = serverSocket.accept(); //returns server object
-                    client.handleClient(clientSocket); //communication with client
-                } catch (IOException e) {
-                    System.err.println("Error handling client: " + e.getMessage());
-                }
+        try {
+            if (config.engine == ServerConfig.Engine.EVENT_LOOP) {
+                EventLoopServer server = new EventLoopServer(config);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "http-shutdown")); // Ctrl-C or kill
+                server.start();
+            } else {
+                HTTPServer server = new HTTPServer(config);
+                Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "http-shutdown"));
+                server.start();
             }
         } catch (IOException e) {
             System.err.println("Could not start server: " + e.getMessage());
             System.exit(1); // Exit if server can't start
         }
     }
-}
\ No newline at end of file
+}
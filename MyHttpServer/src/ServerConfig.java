@@ -0,0 +1,73 @@
+/**
+ * Settings for HTTPServer and EventLoopServer. Defaults match the original hard-coded values where there were any,
+ * and each one can be overridden on the command line as --name=value.
+ */
+public class ServerConfig {
+
+    /**
+     * What runs each connection.
+     */
+    public enum ThreadingMode {
+        VIRTUAL, // One virtual thread per connection: blocking I/O is cheap, so thousands can wait at once
+        POOL     // A fixed pool of platform threads, for predictable CPU use
+    }
+
+    /**
+     * How connections are served.
+     */
+    public enum Engine {
+        BLOCKING,  // HTTPServer: blocking sockets, a thread per connection (see ThreadingMode)
+        EVENT_LOOP // EventLoopServer: non-blocking channels multiplexed over a few selector threads
+    }
+
+    int port = 8080;                   // Listening port
+    Engine engine = Engine.BLOCKING;
+    int eventLoops = Runtime.getRuntime().availableProcessors(); // Selector threads in EVENT_LOOP mode
+    ThreadingMode threading = ThreadingMode.VIRTUAL;
+    int poolThreads = Runtime.getRuntime().availableProcessors() * 2; // Pool size in POOL mode, also the connection cap there
+    int maxConnections = 1024;         // Connections served at once; more wait in the listen backlog
+    int backlog = 512;                 // Listen backlog for connections not accepted yet
+    int readTimeoutMillis = 10_000;    // Close a connection whose request takes longer than this to arrive
+    int keepAliveTimeoutMillis = 5_000; // Close a kept-alive connection idle this long between requests
+    int maxRequestsPerConnection = 100; // Close a connection after this many requests, so none is held forever
+    long mappedFileMaxBytes = 1024 * 1024; // Files up to this size are memory-mapped and shared, larger ones use transferTo
+    long mappedCacheBytes = 64L * 1024 * 1024; // Total size of the mapped files kept at once
+    long shutdownTimeoutMillis = 5_000; // On shutdown, wait this long for in-flight requests before cutting them off
+    boolean logRequests = false;       // Print every request line; all connections then take turns on stdout
+
+    /**
+     * Builds a config from command line arguments like --port=8080 --engine=event-loop.
+     * @param args The command line arguments.
+     * @return The parsed config, using defaults for anything not given.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "port" -> config.port = Integer.parseInt(value);
+                case "engine" -> config.engine = Engine.valueOf(value.toUpperCase().replace('-', '_'));
+                case "event-loops" -> config.eventLoops = Integer.parseInt(value);
+                case "threading" -> config.threading = ThreadingMode.valueOf(value.toUpperCase());
+                case "pool-threads" -> config.poolThreads = Integer.parseInt(value);
+                case "max-connections" -> config.maxConnections = Integer.parseInt(value);
+                case "backlog" -> config.backlog = Integer.parseInt(value);
+                case "read-timeout" -> config.readTimeoutMillis = Integer.parseInt(value);
+                case "keep-alive-timeout" -> config.keepAliveTimeoutMillis = Integer.parseInt(value);
+                case "max-requests" -> config.maxRequestsPerConnection = Integer.parseInt(value);
+                case "mmap-max-file" -> config.mappedFileMaxBytes = Long.parseLong(value);
+                case "mmap-cache-size" -> config.mappedCacheBytes = Long.parseLong(value);
+                case "shutdown-timeout" -> config.shutdownTimeoutMillis = Long.parseLong(value);
+                case "log-requests" -> config.logRequests = Boolean.parseBoolean(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+}
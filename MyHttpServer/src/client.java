@@ -1,26 +1,81 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
 
 public class client {
-    public static void handleClient(Socket clientSocket) {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Serves every request on a connection (HTTP/1.1 keep-alive), then closes it.
+     * Requests are answered in order, so pipelined requests already in the buffer are simply read next.
+     * Responses go straight to the socket's channel (see HTTPResponse.sendResponse); the buffered output
+     * is only used for sockets without one.
+     * @param clientSocket The connection.
+     * @param server The server, for its settings and to be told when the connection is idle.
+     */
+    public static void handleClient(Socket clientSocket, HTTPServer server) {
+        ServerConfig config = server.getConfig();
         try {
-            // Parse HTTP request
-            HTTPRequest request = new HTTPRequest(clientSocket);
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE);
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream(), BUFFER_SIZE);
+
+            for (int served = 0; ; served++) {
+                // Between requests: wait up to the keep-alive timeout, and let shutdown close us meanwhile
+                if (served > 0 && in.available() == 0) {
+                    clientSocket.setSoTimeout(config.keepAliveTimeoutMillis);
+                    server.setIdle(clientSocket, true);
+                    in.mark(1);
+                    int next = in.read();
+                    server.setIdle(clientSocket, false);
+                    if (next < 0 || !server.isRunning()) {
+                        break;
+                    }
+                    in.reset();
+                    clientSocket.setSoTimeout(config.readTimeoutMillis);
+                }
 
-            // Handle response
-            HTTPResponse response = new HTTPResponse(clientSocket, request); //respond object
-            response.sendResponse(); //send response to client (file or error)
+                // Parse HTTP request
+                HTTPRequest request = new HTTPRequest(in);
+                if (config.logRequests) {
+                    System.out.println("Request: " + request.getRequestLine()); //see what client is requesting
+                }
+                boolean keepAlive = request.isKeepAlive() && served + 1 < config.maxRequestsPerConnection && server.isRunning();
 
+                // Handle response
+                HTTPResponse response = new HTTPResponse(request, keepAlive, server.getFileCache()); //respond object
+                response.sendResponse(out, clientSocket.getChannel()); //send response to client (file or error)
+                if (!keepAlive || in.available() == 0) {
+                    out.flush(); // Nothing pipelined behind this one, send what we have
+                }
+                if (!keepAlive) {
+                    break;
+                }
+            }
+            out.flush();
+
+        } catch (EOFException | SocketTimeoutException e) {
+            // The client went away or went quiet, nothing to report
+        } catch (SocketException | ClosedChannelException e) {
+            if (server.isRunning()) { // Otherwise shutdown closed it
+                System.err.println("I/O Error: " + e.getMessage());
+            }
         } catch (IOException e) { //handle any I/O errors
 
             System.err.println("I/O Error: " + e.getMessage());
 
         }
-        try { //close socket after request is processed
+        try { //close socket after the last request is processed
             clientSocket.close(); //can throw closing error
 
         } catch (IOException e) { //handle error when closing socket
             System.err.println("Failed to close socket: " + e.getMessage());
         }
-        }
     }
+}
@@ -0,0 +1,162 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sends junk to both engines on the loopback interface: each bad request only costs its own connection,
+ * the server goes on serving everyone else, and empty lines before a request are skipped.
+ *
+ * Run from MyHttpServer with the JUnit console launcher:
+ *   javac -d out -cp junit-platform-console-standalone.jar src/*.java test/*.java
+ *   java -jar junit-platform-console-standalone.jar execute -cp out --select-class MalformedRequestTest
+ */
+class MalformedRequestTest {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    // Request lines that have no target, or a target that is not a path
+    private static final String[] JUNK = {
+            "GET  HTTP/1.1\r\n\r\n",
+            "GET\r\n\r\n",
+            "GET index.html HTTP/1.1\r\n\r\n",
+            " \r\n\r\n",
+    };
+
+    @Test
+    void eventLoopSurvivesMalformedRequests() throws Exception {
+        ServerConfig config = config();
+        config.engine = ServerConfig.Engine.EVENT_LOOP;
+        config.eventLoops = 1; // Every connection on the loop a bad request would have killed
+        EventLoopServer server = new EventLoopServer(config);
+        Thread acceptor = start(server::start);
+        try {
+            checkServesThroughJunk(config.port);
+        } finally {
+            server.shutdown();
+            acceptor.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    void blockingServerSurvivesMalformedRequests() throws Exception {
+        ServerConfig config = config();
+        HTTPServer server = new HTTPServer(config);
+        Thread acceptor = start(server::start);
+        try {
+            checkServesThroughJunk(config.port);
+        } finally {
+            server.shutdown();
+            acceptor.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    private static void checkServesThroughJunk(int port) throws Exception {
+        try (Socket kept = connect(port)) { // Open before the junk arrives, must still be served after it
+            assertEquals("HTTP/1.1 404 Not Found", exchange(kept, get("/missing", true)));
+
+            for (String junk : JUNK) {
+                try (Socket bad = connect(port)) {
+                    bad.getOutputStream().write(junk.getBytes(StandardCharsets.ISO_8859_1));
+                    assertEquals(-1, bad.getInputStream().read(), "closed without an answer: " + junk.trim());
+                }
+            }
+
+            // Empty lines before a request are not an error (RFC 7230 section 3.5)
+            assertEquals("HTTP/1.1 404 Not Found", exchange(kept, "\r\n\r\n" + get("/missing", true)));
+        }
+        try (Socket fresh = connect(port)) {
+            assertEquals("HTTP/1.1 404 Not Found", exchange(fresh, get("/missing", false)));
+        }
+    }
+
+    private static ServerConfig config() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.port = freePort();
+        config.readTimeoutMillis = TIMEOUT_MILLIS;
+        config.shutdownTimeoutMillis = 100;
+        return config;
+    }
+
+    private interface Start {
+        void run() throws IOException;
+    }
+
+    // Runs a server's accept loop on its own thread until it is shut down
+    private static Thread start(Start server) {
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new IllegalStateException("Server failed to start", e);
+            }
+        }, "http-test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    // Connects once the server is listening
+    private static Socket connect(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (true) {
+            try {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                return socket;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static String get(String path, boolean keepAlive) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+    }
+
+    // Sends a request and reads one whole response, returning its status line
+    private static String exchange(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+        InputStream in = socket.getInputStream();
+        String statusLine = readLine(in);
+        long contentLength = -1;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        assertTrue(contentLength >= 0, "every response carries its length");
+        in.skipNBytes(contentLength);
+        return statusLine;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new IOException("Connection closed in the middle of a response");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}